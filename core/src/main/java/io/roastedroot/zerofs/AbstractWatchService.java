@@ -215,6 +215,25 @@ abstract class AbstractWatchService implements WatchService {
             }
         }
 
+        /**
+         * Posts the given event to this key unless the last pending event for the same context is
+         * equal to it, so that a change repeated before the events are retrieved is only reported
+         * once. An event equal to an earlier pending one is still posted if another event for the
+         * same context came in between; for example, a file that is created, deleted and created
+         * again is reported as such.
+         */
+        public void postCoalesced(WatchEvent<?> event) {
+            WatchEvent<?> last = null;
+            for (WatchEvent<?> pending : events) {
+                if (Objects.equals(pending.context(), event.context())) {
+                    last = pending;
+                }
+            }
+            if (!event.equals(last)) {
+                post(event);
+            }
+        }
+
         /**
          * Sets the state to SIGNALLED and enqueues this key with the watcher if it was previously in
          * the READY state.
@@ -0,0 +1,26 @@
+package io.roastedroot.zerofs;
+
+/**
+ * Policies for updating the last access time of files when they are read, similar to the {@code
+ * strictatime}, {@code relatime} and {@code noatime} mount options of Linux file systems. The mode
+ * can be set in {@code Configuration.Builder} when creating a ZeroFs file system instance.
+ *
+ * <p>The mode only affects updates made when reading a file or listing a directory. Setting the last
+ * access time explicitly, for example with {@link java.nio.file.attribute.BasicFileAttributeView#setTimes
+ * setTimes}, always works.
+ */
+public enum AccessTimeMode {
+
+    /** The last access time is updated every time a file is read. This is the default. */
+    STRICT,
+
+    /**
+     * The last access time is only updated when reading a file if it's earlier than the last modified
+     * time of the file, or more than a day old. This still tells whether a file has been read since
+     * it was last modified, while most reads don't update the file at all.
+     */
+    RELATIVE,
+
+    /** The last access time is never updated when reading a file. */
+    NONE
+}
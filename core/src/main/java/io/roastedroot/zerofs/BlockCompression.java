@@ -0,0 +1,71 @@
+package io.roastedroot.zerofs;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the blocks of files that have gone cold, using the DEFLATE codec of
+ * {@link java.util.zip}. A block is only kept compressed if that saves at least a quarter of its
+ * size.
+ *
+ * @see Configuration.Builder#setCompressionIdleTime(java.time.Duration)
+ */
+final class BlockCompression {
+
+    private BlockCompression() {}
+
+    /**
+     * Returns a new deflater for compressing blocks. Deflaters hold native memory, so the caller
+     * should reuse the deflater for many blocks and {@linkplain Deflater#end() end} it when done.
+     */
+    static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Returns the compressed content of the given block, or {@code null} if the block doesn't
+     * compress to at most three quarters of its capacity, using the given deflater, which is reset
+     * first.
+     */
+    static byte[] compress(ByteBuffer block, Deflater deflater) {
+        ByteBuffer input = block.duplicate();
+        input.clear();
+
+        deflater.reset();
+        deflater.setInput(input);
+        deflater.finish();
+
+        byte[] output = new byte[block.capacity() / 4 * 3];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == output.length) {
+                return null;
+            }
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        return Arrays.copyOf(output, length);
+    }
+
+    /** Decompresses the given compressed content into the given block, filling it. */
+    static void decompress(byte[] data, ByteBuffer block) {
+        ByteBuffer output = block.duplicate();
+        output.clear();
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            while (output.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(output) == 0 && inflater.needsInput()) {
+                    throw new AssertionError("truncated compressed block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new AssertionError(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
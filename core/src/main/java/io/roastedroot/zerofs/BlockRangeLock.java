@@ -0,0 +1,96 @@
+package io.roastedroot.zerofs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive lock on ranges of the blocks of a {@link RegularFile}. Threads locking disjoint ranges
+ * proceed concurrently, while a thread locking a range that overlaps a range held by another thread
+ * waits until that range is unlocked. This lets threads that only hold the file's read lock write
+ * to different parts of the file at the same time without interleaving their bytes with other
+ * writes to the same blocks.
+ *
+ * <p>The lock is not reentrant: a thread must not lock a range overlapping one it already holds.
+ */
+final class BlockRangeLock {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition unlocked = lock.newCondition();
+
+    // @GuardedBy("lock")
+    private final List<Range> held = new ArrayList<>();
+
+    /**
+     * Locks the blocks from index {@code first} to index {@code last}, inclusive, waiting until no
+     * other thread holds any of them. Returns the locked range, which must be passed to {@link
+     * #unlock(Range)}.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    Range lock(int first, int last) throws InterruptedException {
+        Range range = new Range(first, last);
+        lock.lockInterruptibly();
+        try {
+            while (overlapsHeldRange(range)) {
+                unlocked.await();
+            }
+            held.add(range);
+        } finally {
+            lock.unlock();
+        }
+        return range;
+    }
+
+    /**
+     * Locks the blocks from index {@code first} to index {@code last}, inclusive, like {@link
+     * #lock(int, int)} but without responding to interruption.
+     */
+    Range lockUninterruptibly(int first, int last) {
+        Range range = new Range(first, last);
+        lock.lock();
+        try {
+            while (overlapsHeldRange(range)) {
+                unlocked.awaitUninterruptibly();
+            }
+            held.add(range);
+        } finally {
+            lock.unlock();
+        }
+        return range;
+    }
+
+    /** Unlocks the given range, which was returned by a call to one of the lock methods. */
+    void unlock(Range range) {
+        lock.lock();
+        try {
+            held.remove(range);
+            unlocked.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overlapsHeldRange(Range range) {
+        for (int i = 0; i < held.size(); i++) {
+            Range other = held.get(i);
+            if (other.first <= range.last && range.first <= other.last) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A locked range of blocks. */
+    static final class Range {
+
+        final int first;
+        final int last;
+
+        private Range(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
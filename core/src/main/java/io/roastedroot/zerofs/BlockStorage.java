@@ -0,0 +1,43 @@
+package io.roastedroot.zerofs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Kinds of memory that a file system can use for storing the content of regular files. The storage
+ * can be set in {@code Configuration.Builder} when creating a ZeroFs file system instance.
+ *
+ * <p>Regular file content is stored in fixed-size blocks regardless of the kind of storage, so
+ * reading, writing and transferring bytes behave the same way for every kind of storage; only the
+ * location of the memory backing the blocks differs.
+ */
+public enum BlockStorage {
+
+    /**
+     * Blocks are byte arrays on the Java heap. This is the default, and is generally the fastest
+     * option for small file systems and short-lived files.
+     */
+    HEAP {
+        @Override
+        ByteBuffer allocate(int blockSize) {
+            return ByteBuffer.wrap(new byte[blockSize]);
+        }
+    },
+
+    /**
+     * Blocks are {@linkplain ByteBuffer#allocateDirect(int) direct buffers} allocated outside of the
+     * Java heap. Large file systems using this storage do not add to the size of the old generation,
+     * so garbage collection pauses do not grow with the amount of data stored.
+     *
+     * <p>Direct memory is limited separately from the heap (see the {@code -XX:MaxDirectMemorySize}
+     * JVM option), and is only released once the blocks using it become unreachable.
+     */
+    DIRECT {
+        @Override
+        ByteBuffer allocate(int blockSize) {
+            return ByteBuffer.allocateDirect(blockSize);
+        }
+    };
+
+    /** Allocates a new, zero-filled block of the given size. */
+    abstract ByteBuffer allocate(int blockSize);
+}
@@ -0,0 +1,38 @@
+package io.roastedroot.zerofs;
+
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FileTimeSource} that gets the current time from the system clock, truncated to a fixed
+ * granularity of at least a millisecond. Reading the time doesn't allocate, and all operations in
+ * the same period get the same time.
+ */
+final class CoarseFileTimeSource implements FileTimeSource {
+
+    private final long granularityMillis;
+
+    CoarseFileTimeSource(long granularityMillis) {
+        if (granularityMillis < 1) {
+            throw new IllegalArgumentException(
+                    "granularity (" + granularityMillis + " ms) must be at least 1 ms");
+        }
+        this.granularityMillis = granularityMillis;
+    }
+
+    @Override
+    public FileTime now() {
+        return FileTime.from(nowNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public long nowNanos() {
+        long millis = System.currentTimeMillis();
+        return (millis - Math.floorMod(millis, granularityMillis)) * 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return "CoarseFileTimeSource{granularityMillis=" + granularityMillis + "}";
+    }
+}
@@ -0,0 +1,97 @@
+package io.roastedroot.zerofs;
+
+import java.io.Closeable;
+import java.nio.file.ClosedFileSystemException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Background service that periodically visits the regular files of a file system and compresses
+ * the blocks of files that haven't been read or written since its previous visit. A file is thus
+ * compressed once it has gone unused for between one and two intervals, and decompressed on the
+ * first visit after it's used again. See {@link RegularFile#compressIfIdle(Deflater)}.
+ *
+ * <p>Files are visited by walking the file hierarchy without locking it as a whole, so a file that
+ * is moved during a visit may be missed until the next one.
+ */
+final class ColdFileCompressor implements Closeable {
+
+    /**
+     * Thread factory for compression threads, which should be daemon threads so as not to keep the
+     * VM running if the user doesn't close the file system.
+     */
+    private static final ThreadFactory THREAD_FACTORY =
+            new ZeroFsThreadFactory("io.roastedroot.zerofs.ColdFileCompressor-thread-%d", true);
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+
+    private final ZeroFsFileStore store;
+
+    ColdFileCompressor(ZeroFsFileStore store, long intervalNanos) {
+        this.store = Objects.requireNonNull(store);
+        store.state().register(this);
+        executor.scheduleWithFixedDelay(
+                this::visitFiles, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /** Visits all regular files of the file system once. */
+    void visitFiles() {
+        Deque<Directory> directories = new ArrayDeque<>();
+        // files linked several times are only visited once
+        Set<File> linkedFiles = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deflater deflater = BlockCompression.newDeflater();
+        try {
+            for (Name name : store.getRootDirectoryNames()) {
+                directories.push(store.getRoot(name));
+            }
+            while (!directories.isEmpty()) {
+                for (DirectoryEntry entry : entries(directories.pop())) {
+                    File file = entry.file();
+                    if (file.isDirectory()) {
+                        directories.push((Directory) file);
+                    } else if (file.isRegularFile()
+                            && (file.links() == 1 || linkedFiles.add(file))) {
+                        ((RegularFile) file).compressIfIdle(deflater);
+                    }
+                }
+            }
+        } catch (ClosedFileSystemException e) {
+            // the file system was closed during the visit
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static List<DirectoryEntry> entries(Directory dir) {
+        List<DirectoryEntry> entries = new ArrayList<>();
+        dir.readLock().lock();
+        try {
+            for (DirectoryEntry entry : dir) {
+                if (!entry.name().equals(Name.SELF) && !entry.name().equals(Name.PARENT)) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            dir.readLock().unlock();
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        store.state().unregister(this);
+    }
+}
@@ -14,6 +14,7 @@ import java.nio.file.InvalidPathException;
 import java.nio.file.SecureDirectoryStream;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributeView;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -203,17 +204,27 @@ public final class Configuration {
     final Set<PathNormalization> nameDisplayNormalization;
     final Set<PathNormalization> nameCanonicalNormalization;
     final boolean pathEqualityUsesCanonicalForm;
+    final int lookupCacheSize;
+    final boolean nameInterning;
+    final int pathCacheSize;
 
     // Disk configuration
     final int blockSize;
     final long maxSize;
     final long maxCacheSize;
+    final Duration cacheIdleTimeout;
+    final boolean softCache;
+    final Duration compressionIdleTime;
+    final boolean deduplication;
+    final boolean sortedDirectoryStreams;
+    final BlockStorage blockStorage;
 
     // Attribute configuration
     final Set<String> attributeViews;
     final Set<AttributeProvider> attributeProviders;
     final Map<String, Object> defaultAttributeValues;
     final FileTimeSource fileTimeSource;
+    final AccessTimeMode accessTimeMode;
 
     // Watch service
     final WatchServiceConfiguration watchServiceConfig;
@@ -230,9 +241,18 @@ public final class Configuration {
         this.nameDisplayNormalization = builder.nameDisplayNormalization;
         this.nameCanonicalNormalization = builder.nameCanonicalNormalization;
         this.pathEqualityUsesCanonicalForm = builder.pathEqualityUsesCanonicalForm;
+        this.lookupCacheSize = builder.lookupCacheSize;
+        this.nameInterning = builder.nameInterning;
+        this.pathCacheSize = builder.pathCacheSize;
         this.blockSize = builder.blockSize;
         this.maxSize = builder.maxSize;
         this.maxCacheSize = builder.maxCacheSize;
+        this.cacheIdleTimeout = builder.cacheIdleTimeout;
+        this.softCache = builder.softCache;
+        this.compressionIdleTime = builder.compressionIdleTime;
+        this.deduplication = builder.deduplication;
+        this.sortedDirectoryStreams = builder.sortedDirectoryStreams;
+        this.blockStorage = builder.blockStorage;
         this.attributeViews = builder.attributeViews;
         this.attributeProviders =
                 builder.attributeProviders == null
@@ -243,6 +263,7 @@ public final class Configuration {
                         ? Map.<String, Object>of()
                         : Map.copyOf(builder.defaultAttributeValues);
         this.fileTimeSource = builder.fileTimeSource;
+        this.accessTimeMode = builder.accessTimeMode;
         this.watchServiceConfig = builder.watchServiceConfig;
         this.roots = builder.roots;
         this.workingDirectory = builder.workingDirectory;
@@ -261,12 +282,30 @@ public final class Configuration {
                 + nameCanonicalNormalization
                 + ", pathEqualityUsesCanonicalForm="
                 + pathEqualityUsesCanonicalForm
+                + ", lookupCacheSize="
+                + lookupCacheSize
+                + ", nameInterning="
+                + nameInterning
+                + ", pathCacheSize="
+                + pathCacheSize
                 + ", blockSize="
                 + blockSize
                 + ", maxSize="
                 + maxSize
                 + ", maxCacheSize="
                 + maxCacheSize
+                + ", cacheIdleTimeout="
+                + cacheIdleTimeout
+                + ", softCache="
+                + softCache
+                + ", compressionIdleTime="
+                + compressionIdleTime
+                + ", deduplication="
+                + deduplication
+                + ", sortedDirectoryStreams="
+                + sortedDirectoryStreams
+                + ", blockStorage="
+                + blockStorage
                 + ", attributeViews="
                 + attributeViews
                 + ", attributeProviders="
@@ -275,6 +314,8 @@ public final class Configuration {
                 + defaultAttributeValues
                 + ", fileTimeSource="
                 + fileTimeSource
+                + ", accessTimeMode="
+                + accessTimeMode
                 + ", watchServiceConfig="
                 + watchServiceConfig
                 + ", roots="
@@ -309,22 +350,35 @@ public final class Configuration {
         /** Equal to the configured max size. */
         public static final long DEFAULT_MAX_CACHE_SIZE = -1;
 
+        /** Disabled. */
+        public static final int DEFAULT_LOOKUP_CACHE_SIZE = 0;
+
         // Path configuration
         private final PathType pathType;
         private Set<PathNormalization> nameDisplayNormalization = Set.of();
         private Set<PathNormalization> nameCanonicalNormalization = Set.of();
         private boolean pathEqualityUsesCanonicalForm = false;
+        private int lookupCacheSize = DEFAULT_LOOKUP_CACHE_SIZE;
+        private boolean nameInterning = false;
+        private int pathCacheSize = 0;
 
         // Disk configuration
         private int blockSize = DEFAULT_BLOCK_SIZE;
         private long maxSize = DEFAULT_MAX_SIZE;
         private long maxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+        private Duration cacheIdleTimeout = null;
+        private boolean softCache = false;
+        private Duration compressionIdleTime = null;
+        private boolean deduplication = false;
+        private boolean sortedDirectoryStreams = true;
+        private BlockStorage blockStorage = BlockStorage.HEAP;
 
         // Attribute configuration
         private Set<String> attributeViews = Set.of();
         private Set<AttributeProvider> attributeProviders = null;
         private Map<String, Object> defaultAttributeValues;
         private FileTimeSource fileTimeSource = SystemFileTimeSource.INSTANCE;
+        private AccessTimeMode accessTimeMode = AccessTimeMode.STRICT;
 
         // Watch service
         private WatchServiceConfiguration watchServiceConfig = WatchServiceConfiguration.DEFAULT;
@@ -344,9 +398,18 @@ public final class Configuration {
             this.nameDisplayNormalization = configuration.nameDisplayNormalization;
             this.nameCanonicalNormalization = configuration.nameCanonicalNormalization;
             this.pathEqualityUsesCanonicalForm = configuration.pathEqualityUsesCanonicalForm;
+            this.lookupCacheSize = configuration.lookupCacheSize;
+            this.nameInterning = configuration.nameInterning;
+            this.pathCacheSize = configuration.pathCacheSize;
             this.blockSize = configuration.blockSize;
             this.maxSize = configuration.maxSize;
             this.maxCacheSize = configuration.maxCacheSize;
+            this.cacheIdleTimeout = configuration.cacheIdleTimeout;
+            this.softCache = configuration.softCache;
+            this.compressionIdleTime = configuration.compressionIdleTime;
+            this.deduplication = configuration.deduplication;
+            this.sortedDirectoryStreams = configuration.sortedDirectoryStreams;
+            this.blockStorage = configuration.blockStorage;
             this.attributeViews = configuration.attributeViews;
             this.attributeProviders =
                     configuration.attributeProviders.isEmpty()
@@ -357,6 +420,7 @@ public final class Configuration {
                             ? null
                             : new HashMap<>(configuration.defaultAttributeValues);
             this.fileTimeSource = configuration.fileTimeSource;
+            this.accessTimeMode = configuration.accessTimeMode;
             this.watchServiceConfig = configuration.watchServiceConfig;
             this.roots = configuration.roots;
             this.workingDirectory = configuration.workingDirectory;
@@ -442,6 +506,72 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Sets the maximum number of absolute path lookups the file system caches. Repeatedly
+         * looking up the same deep paths then skips walking the directory tree. Only lookups that
+         * find an existing file that is not a symbolic link are cached. A cached result is
+         * invalidated when a file is deleted from or moved out of any of the directories the lookup
+         * went through; deleting a file in one directory doesn't invalidate lookups of paths in
+         * other directories.
+         *
+         * <p>The default is 0, which disables the cache.
+         */
+        public Builder setLookupCacheSize(int lookupCacheSize) {
+            if (lookupCacheSize < 0) {
+                throw new IllegalArgumentException(
+                        "lookupCacheSize (" + lookupCacheSize + ") may not be negative");
+            }
+            this.lookupCacheSize = lookupCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets whether the file system interns the names it parses from strings. Parsing a name that
+         * is already in use, whether in a path or in a directory entry, then returns the existing
+         * instance rather than normalizing the string and creating a new one. Names that are no
+         * longer in use are dropped from the intern table when they are garbage collected.
+         *
+         * <p>The default is false.
+         */
+        public Builder setNameInterning(boolean interning) {
+            this.nameInterning = interning;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of parsed paths the file system caches, keyed by the string they
+         * were parsed from. Repeatedly getting a path for the same string then returns the same
+         * {@code Path} instance without splitting and normalizing the string again. The numbers of
+         * hits and misses of the cache are available as the {@code "zerofs:pathCacheHits"} and
+         * {@code "zerofs:pathCacheMisses"} attributes of the file system's file store.
+         *
+         * <p>The default is 0, which disables the cache.
+         */
+        public Builder setPathCacheSize(int pathCacheSize) {
+            if (pathCacheSize < 0) {
+                throw new IllegalArgumentException(
+                        "pathCacheSize (" + pathCacheSize + ") may not be negative");
+            }
+            this.pathCacheSize = pathCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets whether directory streams return the entries of a directory sorted by name. Sorting
+         * requires taking a snapshot of all the names in the directory before the first one is
+         * returned. If disabled, names are instead read from the directory in batches, in no
+         * particular order, as the stream is iterated. Listing a large directory then starts
+         * returning names right away and needs only a constant amount of memory. The stream is
+         * weakly consistent: names that stay in the directory while it's iterated are returned
+         * exactly once, and names added or removed meanwhile may or may not be returned.
+         *
+         * <p>The default is true.
+         */
+        public Builder setSortedDirectoryStreams(boolean sorted) {
+            this.sortedDirectoryStreams = sorted;
+            return this;
+        }
+
         /**
          * Sets the block size (in bytes) for the file system to use. All regular files will be
          * allocated blocks of the given size, so this is the minimum granularity for file size.
@@ -502,6 +632,83 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Sets how long freed space may stay unused in the cache before it's released for garbage
+         * collection. Space that isn't reused within that time is released some time between one and
+         * two timeouts after it was last cached, as the file system allocates or frees space. By
+         * default, cached space is kept until it's reused or the cache is {@linkplain
+         * ZeroFs#trim(FileSystem) trimmed}.
+         *
+         * @throws IllegalArgumentException if the timeout is not positive
+         */
+        public Builder setCacheIdleTimeout(Duration timeout) {
+            if (timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException(
+                        String.format("cacheIdleTimeout (%s) must be positive", timeout));
+            }
+            this.cacheIdleTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * Sets whether freed space cached for reuse is only softly reachable, letting the garbage
+         * collector release it when the JVM runs low on memory rather than keeping it until it's
+         * reused. The default is false.
+         */
+        public Builder setSoftCache(boolean softCache) {
+            this.softCache = softCache;
+            return this;
+        }
+
+        /**
+         * Enables transparent compression of the content of regular files that haven't been read or
+         * written for the given time. A background thread checks for such files at that interval, so
+         * a file is compressed after being idle for between one and two times the given time, and is
+         * decompressed again after it's used. Compressed content counts against the {@linkplain
+         * #setMaxSize(long) maximum size} of the storage by its compressed size, so highly
+         * compressible content lets the file system hold more data. Reads of compressed content are
+         * slower, as it must be decompressed each time until the file is decompressed. By default,
+         * content is never compressed.
+         *
+         * @throws IllegalArgumentException if the time is not positive
+         */
+        public Builder setCompressionIdleTime(Duration idleTime) {
+            if (idleTime.isNegative() || idleTime.isZero()) {
+                throw new IllegalArgumentException(
+                        String.format("compressionIdleTime (%s) must be positive", idleTime));
+            }
+            this.compressionIdleTime = idleTime;
+            return this;
+        }
+
+        /**
+         * Sets whether the content of regular files is deduplicated. If enabled, when the last stream
+         * or channel open to a file that was written is closed, each full block of the file whose
+         * content is the same as a block of another file is replaced by a reference to that block,
+         * which is shared copy-on-write by both files. Deduplicated blocks count against the
+         * {@linkplain #setMaxSize(long) maximum size} of the storage only once. The default is false.
+         *
+         * <p>The {@code "zerofs:logicalUsedSpace"} and {@code "zerofs:physicalUsedSpace"} attributes of
+         * the {@link java.nio.file.FileStore} report how much space the content of files would take
+         * up without sharing and compression and how much it actually takes up.
+         */
+        public Builder setDeduplication(boolean deduplication) {
+            this.deduplication = deduplication;
+            return this;
+        }
+
+        /**
+         * Sets the kind of memory the file system uses to store the content of regular files. With
+         * {@link BlockStorage#DIRECT}, file content is kept outside of the Java heap, which keeps
+         * large file systems from increasing garbage collection pauses.
+         *
+         * <p>The default is {@link BlockStorage#HEAP}.
+         */
+        public Builder setBlockStorage(BlockStorage blockStorage) {
+            this.blockStorage = Objects.requireNonNull(blockStorage);
+            return this;
+        }
+
         /**
          * Sets the attribute views the file system should support. By default, the following views may
          * be specified:
@@ -645,6 +852,15 @@ public final class Configuration {
             return this;
         }
 
+        /**
+         * Sets when the last access time of files is updated as they are read. The default is {@link
+         * AccessTimeMode#STRICT}, which updates it on every read.
+         */
+        public Builder setAccessTimeMode(AccessTimeMode mode) {
+            this.accessTimeMode = Objects.requireNonNull(mode);
+            return this;
+        }
+
         /**
          * Sets the roots for the file system.
          *
@@ -2,19 +2,46 @@ package io.roastedroot.zerofs;
 
 import java.nio.file.attribute.FileTime;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * A table of {@linkplain DirectoryEntry directory entries}.
  *
+ * <p>Each directory has its own lock protecting its table. The table may only be modified while
+ * holding the write lock, and may be read either while holding the read lock or, for single
+ * lookups, with {@link #lookUp(Name)}, which reads the table optimistically without acquiring the
+ * lock at all unless the table is modified concurrently. Operations that need to lock more than one
+ * directory must acquire the write locks in order of the directories' {@linkplain #id() IDs}. The
+ * lock is not reentrant.
+ *
  * @author Colin Decker
  */
 final class Directory extends File implements Iterable<DirectoryEntry> {
 
     /** The entry linking to this directory in its parent directory. */
-    private DirectoryEntry entryInParent;
+    private volatile DirectoryEntry entryInParent;
+
+    private final StampedLock lock = new StampedLock();
+
+    /** Whether or not this directory has been deleted; no entries may be added once it has been. */
+    private volatile boolean deleted;
+
+    /**
+     * The number of times an entry was unlinked from this directory or replaced in it. Only written
+     * while holding the write lock.
+     */
+    private volatile int unlinkCount;
+
+    /**
+     * The registry to notify when entries are linked into or unlinked from this directory, or
+     * {@code null} if the directory isn't watched by an {@link EventWatchService}.
+     */
+    private volatile WatchRegistry watchRegistry;
 
     /** Creates a new normal directory with the given ID and creation time. */
     public static Directory create(int id, FileTime creationTime) {
@@ -45,6 +72,16 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         return Directory.create(id, creationTime);
     }
 
+    /** Returns the read lock for this directory's table. */
+    public Lock readLock() {
+        return lock.asReadLock();
+    }
+
+    /** Returns the write lock for this directory's table. */
+    public Lock writeLock() {
+        return lock.asWriteLock();
+    }
+
     /**
      * Returns the entry linking to this directory in its parent. If this directory has been deleted,
      * this returns the entry for it in the directory it was in when it was deleted.
@@ -76,6 +113,37 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         parent().decrementLinkCount();
     }
 
+    @Override
+    void deleted() {
+        deleted = true;
+        WatchRegistry registry = watchRegistry;
+        if (registry != null) {
+            registry.deleted(this);
+        }
+    }
+
+    /**
+     * Sets the registry to notify of changes to this directory's entries. Called with the write lock
+     * held.
+     */
+    void setWatchRegistry(WatchRegistry registry) {
+        this.watchRegistry = registry;
+    }
+
+    /**
+     * Returns the number of times an entry was unlinked from this directory or replaced in it. A
+     * lookup of a name in this directory that found an entry finds the same entry for as long as
+     * this count doesn't change.
+     */
+    int unlinkCount() {
+        return unlinkCount;
+    }
+
+    /** Returns whether or not this directory has been deleted. */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
     /** Returns the number of entries in this directory. */
     int entryCount() {
         return entryCount;
@@ -88,9 +156,18 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
 
     /** Returns the entry for the given name in this table or null if no such entry exists. */
     public DirectoryEntry get(Name name) {
-        int index = bucketIndex(name, table.length);
+        DirectoryEntry entry = get(table, name);
+        if (entry == null) {
+            DirectoryEntry[] oldTable = this.oldTable;
+            if (oldTable != null) {
+                entry = get(oldTable, name);
+            }
+        }
+        return entry;
+    }
 
-        DirectoryEntry entry = table[index];
+    private static DirectoryEntry get(DirectoryEntry[] table, Name name) {
+        DirectoryEntry entry = table[bucketIndex(name, table.length)];
         while (entry != null) {
             if (name.equals(entry.name())) {
                 return entry;
@@ -101,6 +178,35 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         return null;
     }
 
+    /**
+     * Returns the entry for the given name in this table or null if no such entry exists. Unlike
+     * {@link #get(Name)}, this may be called without holding this directory's lock.
+     *
+     * <p>The table is first read optimistically, without writing to any shared state, and the result
+     * is used if no modification of the table started in the meantime. Only if one did is the lookup
+     * repeated while holding the read lock. Reading the table while it is being modified may give a
+     * wrong result but can't fail or loop forever: entries only ever point to entries that were
+     * added after them or that come after them in the table, so chains always end. An entry moved
+     * from the old table to the new one while the table is being resized may be missed, which is
+     * also detected by the validation.
+     */
+    public DirectoryEntry lookUp(Name name) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            DirectoryEntry entry = get(name);
+            if (lock.validate(stamp)) {
+                return entry;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return get(name);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
     /**
      * Links the given name to the given file in this directory.
      *
@@ -111,6 +217,11 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         DirectoryEntry entry = new DirectoryEntry(this, checkNotReserved(name, "link"), file);
         put(entry);
         file.linked(entry);
+
+        WatchRegistry registry = watchRegistry;
+        if (registry != null) {
+            registry.linked(entry);
+        }
     }
 
     /**
@@ -122,6 +233,11 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
     public void unlink(Name name) {
         DirectoryEntry entry = remove(checkNotReserved(name, "unlink"));
         entry.file().unlinked();
+
+        WatchRegistry registry = watchRegistry;
+        if (registry != null) {
+            registry.unlinked(entry);
+        }
     }
 
     /**
@@ -140,6 +256,74 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         return builder;
     }
 
+    /**
+     * Adds the names of the entries in the buckets of this directory's table to the given list,
+     * excluding "." and "..", starting with the bucket at the given cursor and stopping once at least
+     * {@code max} names were added. Returns the cursor to continue the scan from, or 0 if the whole
+     * table was scanned; a scan starts at cursor 0. The caller must hold the read lock.
+     *
+     * <p>Buckets are visited in the order of the bit-reversed cursor, so that a scan continued after
+     * the table was resized neither returns a name again nor misses a name that stayed in the
+     * directory: the buckets already visited in the smaller table are exactly those their entries
+     * were split into in the larger one. When the table shrank, the first bucket visited may merge
+     * buckets that were visited with buckets that weren't; the names whose hashes come before the
+     * cursor in bit-reversed order were returned already and are skipped. While the table is being
+     * resized, each bucket of the smaller table is visited together with the buckets it's split
+     * into in the larger one. Names linked or unlinked during the scan may or may not be returned.
+     */
+    int scan(int cursor, List<Name> names, int max) {
+        DirectoryEntry[] small = this.table;
+        DirectoryEntry[] large = this.oldTable;
+        if (large != null && large.length < small.length) {
+            DirectoryEntry[] tmp = small;
+            small = large;
+            large = tmp;
+        }
+
+        int smallMask = small.length - 1;
+        int added = 0;
+        do {
+            added += scanBucket(small[cursor & smallMask], cursor, names);
+
+            if (large != null) {
+                // visit the buckets of the large table that the small table's bucket is split into
+                int largeMask = large.length - 1;
+                do {
+                    added += scanBucket(large[cursor & largeMask], cursor, names);
+                    cursor = nextCursor(cursor, largeMask);
+                } while ((cursor & (smallMask ^ largeMask)) != 0);
+            } else {
+                cursor = nextCursor(cursor, smallMask);
+            }
+        } while (cursor != 0 && added < max);
+        return cursor;
+    }
+
+    /**
+     * Adds the names in the given bucket chain to the given list, excluding "." and ".." and the
+     * names that a scan returned before reaching the given cursor. Returns the number of names added.
+     */
+    private static int scanBucket(DirectoryEntry entry, int cursor, List<Name> names) {
+        int reversedCursor = Integer.reverse(cursor);
+        int added = 0;
+        for (; entry != null; entry = entry.next) {
+            Name name = entry.name();
+            if (!isReserved(name)
+                    && Integer.compareUnsigned(Integer.reverse(name.hashCode()), reversedCursor)
+                            >= 0) {
+                names.add(name);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /** Increments the reversed cursor, carrying through the bits above the given mask. */
+    private static int nextCursor(int cursor, int mask) {
+        cursor |= ~mask;
+        return Integer.reverse(Integer.reverse(cursor) + 1);
+    }
+
     /** Checks that the given name is not "." or "..". Those names cannot be set/removed by users. */
     private static Name checkNotReserved(Name name, String action) {
         if (isReserved(name)) {
@@ -156,20 +340,42 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
 
     // Simple hash table code to avoid allocation of Map.Entry objects when DirectoryEntry can
     // serve the same purpose.
+    //
+    // The table is resized incrementally: when it has to grow or shrink, a new table is allocated
+    // and the entries of the old one are moved to it a few buckets at a time by each subsequent
+    // modification, so that no single modification has to rehash a large directory. Until all of
+    // them are moved, lookups check both tables and new entries are only added to the new one.
 
     private static final int INITIAL_CAPACITY = 16;
-    private static final int INITIAL_RESIZE_THRESHOLD = (int) (INITIAL_CAPACITY * 0.75);
+
+    /** The number of buckets of the old table whose entries are moved by each modification. */
+    private static final int MIGRATION_STEP = 32;
 
     private DirectoryEntry[] table = new DirectoryEntry[INITIAL_CAPACITY];
-    private int resizeThreshold = INITIAL_RESIZE_THRESHOLD;
+    private int resizeThreshold = resizeThreshold(INITIAL_CAPACITY);
+
+    /** The table being resized, or null if the table isn't being resized. */
+    private DirectoryEntry[] oldTable;
+
+    /** The index of the next bucket of the old table whose entries are to be moved. */
+    private int migrationIndex;
 
     private int entryCount;
 
+    /** Returns the number of buckets of this directory's table. */
+    int capacity() {
+        return table.length;
+    }
+
     /** Returns the index of the bucket in the array where an entry for the given name should go. */
     private static int bucketIndex(Name name, int tableLength) {
         return name.hashCode() & (tableLength - 1);
     }
 
+    private static int resizeThreshold(int capacity) {
+        return (int) (capacity * 0.75);
+    }
+
     /**
      * Adds the given entry to the directory.
      *
@@ -185,54 +391,60 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
      * entry with the same name should be overwritten or an exception should be thrown.
      */
     private void put(DirectoryEntry entry, boolean overwriteExisting) {
+        if (oldTable != null) {
+            migrate(MIGRATION_STEP);
+        }
+
+        if (replace(table, entry, overwriteExisting)
+                || (oldTable != null && replace(oldTable, entry, overwriteExisting))) {
+            // no need to resize, and entryCount doesn't change
+            unlinkCount++;
+            entry.file().incrementLinkCount();
+            return;
+        }
+
+        entryCount++;
+        if (entryCount > resizeThreshold) {
+            resize(table.length << 1);
+        }
+        addToBucket(bucketIndex(entry.name(), table.length), table, entry);
+        entry.file().incrementLinkCount();
+    }
+
+    /**
+     * Replaces the entry with the same name as the given entry in the given table, if there is one.
+     * Returns whether or not an entry was replaced.
+     *
+     * @throws IllegalArgumentException if there is an entry with the same name and {@code
+     *     overwriteExisting} is false
+     */
+    private static boolean replace(
+            DirectoryEntry[] table, DirectoryEntry entry, boolean overwriteExisting) {
         int index = bucketIndex(entry.name(), table.length);
 
-        // find the place the new entry should go, ensuring an entry with the same name doesn't
-        // already
-        // exist along the way
         DirectoryEntry prev = null;
         DirectoryEntry curr = table[index];
         while (curr != null) {
             if (curr.name().equals(entry.name())) {
-                if (overwriteExisting) {
-                    // just replace the existing entry; no need to expand, and entryCount doesn't
-                    // change
-                    if (prev != null) {
-                        prev.next = entry;
-                    } else {
-                        table[index] = entry;
-                    }
-                    entry.next = curr.next;
-                    curr.next = null;
-                    entry.file().incrementLinkCount();
-                    return;
-                } else {
+                if (!overwriteExisting) {
                     throw new IllegalArgumentException(
                             "entry '" + entry.name() + "' already exists");
                 }
+
+                if (prev != null) {
+                    prev.next = entry;
+                } else {
+                    table[index] = entry;
+                }
+                entry.next = curr.next;
+                curr.next = null;
+                return true;
             }
 
             prev = curr;
             curr = curr.next;
         }
-
-        entryCount++;
-        if (expandIfNeeded()) {
-            // if the table was expanded, the index/entry we found is no longer applicable, so just
-            // add
-            // the entry normally
-            index = bucketIndex(entry.name(), table.length);
-            addToBucket(index, table, entry);
-        } else {
-            // otherwise, we just can use the index/entry we found
-            if (prev != null) {
-                prev.next = entry;
-            } else {
-                table[index] = entry;
-            }
-        }
-
-        entry.file().incrementLinkCount();
+        return false;
     }
 
     /**
@@ -243,29 +455,42 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
         put(entry, true);
     }
 
-    private boolean expandIfNeeded() {
-        if (entryCount <= resizeThreshold) {
-            return false;
+    /**
+     * Starts resizing the table to the given capacity. If the previous resize isn't complete yet, the
+     * rest of its entries are moved first.
+     */
+    private void resize(int capacity) {
+        if (oldTable != null) {
+            migrate(oldTable.length);
         }
 
-        DirectoryEntry[] newTable = new DirectoryEntry[table.length << 1];
+        oldTable = table;
+        migrationIndex = 0;
+        table = new DirectoryEntry[capacity];
+        resizeThreshold = resizeThreshold(capacity);
+    }
 
-        // redistribute all current entries in the new table
-        for (DirectoryEntry entry : table) {
+    /** Moves the entries of up to the given number of buckets of the old table to the new table. */
+    private void migrate(int buckets) {
+        DirectoryEntry[] oldTable = this.oldTable;
+        int end = Math.min(migrationIndex + buckets, oldTable.length);
+        for (int i = migrationIndex; i < end; i++) {
+            DirectoryEntry entry = oldTable[i];
             while (entry != null) {
-                int index = bucketIndex(entry.name(), newTable.length);
-                addToBucket(index, newTable, entry);
+                addToBucket(bucketIndex(entry.name(), table.length), table, entry);
                 DirectoryEntry next = entry.next;
                 // set entry.next to null; it's always the last entry in its bucket after being
                 // added
                 entry.next = null;
                 entry = next;
             }
+            oldTable[i] = null;
         }
 
-        this.table = newTable;
-        resizeThreshold <<= 1;
-        return true;
+        migrationIndex = end;
+        if (end == oldTable.length) {
+            this.oldTable = null;
+        }
     }
 
     private static void addToBucket(
@@ -285,11 +510,36 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
     }
 
     /**
-     * Removes and returns the entry for the given name from the directory.
+     * Removes and returns the entry for the given name from the directory. The table is shrunk once
+     * less than an eighth of its buckets would be used.
      *
      * @throws IllegalArgumentException if there is no entry with the given name in the directory
      */
     DirectoryEntry remove(Name name) {
+        if (oldTable != null) {
+            migrate(MIGRATION_STEP);
+        }
+
+        DirectoryEntry entry = removeFromBucket(table, name);
+        if (entry == null && oldTable != null) {
+            entry = removeFromBucket(oldTable, name);
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException(
+                    "no entry matching '" + name + "' in this directory");
+        }
+
+        entryCount--;
+        unlinkCount++;
+        entry.file().decrementLinkCount();
+
+        if (table.length > INITIAL_CAPACITY && entryCount < table.length >>> 3) {
+            resize(table.length >>> 1);
+        }
+        return entry;
+    }
+
+    private static DirectoryEntry removeFromBucket(DirectoryEntry[] table, Name name) {
         int index = bucketIndex(name, table.length);
 
         DirectoryEntry prev = null;
@@ -303,21 +553,19 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
                 }
 
                 entry.next = null;
-                entryCount--;
-                entry.file().decrementLinkCount();
                 return entry;
             }
 
             prev = entry;
             entry = entry.next;
         }
-
-        throw new IllegalArgumentException("no entry matching '" + name + "' in this directory");
+        return null;
     }
 
     @Override
     public Iterator<DirectoryEntry> iterator() {
         return new Iterator<DirectoryEntry>() {
+            DirectoryEntry[] current = table;
             int index = 0;
             DirectoryEntry entry = null;
             DirectoryEntry next = advance();
@@ -327,8 +575,16 @@ final class Directory extends File implements Iterable<DirectoryEntry> {
                     entry = entry.next;
                 }
 
-                while (entry == null && index < table.length) {
-                    entry = table[index++];
+                while (entry == null) {
+                    if (index == current.length) {
+                        // iterate the entries that are still in the old table last
+                        if (current == oldTable || oldTable == null) {
+                            break;
+                        }
+                        current = oldTable;
+                        index = 0;
+                    }
+                    entry = current[index++];
                 }
 
                 return entry;
@@ -0,0 +1,124 @@
+package io.roastedroot.zerofs;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchService;
+import java.nio.file.Watchable;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Implementation of {@link WatchService} that posts events for changes to watched directories as
+ * the changes are made, rather than polling for them. The file system notifies the service through
+ * its {@link WatchRegistry} when entries are linked into or unlinked from a watched directory and
+ * when a file in a watched directory is modified, so the service costs nothing while nothing
+ * changes and keys are signalled as soon as a change is made.
+ *
+ * <p>A watched directory stays watched if it's moved, and its keys are cancelled if it's deleted.
+ */
+final class EventWatchService extends AbstractWatchService {
+
+    /** The watched directory of each key. */
+    private final ConcurrentMap<Key, Watch> watches = new ConcurrentHashMap<>();
+
+    private final FileSystemView view;
+    private final PathService pathService;
+    private final FileSystemState fileSystemState;
+    private final WatchRegistry registry;
+
+    EventWatchService(
+            FileSystemView view, PathService pathService, FileSystemState fileSystemState) {
+        this.view = Objects.requireNonNull(view);
+        this.pathService = Objects.requireNonNull(pathService);
+        this.fileSystemState = Objects.requireNonNull(fileSystemState);
+        this.registry = view.state().watchRegistry();
+
+        fileSystemState.register(this);
+    }
+
+    @Override
+    public Key register(Watchable watchable, Iterable<? extends WatchEvent.Kind<?>> eventTypes)
+            throws IOException {
+        ZeroFsPath path = checkWatchable(watchable);
+        Directory dir = view.lookUpDirectory(path);
+
+        Key key = super.register(path, eventTypes);
+        Watch watch = new Watch(key, dir);
+        watches.put(key, watch);
+        if (!registry.watch(dir, watch)) {
+            key.cancel();
+            throw new NoSuchFileException(path.toString());
+        }
+        return key;
+    }
+
+    private ZeroFsPath checkWatchable(Watchable watchable) {
+        if (!(watchable instanceof ZeroFsPath) || !isSameFileSystem((Path) watchable)) {
+            throw new IllegalArgumentException(
+                    "watchable ("
+                            + watchable
+                            + ") must be a Path "
+                            + "associated with the same file system as this watch service");
+        }
+
+        return (ZeroFsPath) watchable;
+    }
+
+    private boolean isSameFileSystem(Path path) {
+        return ((ZeroFsFileSystem) path.getFileSystem()).getDefaultView() == view;
+    }
+
+    /** Returns whether or not any directory is currently watched by this service. */
+    boolean isWatching() {
+        return !watches.isEmpty();
+    }
+
+    @Override
+    public void cancelled(Key key) {
+        Watch watch = watches.remove(key);
+        if (watch != null) {
+            registry.unwatch(watch.dir, watch);
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+
+        for (Key key : watches.keySet()) {
+            key.cancel();
+        }
+        fileSystemState.unregister(this);
+    }
+
+    /** The watch of a directory by a key of this service. */
+    final class Watch {
+
+        private final Key key;
+        private final Directory dir;
+
+        private Watch(Key key, Directory dir) {
+            this.key = key;
+            this.dir = dir;
+        }
+
+        /**
+         * Posts an event of the given kind for the entry with the given name in the directory to the
+         * key, if it subscribes to such events, and signals the key.
+         */
+        void post(WatchEvent.Kind<Path> kind, Name name) {
+            if (key.subscribesTo(kind)) {
+                key.postCoalesced(new Event<>(kind, 1, pathService.createFileName(name)));
+                key.signal();
+            }
+        }
+
+        /** Cancels the key, as the directory was deleted. */
+        void cancel() {
+            key.cancel();
+        }
+    }
+}
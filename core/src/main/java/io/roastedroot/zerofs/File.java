@@ -7,11 +7,16 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 
 /**
  * A file object, containing both the file's metadata and content.
  *
+ * <p>File times are kept as nanoseconds since the epoch so that updating them on every read and
+ * write doesn't allocate. Times too far from the epoch to be represented that way (before 1677 or
+ * after 2262) are saturated, as by {@link FileTime#to(TimeUnit)}.
+ *
  * @author Colin Decker
  */
 public abstract class File {
@@ -20,9 +25,9 @@ public abstract class File {
 
     private int links;
 
-    private FileTime creationTime;
-    private FileTime lastAccessTime;
-    private FileTime lastModifiedTime;
+    private volatile long creationTime;
+    private volatile long lastAccessTime;
+    private volatile long lastModifiedTime;
 
     // null when only the basic view is used (default)
     private Map<String, Map<String, Object>> attributes;
@@ -30,9 +35,10 @@ public abstract class File {
     File(int id, FileTime creationTime) {
         this.id = id;
 
-        this.creationTime = creationTime;
-        this.lastAccessTime = creationTime;
-        this.lastModifiedTime = creationTime;
+        long nanos = toNanos(creationTime);
+        this.creationTime = nanos;
+        this.lastAccessTime = nanos;
+        this.lastModifiedTime = nanos;
     }
 
     /** Returns the ID of this file. */
@@ -66,7 +72,7 @@ public abstract class File {
     /**
      * Creates a new file of the same type as this file with the given ID and creation time. Does not
      * copy the content of this file unless the cost of copying the content is minimal. This is
-     * because this method is called with a hold on the file system's lock.
+     * because this method is called while holding directory locks.
      */
     abstract File copyWithoutContent(int id, FileTime creationTime);
 
@@ -135,35 +141,63 @@ public abstract class File {
     }
 
     /** Gets the creation time of the file. */
-    public final synchronized FileTime getCreationTime() {
-        return creationTime;
+    public final FileTime getCreationTime() {
+        return toFileTime(creationTime);
     }
 
     /** Gets the last access time of the file. */
-    public final synchronized FileTime getLastAccessTime() {
-        return lastAccessTime;
+    public final FileTime getLastAccessTime() {
+        return toFileTime(lastAccessTime);
     }
 
     /** Gets the last modified time of the file. */
-    public final synchronized FileTime getLastModifiedTime() {
+    public final FileTime getLastModifiedTime() {
+        return toFileTime(lastModifiedTime);
+    }
+
+    /** Gets the last access time of the file in nanoseconds since the epoch. */
+    final long getLastAccessTimeNanos() {
+        return lastAccessTime;
+    }
+
+    /** Gets the last modified time of the file in nanoseconds since the epoch. */
+    final long getLastModifiedTimeNanos() {
         return lastModifiedTime;
     }
 
     /** Sets the creation time of the file. */
-    final synchronized void setCreationTime(FileTime creationTime) {
-        this.creationTime = creationTime;
+    final void setCreationTime(FileTime creationTime) {
+        this.creationTime = toNanos(creationTime);
     }
 
     /** Sets the last access time of the file. */
-    final synchronized void setLastAccessTime(FileTime lastAccessTime) {
+    final void setLastAccessTime(FileTime lastAccessTime) {
+        this.lastAccessTime = toNanos(lastAccessTime);
+    }
+
+    /** Sets the last access time of the file to the given nanoseconds since the epoch. */
+    final void setLastAccessTime(long lastAccessTime) {
         this.lastAccessTime = lastAccessTime;
     }
 
     /** Sets the last modified time of the file. */
-    final synchronized void setLastModifiedTime(FileTime lastModifiedTime) {
+    final void setLastModifiedTime(FileTime lastModifiedTime) {
+        this.lastModifiedTime = toNanos(lastModifiedTime);
+    }
+
+    /** Sets the last modified time of the file to the given nanoseconds since the epoch. */
+    final void setLastModifiedTime(long lastModifiedTime) {
         this.lastModifiedTime = lastModifiedTime;
     }
 
+    private static long toNanos(FileTime time) {
+        return time.to(TimeUnit.NANOSECONDS);
+    }
+
+    private static FileTime toFileTime(long nanos) {
+        return FileTime.from(nanos, TimeUnit.NANOSECONDS);
+    }
+
     /**
      * Returns the names of the attributes contained in the given attribute view in the file's
      * attributes table.
@@ -234,7 +268,7 @@ public abstract class File {
     }
 
     private synchronized void setFileTimes(
-            FileTime creationTime, FileTime lastModifiedTime, FileTime lastAccessTime) {
+            long creationTime, long lastModifiedTime, long lastAccessTime) {
         this.creationTime = creationTime;
         this.lastModifiedTime = lastModifiedTime;
         this.lastAccessTime = lastAccessTime;
@@ -251,7 +285,9 @@ public abstract class File {
             if (this.attributes == null) {
                 this.attributes = new HashMap<>();
             }
-            this.attributes.putAll(attributes);
+            for (Map.Entry<String, Map<String, Object>> row : attributes.entrySet()) {
+                this.attributes.put(row.getKey(), new HashMap<>(row.getValue()));
+            }
         }
     }
 
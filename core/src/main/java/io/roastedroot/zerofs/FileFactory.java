@@ -21,8 +21,17 @@ final class FileFactory {
      * Creates a new file factory using the given disk for regular files and the given time source.
      */
     public FileFactory(HeapDisk disk, FileTimeSource fileTimeSource) {
+        this(disk, fileTimeSource, 0);
+    }
+
+    /**
+     * Creates a new file factory using the given disk for regular files and the given time source,
+     * assigning IDs to new files starting with the given ID.
+     */
+    public FileFactory(HeapDisk disk, FileTimeSource fileTimeSource, int firstFileId) {
         this.disk = Objects.requireNonNull(disk);
         this.fileTimeSource = Objects.requireNonNull(fileTimeSource);
+        this.idGenerator.set(firstFileId);
     }
 
     private int nextFileId() {
@@ -0,0 +1,198 @@
+package io.roastedroot.zerofs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystem;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of the content of a ZeroFs file system, from which any number of new file
+ * systems with the same configuration and content can be created. Snapshots are taken with {@link
+ * ZeroFs#snapshot(FileSystem)}.
+ *
+ * <p>Taking a snapshot and creating a file system from one only copy the file hierarchy and the
+ * attributes of each file. The content of regular files is shared by the original file system, the
+ * snapshot and all file systems created from it, and each block of content is only copied when a
+ * file system writes to it. Creating a file system from a snapshot of a populated fixture is thus
+ * much cheaper than populating a new file system, and takes no additional memory for file content
+ * until files are modified.
+ *
+ * <p>A snapshot is immutable and safe for use by multiple threads. It isn't affected by later
+ * changes to the file system it was taken from and remains usable after that file system is closed.
+ */
+public final class FileSystemSnapshot {
+
+    private final Configuration config;
+    private final Map<Name, Directory> roots;
+    private final int nextFileId;
+
+    private FileSystemSnapshot(Configuration config, Map<Name, Directory> roots, int nextFileId) {
+        this.config = config;
+        this.roots = roots;
+        this.nextFileId = nextFileId;
+    }
+
+    /** Takes a snapshot of the given file system. */
+    static FileSystemSnapshot of(ZeroFsFileSystem fileSystem) throws IOException {
+        Configuration config = fileSystem.configuration();
+        ZeroFsFileStore store = fileSystem.getFileStore();
+
+        // the disk of the snapshot only holds frozen blocks, which are accounted for by the disks
+        // of the file systems using them
+        HeapDisk disk = new HeapDisk(config.blockSize, Integer.MAX_VALUE, 0, config.blockStorage);
+        Copier copier = new Copier(disk, null);
+        Map<Name, Directory> roots = new HashMap<>();
+
+        // prevent directory moves, which could make the copy miss or repeat part of the hierarchy
+        long stamp = store.renameLock().readLock();
+        try {
+            for (Name name : store.getRootDirectoryNames()) {
+                roots.put(name, copier.copyRoot(name, store.getRoot(name)));
+            }
+        } finally {
+            store.renameLock().unlockRead(stamp);
+        }
+        return new FileSystemSnapshot(config, roots, copier.maxFileId + 1);
+    }
+
+    /**
+     * Creates a new in-memory file system with the configuration and content of this snapshot.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public FileSystem newFileSystem() throws IOException {
+        return newFileSystem(ZeroFs.newRandomFileSystemName());
+    }
+
+    /**
+     * Creates a new in-memory file system with the configuration and content of this snapshot.
+     *
+     * <p>The returned file system uses the given name as the host part of its URI and the URIs of
+     * paths in the file system, as with {@link ZeroFs#newFileSystem(String, Configuration)}.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public FileSystem newFileSystem(String name) throws IOException {
+        try {
+            URI uri = new URI(ZeroFs.URI_SCHEME, name, null, null);
+            return ZeroFs.newFileSystem(uri, config, this);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Copies the root directories of this snapshot, and everything under them, for a new file system
+     * using the given disk and path service.
+     */
+    Map<Name, Directory> copyRoots(HeapDisk disk, PathService pathService) throws IOException {
+        Copier copier = new Copier(disk, pathService);
+        Map<Name, Directory> result = new HashMap<>();
+        for (Map.Entry<Name, Directory> root : roots.entrySet()) {
+            result.put(root.getKey(), copier.copyRoot(root.getKey(), root.getValue()));
+        }
+        return result;
+    }
+
+    /** Returns the ID to assign to the first file created in a file system made from this snapshot. */
+    int nextFileId() {
+        return nextFileId;
+    }
+
+    /**
+     * Copies file hierarchies, including the attributes of each file, to another disk. Copies keep
+     * the IDs of the files they are copied from, and files linked several times are copied once.
+     */
+    private static final class Copier {
+
+        private final HeapDisk disk;
+
+        /** The path service to create symbolic link targets with, or null to keep the targets. */
+        private final PathService pathService;
+
+        private final Map<File, File> copies = new HashMap<>();
+        private final Map<SharedBlock, SharedBlock> shares = new IdentityHashMap<>();
+
+        private int maxFileId = -1;
+
+        Copier(HeapDisk disk, PathService pathService) {
+            this.disk = disk;
+            this.pathService = pathService;
+        }
+
+        Directory copyRoot(Name name, Directory root) throws IOException {
+            maxFileId = Math.max(maxFileId, root.id());
+            Directory copy = Directory.createRoot(root.id(), root.getCreationTime(), name);
+            copyEntries(root, copy);
+            root.copyAttributes(copy);
+            return copy;
+        }
+
+        /** Returns a copy of the given file, or null if it was deleted while being copied. */
+        private File copy(File file) throws IOException {
+            File copy = copies.get(file);
+            if (copy != null) {
+                return copy;
+            }
+            maxFileId = Math.max(maxFileId, file.id());
+
+            if (file.isDirectory()) {
+                Directory dir = Directory.create(file.id(), file.getCreationTime());
+                copyEntries((Directory) file, dir);
+                copy = dir;
+            } else if (file.isSymbolicLink()) {
+                ZeroFsPath target = ((SymbolicLink) file).target();
+                if (pathService != null) {
+                    target = pathService.createPath(target.root(), target.names());
+                }
+                copy = SymbolicLink.create(file.id(), file.getCreationTime(), target);
+            } else {
+                RegularFile regularFile = (RegularFile) file;
+                // keeps the content from being deleted while it's copied
+                if (!regularFile.tryOpen()) {
+                    return null;
+                }
+                try {
+                    regularFile.readLock().lock();
+                    try {
+                        copy = regularFile.copyToDisk(disk, shares);
+                    } finally {
+                        regularFile.readLock().unlock();
+                    }
+                } finally {
+                    regularFile.closed();
+                }
+            }
+
+            file.copyAttributes(copy);
+            copies.put(file, copy);
+            return copy;
+        }
+
+        private void copyEntries(Directory dir, Directory copy) throws IOException {
+            List<DirectoryEntry> entries = new ArrayList<>();
+            dir.readLock().lock();
+            try {
+                for (DirectoryEntry entry : dir) {
+                    if (!entry.name().equals(Name.SELF) && !entry.name().equals(Name.PARENT)) {
+                        entries.add(entry);
+                    }
+                }
+            } finally {
+                dir.readLock().unlock();
+            }
+
+            for (DirectoryEntry entry : entries) {
+                File file = copy(entry.file());
+                if (file != null) {
+                    copy.link(entry.name(), file);
+                }
+            }
+        }
+    }
+}
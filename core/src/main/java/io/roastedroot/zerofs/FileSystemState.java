@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,15 +24,31 @@ final class FileSystemState implements Closeable {
     private final Set<Closeable> resources =
             Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
     private final FileTimeSource fileTimeSource;
+    private final AccessTimeMode accessTimeMode;
     private final Runnable onClose;
 
     private final AtomicBoolean open = new AtomicBoolean(true);
 
+    /** The directories of the file system watched by event-driven watch services. */
+    private final WatchRegistry watchRegistry = new WatchRegistry();
+
+    /**
+     * How old the last access time of a file must be to be updated when the file is read, with the
+     * {@link AccessTimeMode#RELATIVE} mode, if it's later than the last modified time.
+     */
+    private static final long RELATIVE_ACCESS_TIME_UPDATE_NANOS = TimeUnit.DAYS.toNanos(1);
+
     /** Count of resources currently in the process of being registered. */
     private final AtomicInteger registering = new AtomicInteger();
 
     FileSystemState(FileTimeSource fileTimeSource, Runnable onClose) {
+        this(fileTimeSource, AccessTimeMode.STRICT, onClose);
+    }
+
+    FileSystemState(
+            FileTimeSource fileTimeSource, AccessTimeMode accessTimeMode, Runnable onClose) {
         this.fileTimeSource = Objects.requireNonNull(fileTimeSource);
+        this.accessTimeMode = Objects.requireNonNull(accessTimeMode);
         this.onClose = Objects.requireNonNull(onClose);
     }
 
@@ -82,6 +99,45 @@ final class FileSystemState implements Closeable {
         return fileTimeSource.now();
     }
 
+    /**
+     * Updates the last access time of the given file, which was just read, to the current time if
+     * the file system's {@link AccessTimeMode} calls for it.
+     */
+    public void accessed(File file) {
+        switch (accessTimeMode) {
+            case STRICT:
+                file.setLastAccessTime(fileTimeSource.nowNanos());
+                break;
+            case RELATIVE:
+                long lastAccessTime = file.getLastAccessTimeNanos();
+                if (lastAccessTime <= file.getLastModifiedTimeNanos()) {
+                    file.setLastAccessTime(fileTimeSource.nowNanos());
+                } else {
+                    long now = fileTimeSource.nowNanos();
+                    if (now - lastAccessTime >= RELATIVE_ACCESS_TIME_UPDATE_NANOS) {
+                        file.setLastAccessTime(now);
+                    }
+                }
+                break;
+            case NONE:
+                break;
+        }
+    }
+
+    /**
+     * Updates the last modified time of the given file, which was just modified, to the current time,
+     * and notifies the watch services watching a directory the file is in.
+     */
+    public void modified(File file) {
+        file.setLastModifiedTime(fileTimeSource.nowNanos());
+        watchRegistry.modified(file);
+    }
+
+    /** Returns the registry of the directories watched by event-driven watch services. */
+    WatchRegistry watchRegistry() {
+        return watchRegistry;
+    }
+
     /**
      * Closes the file system, runs the {@code onClose} callback and closes all registered resources.
      */
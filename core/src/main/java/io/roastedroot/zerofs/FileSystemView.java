@@ -24,14 +24,17 @@ import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Supplier;
 
 /**
@@ -70,10 +73,6 @@ final class FileSystemView {
         return store.state();
     }
 
-    private FileTime now() {
-        return state().now();
-    }
-
     /**
      * Returns the path of the working directory at the time this view was created. Does not reflect
      * changes to the path caused by the directory being moved.
@@ -82,21 +81,29 @@ final class FileSystemView {
         return workingDirectoryPath;
     }
 
-    /** Attempt to look up the file at the given path. */
-    DirectoryEntry lookUpWithLock(ZeroFsPath path, Set<? super LinkOption> options)
-            throws IOException {
-        store.readLock().lock();
-        try {
-            return lookUp(path, options);
-        } finally {
-            store.readLock().unlock();
-        }
+    /**
+     * Looks up the file at the given path. Each directory along the path is only locked if it's
+     * modified while the next name is looked up in it, and no lock is held once this returns.
+     */
+    DirectoryEntry lookUp(ZeroFsPath path, Set<? super LinkOption> options) throws IOException {
+        return store.lookUp(workingDirectory, path, options);
     }
 
-    /** Looks up the file at the given path without locking. */
-    private DirectoryEntry lookUp(ZeroFsPath path, Set<? super LinkOption> options)
-            throws IOException {
-        return store.lookUp(workingDirectory, path, options);
+    /**
+     * Returns whether or not the given entry, the result of a lookup done without holding the lock
+     * on its directory, still matches the content of that directory. Must be called while holding
+     * the lock on the entry's directory.
+     */
+    private static boolean isCurrent(DirectoryEntry entry) {
+        Directory dir = entry.directory();
+        File file = entry.fileOrNull();
+        if (file == dir) {
+            // the entry for a root directory; roots are never unlinked
+            return true;
+        }
+
+        DirectoryEntry current = dir.get(entry.name());
+        return current == null ? file == null : current.file() == file;
     }
 
     /**
@@ -110,7 +117,7 @@ final class FileSystemView {
             Set<? super LinkOption> options,
             ZeroFsPath basePathForStream)
             throws IOException {
-        Directory file = (Directory) lookUpWithLock(dir, options).requireDirectory(dir).file();
+        Directory file = (Directory) lookUp(dir, options).requireDirectory(dir).file();
         FileSystemView view = new FileSystemView(store, file, basePathForStream);
         ZeroFsSecureDirectoryStream stream = new ZeroFsSecureDirectoryStream(view, filter, state());
         return store.supportsFeature(Feature.SECURE_DIRECTORY_STREAM)
@@ -118,18 +125,85 @@ final class FileSystemView {
                 : new DowngradedDirectoryStream(stream);
     }
 
+    /**
+     * Returns an iterator over the names of the entries of the working directory of this view,
+     * excluding "." and "..". If the file store sorts directory streams, the names are snapshotted
+     * and sorted first; otherwise, they're scanned in batches in the order of the directory's table.
+     */
+    public Iterator<Name> workingDirectoryEntries() {
+        return store.sortsDirectoryStreams()
+                ? snapshotWorkingDirectoryEntries().iterator()
+                : new EntryScanner();
+    }
+
+    /**
+     * Iterator over the names of the entries of the working directory that {@linkplain Directory#scan
+     * scans} them in batches, holding the directory's read lock only while a batch is scanned. The
+     * iterator is weakly consistent: names that are in the directory for the whole iteration are
+     * returned exactly once, but names linked or unlinked during it may or may not be returned.
+     */
+    private final class EntryScanner implements Iterator<Name> {
+
+        private static final int BATCH_SIZE = 256;
+
+        private final List<Name> batch = new ArrayList<>();
+        private int index;
+        private int cursor;
+        private boolean scanned;
+
+        @Override
+        public boolean hasNext() {
+            while (index == batch.size() && !scanned) {
+                scanBatch();
+            }
+            return index < batch.size();
+        }
+
+        @Override
+        public Name next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.get(index++);
+        }
+
+        private void scanBatch() {
+            batch.clear();
+            index = 0;
+            workingDirectory.readLock().lock();
+            try {
+                if (cursor == 0) {
+                    state().accessed(workingDirectory);
+                }
+                cursor = workingDirectory.scan(cursor, batch, BATCH_SIZE);
+                scanned = cursor == 0;
+            } finally {
+                workingDirectory.readLock().unlock();
+            }
+        }
+    }
+
     /** Snapshots the entries of the working directory of this view. */
     public SortedSet<Name> snapshotWorkingDirectoryEntries() {
-        store.readLock().lock();
+        workingDirectory.readLock().lock();
         try {
             SortedSet<Name> names = workingDirectory.snapshot();
-            workingDirectory.setLastAccessTime(now());
+            state().accessed(workingDirectory);
             return names;
         } finally {
-            store.readLock().unlock();
+            workingDirectory.readLock().unlock();
         }
     }
 
+    /**
+     * Looks up the directory at the given path, following symbolic links.
+     *
+     * @throws IOException if no file exists at the path or it isn't a directory
+     */
+    public Directory lookUpDirectory(ZeroFsPath path) throws IOException {
+        return (Directory) lookUp(path, Options.FOLLOW_LINKS).requireDirectory(path).file();
+    }
+
     /**
      * Returns a snapshot mapping the names of each file in the directory at the given path to the
      * last modified time of that file.
@@ -137,10 +211,9 @@ final class FileSystemView {
     public Map<Name, FileTime> snapshotModifiedTimes(ZeroFsPath path) throws IOException {
         Map<Name, FileTime> modifiedTimes = new HashMap();
 
-        store.readLock().lock();
+        Directory dir = lookUpDirectory(path);
+        dir.readLock().lock();
         try {
-            Directory dir =
-                    (Directory) lookUp(path, Options.FOLLOW_LINKS).requireDirectory(path).file();
             // TODO(cgdecker): Investigate whether WatchServices should keep a reference to the
             // actual
             // directory when SecureDirectoryStream is supported rather than looking up the
@@ -155,7 +228,7 @@ final class FileSystemView {
 
             return modifiedTimes;
         } finally {
-            store.readLock().unlock();
+            dir.readLock().unlock();
         }
     }
 
@@ -169,14 +242,9 @@ final class FileSystemView {
             return false;
         }
 
-        store.readLock().lock();
-        try {
-            File file = lookUp(path, Options.FOLLOW_LINKS).fileOrNull();
-            File file2 = view2.lookUp(path2, Options.FOLLOW_LINKS).fileOrNull();
-            return file != null && Objects.equals(file, file2);
-        } finally {
-            store.readLock().unlock();
-        }
+        File file = lookUp(path, Options.FOLLOW_LINKS).fileOrNull();
+        File file2 = view2.lookUp(path2, Options.FOLLOW_LINKS).fileOrNull();
+        return file != null && Objects.equals(file, file2);
     }
 
     /**
@@ -189,25 +257,38 @@ final class FileSystemView {
         Objects.requireNonNull(path);
         Objects.requireNonNull(options);
 
-        store.readLock().lock();
-        try {
-            DirectoryEntry entry = lookUp(path, options).requireExists(path);
+        DirectoryEntry entry = lookUp(path, options).requireExists(path);
 
-            List<Name> names = new ArrayList<>();
-            names.add(entry.name());
-            while (!entry.file().isRootDirectory()) {
-                entry = entry.directory().entryInParent();
-                names.add(entry.name());
+        // the chain of parent directories only changes when a directory is moved, so an optimistic
+        // read of the rename lock is enough unless a move happens concurrently
+        StampedLock renameLock = store.renameLock();
+        long stamp = renameLock.tryOptimisticRead();
+        ZeroFsPath realPath = toPath(entry, pathService);
+        if (!renameLock.validate(stamp)) {
+            stamp = renameLock.readLock();
+            try {
+                realPath = toPath(entry, pathService);
+            } finally {
+                renameLock.unlockRead(stamp);
             }
+        }
+        return realPath;
+    }
 
-            // names are ordered last to first in the list, so get the reverse view
-            Collections.reverse(names);
-            List<Name> reversed = names;
-            Name root = reversed.remove(0);
-            return pathService.createPath(root, reversed);
-        } finally {
-            store.readLock().unlock();
+    /** Returns the absolute path of the given entry, following its chain of parent directories. */
+    private static ZeroFsPath toPath(DirectoryEntry entry, PathService pathService) {
+        List<Name> names = new ArrayList<>();
+        names.add(entry.name());
+        while (!entry.file().isRootDirectory()) {
+            entry = entry.directory().entryInParent();
+            names.add(entry.name());
         }
+
+        // names are ordered last to first in the list, so get the reverse view
+        Collections.reverse(names);
+        List<Name> reversed = names;
+        Name root = reversed.remove(0);
+        return pathService.createPath(root, reversed);
     }
 
     /**
@@ -245,8 +326,7 @@ final class FileSystemView {
         Objects.requireNonNull(path);
         Objects.requireNonNull(fileCreator);
 
-        store.writeLock().lock();
-        try {
+        while (true) {
             DirectoryEntry entry = lookUp(path, Options.NOFOLLOW_LINKS);
 
             if (entry.exists()) {
@@ -254,22 +334,30 @@ final class FileSystemView {
                     throw new FileAlreadyExistsException(path.toString());
                 }
 
-                // currently can only happen if getOrCreateFile doesn't find the file with the read
-                // lock
-                // and then the file is created between when it releases the read lock and when it
-                // acquires the write lock; so, very unlikely
+                // currently can only happen if getOrCreateFile doesn't find the file and then the
+                // file is created by another thread before this lookup; so, very unlikely
                 return entry.file();
             }
 
             Directory parent = entry.directory();
+            parent.writeLock().lock();
+            try {
+                if (parent.isDeleted()) {
+                    throw new NoSuchFileException(path.toString());
+                }
+                if (!isCurrent(entry)) {
+                    // a file was linked with the same name after the lookup; look it up again
+                    continue;
+                }
 
-            File newFile = fileCreator.get();
-            store.setInitialAttributes(newFile, attrs);
-            parent.link(path.name(), newFile);
-            parent.setLastModifiedTime(now());
-            return newFile;
-        } finally {
-            store.writeLock().unlock();
+                File newFile = fileCreator.get();
+                store.setInitialAttributes(newFile, attrs);
+                parent.link(path.name(), newFile);
+                state().modified(parent);
+                return newFile;
+            } finally {
+                parent.writeLock().unlock();
+            }
         }
     }
 
@@ -282,81 +370,64 @@ final class FileSystemView {
             throws IOException {
         Objects.requireNonNull(path);
 
-        if (!options.contains(CREATE_NEW)) {
-            // assume file exists unless we're explicitly trying to create a new file
-            RegularFile file = lookUpRegularFile(path, options);
-            if (file != null) {
-                return file;
+        while (true) {
+            if (!options.contains(CREATE_NEW)) {
+                // assume file exists unless we're explicitly trying to create a new file
+                DirectoryEntry entry = lookUp(path, options);
+                if (entry.exists()) {
+                    RegularFile file = open(entry.file(), path, options);
+                    if (file != null) {
+                        return file;
+                    }
+                    // the file was deleted after the lookup; look it up again
+                    continue;
+                }
             }
-        }
 
-        if (options.contains(CREATE) || options.contains(CREATE_NEW)) {
-            return getOrCreateRegularFileWithWriteLock(path, options, attrs);
-        } else {
-            throw new NoSuchFileException(path.toString());
-        }
-    }
-
-    /**
-     * Looks up the regular file at the given path, throwing an exception if the file isn't a regular
-     * file. Returns null if the file did not exist.
-     */
-    private RegularFile lookUpRegularFile(ZeroFsPath path, Set<OpenOption> options)
-            throws IOException {
-        store.readLock().lock();
-        try {
-            DirectoryEntry entry = lookUp(path, options);
-            if (entry.exists()) {
-                File file = entry.file();
-                if (!file.isRegularFile()) {
-                    throw new FileSystemException(path.toString(), null, "not a regular file");
-                }
-                return open((RegularFile) file, options);
-            } else {
-                return null;
+            if (!options.contains(CREATE) && !options.contains(CREATE_NEW)) {
+                throw new NoSuchFileException(path.toString());
             }
-        } finally {
-            store.readLock().unlock();
-        }
-    }
 
-    /** Gets or creates a new regular file with a write lock (assuming the file does not exist). */
-    private RegularFile getOrCreateRegularFileWithWriteLock(
-            ZeroFsPath path, Set<OpenOption> options, FileAttribute<?>[] attrs) throws IOException {
-        store.writeLock().lock();
-        try {
             File file =
                     createFile(
                             path, store.regularFileCreator(), options.contains(CREATE_NEW), attrs);
-            // the file already existed but was not a regular file
-            if (!file.isRegularFile()) {
-                throw new FileSystemException(path.toString(), null, "not a regular file");
+            RegularFile opened = open(file, path, options);
+            if (opened != null) {
+                return opened;
             }
-            return open((RegularFile) file, options);
-        } finally {
-            store.writeLock().unlock();
+            // the file was deleted between being created (or found) and being opened
         }
     }
 
     /**
-     * Opens the given regular file with the given options, truncating it if necessary and
-     * incrementing its open count. Returns the given file.
+     * Opens the given file with the given options, truncating it if necessary and incrementing its
+     * open count. Returns the file, or {@code null} if the file has been deleted since it was looked
+     * up.
+     *
+     * @throws FileSystemException if the file is not a regular file
      */
-    private static RegularFile open(RegularFile file, Set<OpenOption> options) {
+    private static RegularFile open(File file, ZeroFsPath path, Set<OpenOption> options)
+            throws FileSystemException {
+        if (!file.isRegularFile()) {
+            throw new FileSystemException(path.toString(), null, "not a regular file");
+        }
+
+        // the file is opened before truncating it so that it can't be deleted in between
+        RegularFile regularFile = (RegularFile) file;
+        if (!regularFile.tryOpen()) {
+            return null;
+        }
+
         if (options.contains(TRUNCATE_EXISTING) && options.contains(WRITE)) {
-            file.writeLock().lock();
+            regularFile.writeLock().lock();
             try {
-                file.truncate(0);
+                regularFile.truncate(0);
             } finally {
-                file.writeLock().unlock();
+                regularFile.writeLock().unlock();
             }
         }
 
-        // must be opened while holding a file store lock to ensure no race between opening and
-        // deleting the file
-        file.opened();
-
-        return file;
+        return regularFile;
     }
 
     /** Returns the target of the symbolic link at the given path. */
@@ -367,9 +438,7 @@ final class FileSystemView {
 
         SymbolicLink symbolicLink =
                 (SymbolicLink)
-                        lookUpWithLock(path, Options.NOFOLLOW_LINKS)
-                                .requireSymbolicLink(path)
-                                .file();
+                        lookUp(path, Options.NOFOLLOW_LINKS).requireSymbolicLink(path).file();
 
         return symbolicLink.target();
     }
@@ -380,7 +449,7 @@ final class FileSystemView {
      */
     public void checkAccess(ZeroFsPath path) throws IOException {
         // just check that the file exists
-        lookUpWithLock(path, Options.FOLLOW_LINKS).requireExists(path);
+        lookUp(path, Options.FOLLOW_LINKS).requireExists(path);
     }
 
     /**
@@ -407,38 +476,54 @@ final class FileSystemView {
 
         Name linkName = link.name();
 
-        // existingView is in the same file system, so just one lock is needed
-        store.writeLock().lock();
-        try {
+        while (true) {
             // we do want to follow links when finding the existing file
-            File existingFile =
-                    existingView
-                            .lookUp(existing, Options.FOLLOW_LINKS)
-                            .requireExists(existing)
-                            .file();
+            DirectoryEntry existingEntry =
+                    existingView.lookUp(existing, Options.FOLLOW_LINKS).requireExists(existing);
+            File existingFile = existingEntry.file();
             if (!existingFile.isRegularFile()) {
                 throw new FileSystemException(
                         link.toString(), existing.toString(), "can't link: not a regular file");
             }
 
-            Directory linkParent =
-                    lookUp(link, Options.NOFOLLOW_LINKS).requireDoesNotExist(link).directory();
+            DirectoryEntry linkEntry =
+                    lookUp(link, Options.NOFOLLOW_LINKS).requireDoesNotExist(link);
+            Directory linkParent = linkEntry.directory();
 
-            linkParent.link(linkName, existingFile);
-            linkParent.setLastModifiedTime(now());
-        } finally {
-            store.writeLock().unlock();
+            // existingView is in the same file system, so the locks can be ordered
+            List<Directory> locked = lockDirectories(existingEntry.directory(), linkParent);
+            try {
+                if (linkParent.isDeleted()) {
+                    throw new NoSuchFileException(link.toString());
+                }
+                if (!isCurrent(existingEntry) || !isCurrent(linkEntry)) {
+                    continue;
+                }
+
+                linkParent.link(linkName, existingFile);
+                state().modified(linkParent);
+                return;
+            } finally {
+                unlockAll(locked);
+            }
         }
     }
 
     /** Deletes the file at the given absolute path. */
     public void deleteFile(ZeroFsPath path, DeleteMode deleteMode) throws IOException {
-        store.writeLock().lock();
-        try {
+        while (true) {
             DirectoryEntry entry = lookUp(path, Options.NOFOLLOW_LINKS).requireExists(path);
-            delete(entry, deleteMode, path);
-        } finally {
-            store.writeLock().unlock();
+            // a directory must be locked as well, to check that it's empty
+            List<Directory> locked =
+                    lockDirectories(entry.directory(), directoryOrNull(entry.file()));
+            try {
+                if (isCurrent(entry)) {
+                    delete(entry, deleteMode, path);
+                    return;
+                }
+            } finally {
+                unlockAll(locked);
+            }
         }
     }
 
@@ -450,7 +535,7 @@ final class FileSystemView {
 
         checkDeletable(file, deleteMode, pathForException);
         parent.unlink(entry.name());
-        parent.setLastModifiedTime(now());
+        state().modified(parent);
 
         file.deleted();
     }
@@ -516,8 +601,7 @@ final class FileSystemView {
 
         File sourceFile;
         File copyFile = null; // non-null after block completes iff source file was copied
-        lockBoth(store.writeLock(), destView.store.writeLock());
-        try {
+        while (true) {
             DirectoryEntry sourceEntry = lookUp(source, options).requireExists(source);
             DirectoryEntry destEntry = destView.lookUp(dest, Options.NOFOLLOW_LINKS);
 
@@ -526,90 +610,134 @@ final class FileSystemView {
 
             Directory destParent = destEntry.directory();
 
-            if (move && sourceFile.isDirectory()) {
-                if (sameFileSystem) {
-                    checkMovable(sourceFile, source);
-                    checkNotAncestor(sourceFile, destParent, destView);
-                } else {
-                    // move to another file system is accomplished by copy-then-delete, so the
-                    // source file
-                    // must be deletable to be moved
-                    checkDeletable(sourceFile, DeleteMode.ANY, source);
-                }
+            // Besides the parent directories, a directory that is moved or deleted must be locked,
+            // as must an existing directory at dest that may be replaced. Moving a directory within
+            // the file system also changes its parent, which requires the rename lock.
+            List<Directory> sourceLocks =
+                    lockOrder(sourceParent, move ? directoryOrNull(sourceFile) : null);
+            List<Directory> destLocks =
+                    lockOrder(destParent, directoryOrNull(destEntry.fileOrNull()));
+            boolean moveDirectory = move && sameFileSystem && sourceFile.isDirectory();
+            long renameStamp = moveDirectory ? store.renameLock().writeLock() : 0;
+            List<Directory> locked;
+            if (sameFileSystem) {
+                List<Directory> all = new ArrayList<>(sourceLocks);
+                all.addAll(destLocks);
+                locked = lockOrder(all.toArray(new Directory[0]));
+                lockAll(locked);
+            } else {
+                lockBoth(sourceLocks, destLocks);
+                locked = new ArrayList<>(sourceLocks);
+                locked.addAll(destLocks);
             }
-
-            if (destEntry.exists()) {
-                if (destEntry.file().equals(sourceFile)) {
-                    return;
-                } else if (options.contains(REPLACE_EXISTING)) {
-                    destView.delete(destEntry, DeleteMode.ANY, dest);
-                } else {
-                    throw new FileAlreadyExistsException(dest.toString());
+            try {
+                if (!isCurrent(sourceEntry) || !isCurrent(destEntry)) {
+                    // the source or dest changed after they were looked up; look them up again
+                    continue;
+                }
+                if (destParent.isDeleted()) {
+                    throw new NoSuchFileException(dest.toString());
                 }
-            }
 
-            if (move && sameFileSystem) {
-                // Real move on the same file system.
-                sourceParent.unlink(source.name());
-                sourceParent.setLastModifiedTime(now());
+                if (move && sourceFile.isDirectory()) {
+                    if (sameFileSystem) {
+                        checkMovable(sourceFile, source);
+                        checkNotAncestor(sourceFile, destParent, destView);
+                    } else {
+                        // move to another file system is accomplished by copy-then-delete, so the
+                        // source file
+                        // must be deletable to be moved
+                        checkDeletable(sourceFile, DeleteMode.ANY, source);
+                    }
+                }
 
-                destParent.link(dest.name(), sourceFile);
-                destParent.setLastModifiedTime(now());
-            } else {
-                // Doing a copy OR a move to a different file system, which must be implemented by
-                // copy and
-                // delete.
-
-                // By default, don't copy attributes.
-                AttributeCopyOption attributeCopyOption = AttributeCopyOption.NONE;
-                if (move) {
-                    // Copy only the basic attributes of the file to the other file system, as it
-                    // may not
-                    // support all the attribute views that this file system does. This also matches
-                    // the
-                    // behavior of moving a file to a foreign file system with a different
-                    // FileSystemProvider.
-                    attributeCopyOption = AttributeCopyOption.BASIC;
-                } else if (options.contains(COPY_ATTRIBUTES)) {
-                    // As with move, if we're copying the file to a different file system, only copy
-                    // its
-                    // basic attributes.
-                    attributeCopyOption =
-                            sameFileSystem ? AttributeCopyOption.ALL : AttributeCopyOption.BASIC;
+                if (destEntry.exists()) {
+                    if (destEntry.file().equals(sourceFile)) {
+                        return;
+                    } else if (options.contains(REPLACE_EXISTING)) {
+                        destView.delete(destEntry, DeleteMode.ANY, dest);
+                    } else {
+                        throw new FileAlreadyExistsException(dest.toString());
+                    }
                 }
 
-                // Copy the file, but don't copy its content while we're holding the file store
-                // locks.
-                copyFile = destView.store.copyWithoutContent(sourceFile, attributeCopyOption);
-                destParent.link(dest.name(), copyFile);
-                destParent.setLastModifiedTime(now());
-
-                // In order for the copy to be atomic (not strictly necessary, but seems preferable
-                // since
-                // we can) lock both source and copy files before leaving the file store locks. This
-                // ensures that users cannot observe the copy's content until the content has been
-                // copied.
-                // This also marks the source file as opened, preventing its content from being
-                // deleted
-                // until after it's copied if the source file itself is deleted in the next step.
-                lockSourceAndCopy(sourceFile, copyFile);
-
-                if (move) {
-                    // It should not be possible for delete to throw an exception here, because we
-                    // already
-                    // checked that the file was deletable above.
-                    delete(sourceEntry, DeleteMode.ANY, source);
+                if (move && sameFileSystem) {
+                    // Real move on the same file system.
+                    sourceParent.unlink(source.name());
+                    state().modified(sourceParent);
+
+                    destParent.link(dest.name(), sourceFile);
+                    state().modified(destParent);
+                } else {
+                    // Doing a copy OR a move to a different file system, which must be implemented
+                    // by
+                    // copy and
+                    // delete.
+
+                    // By default, don't copy attributes.
+                    AttributeCopyOption attributeCopyOption = AttributeCopyOption.NONE;
+                    if (move) {
+                        // Copy only the basic attributes of the file to the other file system, as
+                        // it
+                        // may not
+                        // support all the attribute views that this file system does. This also
+                        // matches
+                        // the
+                        // behavior of moving a file to a foreign file system with a different
+                        // FileSystemProvider.
+                        attributeCopyOption = AttributeCopyOption.BASIC;
+                    } else if (options.contains(COPY_ATTRIBUTES)) {
+                        // As with move, if we're copying the file to a different file system, only
+                        // copy
+                        // its
+                        // basic attributes.
+                        attributeCopyOption =
+                                sameFileSystem
+                                        ? AttributeCopyOption.ALL
+                                        : AttributeCopyOption.BASIC;
+                    }
+
+                    // Copy the file, but don't copy its content while we're holding the directory
+                    // locks.
+                    copyFile = destView.store.copyWithoutContent(sourceFile, attributeCopyOption);
+                    destParent.link(dest.name(), copyFile);
+                    state().modified(destParent);
+
+                    // In order for the copy to be atomic (not strictly necessary, but seems
+                    // preferable
+                    // since
+                    // we can) lock both source and copy files before leaving the directory locks.
+                    // This
+                    // ensures that users cannot observe the copy's content until the content has
+                    // been
+                    // copied.
+                    // This also marks the source file as opened, preventing its content from being
+                    // deleted
+                    // until after it's copied if the source file itself is deleted in the next
+                    // step.
+                    lockSourceAndCopy(sourceFile, copyFile);
+
+                    if (move) {
+                        // It should not be possible for delete to throw an exception here, because
+                        // we
+                        // already
+                        // checked that the file was deletable above.
+                        delete(sourceEntry, DeleteMode.ANY, source);
+                    }
+                }
+                break;
+            } finally {
+                unlockAll(locked);
+                if (moveDirectory) {
+                    store.renameLock().unlockWrite(renameStamp);
                 }
             }
-        } finally {
-            destView.store.writeLock().unlock();
-            store.writeLock().unlock();
         }
 
         if (copyFile != null) {
             // Copy the content. This is done outside the above block to minimize the time spent
             // holding
-            // file store locks, since copying the content of a regular file could take a
+            // directory locks, since copying the content of a regular file could take a
             // (relatively)
             // long time. If done inside the above block, copying using Files.copy can be slower
             // than
@@ -633,28 +761,81 @@ final class FileSystemView {
     }
 
     /**
-     * Acquires both write locks in a way that attempts to avoid the possibility of deadlock. Note
-     * that typically (when only one file system instance is involved), both locks will be the same
-     * lock and there will be no issue at all.
+     * Returns the given directories in the order their locks must be acquired in, ignoring nulls and
+     * duplicates. All directories must belong to the same file system.
      */
-    private static void lockBoth(Lock sourceWriteLock, Lock destWriteLock) {
+    private static List<Directory> lockOrder(Directory... dirs) {
+        List<Directory> result = new ArrayList<>(dirs.length);
+        for (Directory dir : dirs) {
+            if (dir != null && !result.contains(dir)) {
+                result.add(dir);
+            }
+        }
+        result.sort(Comparator.comparingInt(File::id));
+        return result;
+    }
+
+    /** Acquires the write locks of the given directories of the same file system, in order. */
+    private static List<Directory> lockDirectories(Directory... dirs) {
+        List<Directory> result = lockOrder(dirs);
+        lockAll(result);
+        return result;
+    }
+
+    private static void lockAll(List<Directory> dirs) {
+        for (Directory dir : dirs) {
+            dir.writeLock().lock();
+        }
+    }
+
+    /**
+     * Tries to acquire the write locks of all the given directories without blocking. Returns {@code
+     * false}, holding none of the locks, if any of them couldn't be acquired.
+     */
+    private static boolean tryLockAll(List<Directory> dirs) {
+        for (int i = 0; i < dirs.size(); i++) {
+            if (!dirs.get(i).writeLock().tryLock()) {
+                unlockAll(dirs.subList(0, i));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void unlockAll(List<Directory> dirs) {
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            dirs.get(i).writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the write locks of directories in two different file systems in a way that attempts
+     * to avoid the possibility of deadlock. Within one file system, locks are ordered by directory
+     * ID, but IDs can't be used to order locks across file systems.
+     */
+    private static void lockBoth(List<Directory> sourceDirs, List<Directory> destDirs) {
         while (true) {
-            sourceWriteLock.lock();
-            if (destWriteLock.tryLock()) {
+            lockAll(sourceDirs);
+            if (tryLockAll(destDirs)) {
                 return;
             } else {
-                sourceWriteLock.unlock();
+                unlockAll(sourceDirs);
             }
 
-            destWriteLock.lock();
-            if (sourceWriteLock.tryLock()) {
+            lockAll(destDirs);
+            if (tryLockAll(sourceDirs)) {
                 return;
             } else {
-                destWriteLock.unlock();
+                unlockAll(destDirs);
             }
         }
     }
 
+    /** Returns the given file if it's a directory or {@code null} otherwise. */
+    private static Directory directoryOrNull(File file) {
+        return file != null && file.isDirectory() ? (Directory) file : null;
+    }
+
     /** Checks that source is not an ancestor of dest, throwing an exception if it is. */
     private void checkNotAncestor(File source, Directory destParent, FileSystemView destView)
             throws IOException {
@@ -722,7 +903,7 @@ final class FileSystemView {
                 new FileLookup() {
                     @Override
                     public File lookup() throws IOException {
-                        return lookUpWithLock(path, options).requireExists(path).file();
+                        return lookUp(path, options).requireExists(path).file();
                     }
                 },
                 type);
@@ -731,7 +912,7 @@ final class FileSystemView {
     /** Reads attributes of the file located by the given path in this view as an object. */
     public <A extends BasicFileAttributes> A readAttributes(
             ZeroFsPath path, Class<A> type, Set<? super LinkOption> options) throws IOException {
-        File file = lookUpWithLock(path, options).requireExists(path).file();
+        File file = lookUp(path, options).requireExists(path).file();
         return store.readAttributes(file, type);
     }
 
@@ -739,7 +920,7 @@ final class FileSystemView {
     public Map<String, Object> readAttributes(
             ZeroFsPath path, String attributes, Set<? super LinkOption> options)
             throws IOException {
-        File file = lookUpWithLock(path, options).requireExists(path).file();
+        File file = lookUp(path, options).requireExists(path).file();
         return store.readAttributes(file, attributes);
     }
 
@@ -749,7 +930,7 @@ final class FileSystemView {
     public void setAttribute(
             ZeroFsPath path, String attribute, Object value, Set<? super LinkOption> options)
             throws IOException {
-        File file = lookUpWithLock(path, options).requireExists(path).file();
+        File file = lookUp(path, options).requireExists(path).file();
         store.setAttribute(file, attribute, value);
     }
 }
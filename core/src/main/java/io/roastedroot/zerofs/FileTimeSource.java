@@ -1,6 +1,8 @@
 package io.roastedroot.zerofs;
 
 import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A source of the current time as a {@link FileTime}, to enable fake time sources for testing.
@@ -10,4 +12,25 @@ import java.nio.file.attribute.FileTime;
 public interface FileTimeSource {
     /** Returns the current time according to this source as a {@link FileTime}. */
     FileTime now();
+
+    /**
+     * Returns the current time according to this source as a number of nanoseconds since the epoch,
+     * saturating at {@code Long.MIN_VALUE} or {@code Long.MAX_VALUE} if the time is too far from the
+     * epoch to be represented. File systems use this method to update file times on every read and
+     * write, so sources should override it to avoid creating a {@link FileTime} when possible.
+     */
+    default long nowNanos() {
+        return now().to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns a source that gets the current time from the system clock, truncated to the given
+     * granularity. Getting the time from such a source is cheaper than from the default source, and
+     * file times set within the same period of the given length compare as equal.
+     *
+     * @throws IllegalArgumentException if the granularity is less than a millisecond
+     */
+    static FileTimeSource coarse(Duration granularity) {
+        return new CoarseFileTimeSource(granularity.toMillis());
+    }
 }
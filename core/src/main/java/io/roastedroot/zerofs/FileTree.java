@@ -17,6 +17,12 @@ import java.util.TreeSet;
  * The tree of directories and files for the file system. Contains the file system root directories
  * and provides the ability to look up files by path. One piece of the file store implementation.
  *
+ * <p>Lookups don't lock the whole tree: each directory is read optimistically, without taking its
+ * lock unless it's being modified concurrently (see {@link Directory#lookUp(Name)}). As a result, a lookup that races with a modification of the tree sees each directory
+ * as it was either before or after the modification, but not necessarily the whole path as it was
+ * at a single point in time. Callers that modify the tree must lock the directories involved and
+ * check that the entries they looked up are still current.
+ *
  * @author Colin Decker
  */
 final class FileTree {
@@ -33,10 +39,27 @@ final class FileTree {
     /** Map of root names to root directories. */
     private final SortedMap<Name, Directory> roots;
 
+    /** Cache of the results of looking up absolute paths, or {@code null} if disabled. */
+    private final LookupCache lookupCache;
+
     /** Creates a new file tree with the given root directories. */
     FileTree(Map<Name, Directory> roots) {
+        this(roots, 0);
+    }
+
+    /**
+     * Creates a new file tree with the given root directories, caching the results of looking up up
+     * to {@code lookupCacheSize} absolute paths. The cache is disabled if the size is 0.
+     */
+    FileTree(Map<Name, Directory> roots, int lookupCacheSize) {
         this.roots = new TreeMap(Name.canonicalComparator());
         this.roots.putAll(roots);
+        this.lookupCache = lookupCacheSize == 0 ? null : new LookupCache(lookupCacheSize);
+    }
+
+    /** Returns the cache of lookup results, or {@code null} if disabled. */
+    LookupCache lookupCache() {
+        return lookupCache;
     }
 
     /** Returns the names of the root directories in this tree. */
@@ -62,16 +85,35 @@ final class FileTree {
         Objects.requireNonNull(path);
         Objects.requireNonNull(options);
 
-        DirectoryEntry result = lookUp(workingDirectory, path, options, 0);
+        LookupCache cache = path.isAbsolute() ? lookupCache : null;
+        LookupCache.Dependencies dependencies = null;
+        if (cache != null) {
+            DirectoryEntry cached = cache.get(path);
+            if (cached != null) {
+                return cached;
+            }
+            dependencies = new LookupCache.Dependencies();
+        }
+
+        DirectoryEntry result = lookUp(workingDirectory, path, options, 0, dependencies);
         if (result == null) {
             // an intermediate file in the path did not exist or was not a directory
             throw new NoSuchFileException(path.toString());
         }
+
+        // the result for a symbolic link depends on the link options, so don't cache it
+        if (cache != null && result.exists() && !result.file().isSymbolicLink()) {
+            cache.put(path, dependencies, result);
+        }
         return result;
     }
 
     private DirectoryEntry lookUp(
-            File dir, ZeroFsPath path, Set<? super LinkOption> options, int linkDepth)
+            File dir,
+            ZeroFsPath path,
+            Set<? super LinkOption> options,
+            int linkDepth,
+            LookupCache.Dependencies dependencies)
             throws IOException {
         List<Name> names = path.names();
 
@@ -95,15 +137,20 @@ final class FileTree {
             names = EMPTY_PATH_NAMES;
         }
 
-        return lookUp(dir, names, options, linkDepth);
+        return lookUp(dir, names, options, linkDepth, dependencies);
     }
 
     /**
      * Looks up the given names against the given base file. If the file is not a directory, the
-     * lookup fails.
+     * lookup fails. If {@code dependencies} isn't null, the directories names are looked up in are
+     * recorded in it.
      */
     private DirectoryEntry lookUp(
-            File dir, Iterable<Name> names, Set<? super LinkOption> options, int linkDepth)
+            File dir,
+            Iterable<Name> names,
+            Set<? super LinkOption> options,
+            int linkDepth,
+            LookupCache.Dependencies dependencies)
             throws IOException {
         Iterator<Name> nameIterator = names.iterator();
         Name name = nameIterator.next();
@@ -113,14 +160,18 @@ final class FileTree {
                 return null;
             }
 
-            DirectoryEntry entry = directory.get(name);
+            if (dependencies != null) {
+                dependencies.add(directory);
+            }
+            DirectoryEntry entry = directory.lookUp(name);
             if (entry == null) {
                 return null;
             }
 
             File file = entry.file();
             if (file.isSymbolicLink()) {
-                DirectoryEntry linkResult = followSymbolicLink(dir, (SymbolicLink) file, linkDepth);
+                DirectoryEntry linkResult =
+                        followSymbolicLink(dir, (SymbolicLink) file, linkDepth, dependencies);
 
                 if (linkResult == null) {
                     return null;
@@ -134,28 +185,39 @@ final class FileTree {
             name = nameIterator.next();
         }
 
-        return lookUpLast(dir, name, options, linkDepth);
+        return lookUpLast(dir, name, options, linkDepth, dependencies);
     }
 
     /** Looks up the last element of a path. */
     private DirectoryEntry lookUpLast(
-            File dir, Name name, Set<? super LinkOption> options, int linkDepth)
+            File dir,
+            Name name,
+            Set<? super LinkOption> options,
+            int linkDepth,
+            LookupCache.Dependencies dependencies)
             throws IOException {
         Directory directory = toDirectory(dir);
         if (directory == null) {
             return null;
         }
 
-        DirectoryEntry entry = directory.get(name);
+        if (dependencies != null) {
+            dependencies.add(directory);
+        }
+        DirectoryEntry entry = directory.lookUp(name);
         if (entry == null) {
             return new DirectoryEntry(directory, name, null);
         }
 
         File file = entry.file();
         if (!options.contains(LinkOption.NOFOLLOW_LINKS) && file.isSymbolicLink()) {
-            return followSymbolicLink(dir, (SymbolicLink) file, linkDepth);
+            return followSymbolicLink(dir, (SymbolicLink) file, linkDepth, dependencies);
         }
 
+        if (dependencies != null && isReserved(name)) {
+            // the real entry is in a directory this lookup didn't look up a name in
+            dependencies.uncacheable();
+        }
         return getRealEntry(entry);
     }
 
@@ -163,13 +225,14 @@ final class FileTree {
      * Returns the directory entry located by the target path of the given symbolic link, resolved
      * relative to the given directory.
      */
-    private DirectoryEntry followSymbolicLink(File dir, SymbolicLink link, int linkDepth)
+    private DirectoryEntry followSymbolicLink(
+            File dir, SymbolicLink link, int linkDepth, LookupCache.Dependencies dependencies)
             throws IOException {
         if (linkDepth >= MAX_SYMBOLIC_LINK_DEPTH) {
             throw new IOException("too many levels of symbolic links");
         }
 
-        return lookUp(dir, link.target(), Options.FOLLOW_LINKS, linkDepth + 1);
+        return lookUp(dir, link.target(), Options.FOLLOW_LINKS, linkDepth + 1, dependencies);
     }
 
     /**
@@ -182,9 +245,7 @@ final class FileTree {
      * -> "bar" -> bar].
      */
     private DirectoryEntry getRealEntry(DirectoryEntry entry) {
-        Name name = entry.name();
-
-        if (name.equals(Name.SELF) || name.equals(Name.PARENT)) {
+        if (isReserved(entry.name())) {
             Directory dir = toDirectory(entry.file());
             assert dir != null;
             return dir.entryInParent();
@@ -193,6 +254,10 @@ final class FileTree {
         }
     }
 
+    private static boolean isReserved(Name name) {
+        return name.equals(Name.SELF) || name.equals(Name.PARENT);
+    }
+
     private Directory toDirectory(File file) {
         return file == null || !file.isDirectory() ? null : (Directory) file;
     }
@@ -1,6 +1,20 @@
 package io.roastedroot.zerofs;
 
+import static io.roastedroot.zerofs.Util.nextPowerOf2;
+
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A resizable pseudo-disk acting as a shared space for storing file data. A disk allocates fixed
@@ -9,10 +23,48 @@ import java.io.IOException;
  * "size" of the disk) and a maximum number of unused blocks it will cache for reuse at a time
  * (which sets the minimum amount of space the disk will use once
  *
+ * <p>Blocks are created using the disk's {@link BlockStorage}, so they may live either on the Java
+ * heap or in direct memory. New blocks on the heap are allocated as slices of contiguous extents of
+ * memory whose size doubles with the size of the file they're allocated to, up to {@value
+ * #MAX_EXTENT_SIZE} bytes, so that the blocks of a large file that is written sequentially are
+ * mostly adjacent and can be read with few large copies. The blocks of an extent that a file
+ * doesn't need yet are kept as spare blocks by the file for its next allocations, and are cached
+ * (or released) when the file is truncated, deleted or closed. An extent's memory is only released
+ * once none of its blocks are in use or cached, so a single block can keep a whole extent
+ * reachable. Blocks in direct memory, which isn't read in runs, are allocated one at a time.
+ *
+ * <p>Holes in sparse files are not allocated blocks and take no space on the disk. Blocks may be
+ * shared copy-on-write by several files (see {@link SharedBlock}). A shared block
+ * counts as a single allocated block, and is only freed when the last file referencing it frees it.
+ *
+ * <p>Allocating and freeing blocks that aren't shared doesn't lock the whole disk: the counts of
+ * allocated and cached blocks are updated atomically, and cached blocks are kept in several
+ * magazines, each with its own lock, with threads using different magazines when possible. Only
+ * operations on shared blocks lock the disk's share lock, which guards their reference counts.
+ *
+ * <p>If the disk deduplicates blocks, the full blocks of files are {@linkplain #deduplicate
+ * indexed by their content} once the files are written, and a block with the same content as an
+ * indexed block is replaced by a shared reference to that block.
+ *
+ * <p>Blocks of files that have gone cold may be {@linkplain #compress compressed}. A compressed
+ * block is no longer allocated; instead, the disk counts the bytes of all compressed blocks against
+ * its size, rounded up to a whole number of blocks.
+ *
+ * <p>Cached blocks can be released by {@link #trim()}. The disk may also release blocks that have
+ * stayed unused in the cache for a while, checking for them as blocks are allocated and freed, and
+ * may keep cached blocks only softly reachable so that the garbage collector can release them when
+ * memory runs low.
+ *
  * @author Colin Decker
  */
 final class HeapDisk {
 
+    /** Maximum size in bytes of the extents new blocks are allocated in. */
+    private static final int MAX_EXTENT_SIZE = 1024 * 1024;
+
+    /** Maximum number of magazines of cached blocks per disk. */
+    private static final int MAX_MAGAZINE_COUNT = 16;
+
     /** Fixed size of each block for this disk. */
     private final int blockSize;
 
@@ -22,14 +74,53 @@ final class HeapDisk {
     /** Maximum total number of unused blocks that may be cached for reuse at any time. */
     private final int maxCachedBlockCount;
 
+    /** The kind of memory new blocks are allocated in. */
+    private final BlockStorage storage;
+
+    /** Magazines of free blocks to be allocated to files; the length is a power of 2. */
+    private final Magazine[] magazines;
+
+    /** The current total number of blocks that are currently allocated to files. */
+    private final AtomicInteger allocatedBlockCount = new AtomicInteger();
+
+    /** The current total number of blocks in the magazines. */
+    private final AtomicInteger cachedBlockCount = new AtomicInteger();
+
+    /** The current total size in bytes of the compressed blocks of files. */
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    /** The current number of compressed blocks of files. */
+    private final AtomicInteger compressedBlocks = new AtomicInteger();
+
     /**
-     * Cache of free blocks to be allocated to files. While this is stored as a file, it isn't used
-     * like a normal file: only the methods for accessing its blocks are used.
+     * The current number of references to shared blocks beyond the first reference to each; that
+     * is, the number of blocks that sharing saves.
      */
-    final RegularFile blockCache;
+    private final AtomicLong extraReferenceCount = new AtomicLong();
 
-    /** The current total number of blocks that are currently allocated to files. */
-    private int allocatedBlockCount;
+    /**
+     * Shared blocks indexed by the hash code of their content, or {@code null} if the disk doesn't
+     * deduplicate blocks. Guarded by the share lock.
+     */
+    private final Map<Integer, SharedBlock> deduplicationIndex;
+
+    /** Lock guarding the reference counts of shared blocks. */
+    private final ReentrantLock shareLock = new ReentrantLock();
+
+    /**
+     * Time after which blocks that have stayed unused in the cache are released, in nanoseconds, or
+     * 0 if they are kept until reused.
+     */
+    private final long cacheIdleTimeoutNanos;
+
+    /** Whether or not the magazines only keep their blocks softly reachable. */
+    private final boolean softCache;
+
+    /** The {@link System#nanoTime()} of the last check for idle blocks. */
+    private final AtomicLong lastIdleCheckNanos = new AtomicLong(System.nanoTime());
+
+    /** A read-only block of zeros, read in place of the holes of sparse files. */
+    private final ByteBuffer zeroBlock;
 
     /** Creates a new disk using settings from the given configuration. */
     public HeapDisk(Configuration config) {
@@ -39,14 +130,47 @@ final class HeapDisk {
                 config.maxCacheSize == -1
                         ? maxBlockCount
                         : toBlockCount(config.maxCacheSize, blockSize);
-        this.blockCache = createBlockCache(maxCachedBlockCount);
+        this.storage = config.blockStorage;
+        this.cacheIdleTimeoutNanos =
+                config.cacheIdleTimeout == null ? 0 : config.cacheIdleTimeout.toNanos();
+        this.softCache = config.softCache;
+        this.deduplicationIndex = config.deduplication ? new HashMap<>() : null;
+        this.magazines = createMagazines(maxCachedBlockCount);
+        this.zeroBlock = ByteBuffer.wrap(new byte[blockSize]).asReadOnlyBuffer();
     }
 
     /**
-     * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+     * Creates a new heap disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
      * maxCachedBlockCount}.
      */
     public HeapDisk(int blockSize, int maxBlockCount, int maxCachedBlockCount) {
+        this(blockSize, maxBlockCount, maxCachedBlockCount, BlockStorage.HEAP);
+    }
+
+    /**
+     * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+     * maxCachedBlockCount}, allocating blocks from the given {@code storage}.
+     */
+    public HeapDisk(
+            int blockSize, int maxBlockCount, int maxCachedBlockCount, BlockStorage storage) {
+        this(blockSize, maxBlockCount, maxCachedBlockCount, storage, 0, false, false);
+    }
+
+    /**
+     * Creates a new disk with the given {@code blockSize}, {@code maxBlockCount} and {@code
+     * maxCachedBlockCount}, allocating blocks from the given {@code storage}. Cached blocks that stay
+     * unused for {@code cacheIdleTimeoutNanos} are released, unless it's 0, and are only softly
+     * reachable if {@code softCache} is true. The full blocks of files are deduplicated if {@code
+     * deduplicate} is true.
+     */
+    HeapDisk(
+            int blockSize,
+            int maxBlockCount,
+            int maxCachedBlockCount,
+            BlockStorage storage,
+            long cacheIdleTimeoutNanos,
+            boolean softCache,
+            boolean deduplicate) {
         if (blockSize <= 0) {
             throw new IllegalArgumentException(
                     String.format("blockSize (%s) must be positive", blockSize));
@@ -63,7 +187,12 @@ final class HeapDisk {
         this.blockSize = blockSize;
         this.maxBlockCount = maxBlockCount;
         this.maxCachedBlockCount = maxCachedBlockCount;
-        this.blockCache = createBlockCache(maxCachedBlockCount);
+        this.storage = Objects.requireNonNull(storage);
+        this.cacheIdleTimeoutNanos = cacheIdleTimeoutNanos;
+        this.softCache = softCache;
+        this.deduplicationIndex = deduplicate ? new HashMap<>() : null;
+        this.magazines = createMagazines(maxCachedBlockCount);
+        this.zeroBlock = ByteBuffer.wrap(new byte[blockSize]).asReadOnlyBuffer();
     }
 
     // copy pasted from com.google.common.math.LongMath, kept only the FLOOR case
@@ -93,15 +222,18 @@ final class HeapDisk {
         return (int) divide(size, blockSize);
     }
 
-    private RegularFile createBlockCache(int maxCachedBlockCount) {
-        // This file is just for holding blocks so things like the creation time don't matter
-        return new RegularFile(
-                -1,
-                SystemFileTimeSource.INSTANCE.now(),
-                this,
-                new byte[Math.min(maxCachedBlockCount, 8192)][],
-                0,
-                0);
+    private Magazine[] createMagazines(int maxCachedBlockCount) {
+        if (maxCachedBlockCount == 0) {
+            return new Magazine[0];
+        }
+        int count =
+                nextPowerOf2(
+                        Math.min(Runtime.getRuntime().availableProcessors(), MAX_MAGAZINE_COUNT));
+        Magazine[] magazines = new Magazine[count];
+        for (int i = 0; i < count; i++) {
+            magazines[i] = new Magazine();
+        }
+        return magazines;
     }
 
     /** Returns the size of blocks created by this disk. */
@@ -109,11 +241,21 @@ final class HeapDisk {
         return blockSize;
     }
 
+    /** Returns the kind of memory blocks created by this disk are stored in. */
+    public BlockStorage storage() {
+        return storage;
+    }
+
+    /** Returns a read-only block containing only zeros. */
+    public ByteBuffer zeroBlock() {
+        return zeroBlock;
+    }
+
     /**
      * Returns the total size of this disk. This is the maximum size of the disk and does not reflect
      * the amount of data currently allocated or cached.
      */
-    public synchronized long getTotalSpace() {
+    public long getTotalSpace() {
         return maxBlockCount * (long) blockSize;
     }
 
@@ -122,28 +264,639 @@ final class HeapDisk {
      * additional bytes that could be allocated and does not reflect the number of bytes currently
      * actually cached in the disk.
      */
-    public synchronized long getUnallocatedSpace() {
-        return (maxBlockCount - allocatedBlockCount) * (long) blockSize;
+    public long getUnallocatedSpace() {
+        return Math.max(0, maxBlockCount - allocatedBlockCount.get() - compressedBlockCount())
+                * (long) blockSize;
+    }
+
+    /** Returns the number of blocks the compressed blocks of files take up on this disk. */
+    private long compressedBlockCount() {
+        return (compressedBytes.get() + blockSize - 1) / blockSize;
+    }
+
+    /**
+     * Returns the number of bytes the content of files would take up on this disk if no blocks were
+     * shared or compressed.
+     */
+    public long getLogicalUsedSpace() {
+        return (allocatedBlockCount.get() + compressedBlocks.get() + extraReferenceCount.get())
+                * (long) blockSize;
+    }
+
+    /**
+     * Returns the number of bytes the content of files actually takes up on this disk, counting
+     * shared blocks once and compressed blocks at their compressed size.
+     */
+    public long getPhysicalUsedSpace() {
+        return (allocatedBlockCount.get() + compressedBlockCount()) * (long) blockSize;
+    }
+
+    /** Returns whether or not this disk deduplicates the blocks of files. */
+    boolean deduplicates() {
+        return deduplicationIndex != null;
+    }
+
+    /** Returns the number of free blocks currently cached for reuse. */
+    int cachedBlockCount() {
+        return cachedBlockCount.get();
+    }
+
+    /**
+     * Releases all blocks cached for reuse, making them available for garbage collection. Returns
+     * the number of bytes of memory that releasing them frees.
+     *
+     * <p>A block that is a slice of an extent only frees memory along with all other blocks of the
+     * extent, so its bytes are only counted if all blocks of the extent are released at once. If
+     * some of them are still in use, the memory of the extent is only freed once they are too; the
+     * bytes counted may thus be fewer than the bytes eventually freed, but never more.
+     */
+    public long trim() {
+        List<ByteBuffer> released = new ArrayList<>();
+        for (Magazine magazine : magazines) {
+            magazine.releaseAll(released);
+        }
+
+        // the number of bytes of each extent that are released
+        Map<byte[], Integer> releasedBytes = new IdentityHashMap<>();
+        for (ByteBuffer block : released) {
+            if (block.hasArray()) {
+                releasedBytes.merge(block.array(), block.capacity(), Integer::sum);
+            }
+        }
+
+        long freed = 0;
+        for (ByteBuffer block : released) {
+            if (!block.hasArray() || releasedBytes.get(block.array()) == block.array().length) {
+                freed += block.capacity();
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Releases the cached blocks that have stayed unused since the last call to this method; that
+     * is, the blocks at the bottom of each magazine that were there at the last call and haven't
+     * been taken since.
+     */
+    void trimIdleBlocks() {
+        for (Magazine magazine : magazines) {
+            magazine.releaseIdle();
+        }
+    }
+
+    /**
+     * Trims the blocks that have stayed unused in the cache if the idle timeout is enabled and has
+     * elapsed since the last check. Blocks are thus released after staying unused for between one
+     * and two timeouts.
+     */
+    private void checkIdleBlocks() {
+        if (cacheIdleTimeoutNanos > 0) {
+            long last = lastIdleCheckNanos.get();
+            long now = System.nanoTime();
+            if (now - last >= cacheIdleTimeoutNanos
+                    && lastIdleCheckNanos.compareAndSet(last, now)) {
+                trimIdleBlocks();
+            }
+        }
     }
 
     /** Allocates the given number of blocks and adds them to the given file. */
-    public synchronized void allocate(RegularFile file, int count) throws IOException {
-        int newAllocatedBlockCount = allocatedBlockCount + count;
-        if (newAllocatedBlockCount > maxBlockCount) {
-            throw new IOException("out of disk space");
+    public void allocate(RegularFile file, int count) throws IOException {
+        reserve(count);
+        checkIdleBlocks();
+
+        int added = takeSpareBlocks(file, count);
+        added += takeCachedBlocks(file, count - added);
+        if (added < count) {
+            allocateExtents(file, count - added);
+        }
+    }
+
+    /**
+     * Adds {@code count} new blocks to the end of the given file, as slices of extents that are about
+     * as large as the file, so that the extents of a growing file get progressively larger. Blocks of
+     * the last extent beyond the {@code count} needed are kept by the file as spare blocks. Blocks
+     * that aren't on the heap are allocated one at a time.
+     */
+    private void allocateExtents(RegularFile file, int count) {
+        // only blocks backed by arrays are read in runs, so other blocks are allocated separately
+        int maxExtentBlocks =
+                storage == BlockStorage.HEAP ? Math.max(1, MAX_EXTENT_SIZE / blockSize) : 1;
+        while (count > 0) {
+            int extentBlocks = Math.min(Math.max(count, file.blockCount()), maxExtentBlocks);
+            if (extentBlocks == 1) {
+                file.addBlock(storage.allocate(blockSize));
+                count--;
+                continue;
+            }
+
+            ByteBuffer extent = storage.allocate(extentBlocks * blockSize);
+            int used = Math.min(count, extentBlocks);
+            for (int i = 0; i < used; i++) {
+                file.addBlock(slice(extent, i * blockSize, blockSize));
+            }
+            if (used < extentBlocks) {
+                file.setSpareBlocks(
+                        slice(extent, used * blockSize, (extentBlocks - used) * blockSize));
+            }
+            count -= used;
+        }
+    }
+
+    /**
+     * Adds up to {@code max} of the spare blocks the given file kept from the last extent allocated
+     * to it to the end of the file. Returns the number of blocks added.
+     */
+    private int takeSpareBlocks(RegularFile file, int max) {
+        ByteBuffer spare = file.removeSpareBlocks();
+        if (spare == null) {
+            return 0;
         }
+        int spareCount = spare.capacity() / blockSize;
+        int n = Math.min(max, spareCount);
+        for (int i = 0; i < n; i++) {
+            file.addBlock(slice(spare, i * blockSize, blockSize));
+        }
+        if (n < spareCount) {
+            file.setSpareBlocks(slice(spare, n * blockSize, (spareCount - n) * blockSize));
+        }
+        return n;
+    }
+
+    /**
+     * Caches the spare blocks the given file kept from the last extent allocated to it, as far as
+     * the cache has space for them.
+     */
+    void releaseSpareBlocks(RegularFile file) {
+        ByteBuffer spare = file.removeSpareBlocks();
+        if (spare != null) {
+            int toCache = reserveCacheSpace(spare.capacity() / blockSize);
+            if (toCache > 0) {
+                Magazine magazine = magazines[magazineIndex()];
+                for (int i = 0; i < toCache; i++) {
+                    magazine.add(slice(spare, i * blockSize, blockSize));
+                }
+            }
+        }
+    }
 
-        int newBlocksNeeded = Math.max(count - blockCache.blockCount(), 0);
+    /** Returns a buffer for the {@code len} bytes at the given offset in the given buffer. */
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int len) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(offset);
+        dup.limit(offset + len);
+        return dup.slice();
+    }
+
+    /**
+     * Allocates a single block, for filling a hole in a file. The content of the block is undefined.
+     *
+     * @throws IOException if the disk is full
+     */
+    public ByteBuffer allocateBlock() throws IOException {
+        reserve(1);
+        return newBlock();
+    }
+
+    /**
+     * Allocates a single block with the given capacity, which is less than the block size, for a
+     * small file whose content fits in it. The block counts as a full block against the size of the
+     * disk, but isn't cached for reuse once freed. The content of the block is undefined.
+     *
+     * @throws IOException if the disk is full
+     */
+    public ByteBuffer allocateSmallBlock(int capacity) throws IOException {
+        reserve(1);
+        return storage.allocate(capacity);
+    }
+
+    /**
+     * Returns a block with the given capacity, which is greater than that of the given small block
+     * and at most the block size, with the content of the given block copied to its start. The new
+     * block replaces the given block, which must not be shared, and takes its place in the count of
+     * allocated blocks.
+     */
+    public ByteBuffer growSmallBlock(ByteBuffer block, int capacity) {
+        ByteBuffer result = capacity == blockSize ? newBlock() : storage.allocate(capacity);
+        result.duplicate().put(block.duplicate());
+        return result;
+    }
+
+    /**
+     * Returns whether or not the given freed block may be cached for reuse; blocks allocated for
+     * small files are smaller than other blocks and can't be.
+     */
+    private boolean isReusable(ByteBuffer block) {
+        return block.capacity() == blockSize;
+    }
+
+    /**
+     * Counts the given number of blocks as allocated.
+     *
+     * @throws IOException if the disk doesn't have enough space for the blocks
+     */
+    private void reserve(int count) throws IOException {
+        int allocated;
+        do {
+            allocated = allocatedBlockCount.get();
+            if (count > maxBlockCount - allocated - compressedBlockCount()) {
+                throw new IOException("out of disk space");
+            }
+        } while (!allocatedBlockCount.compareAndSet(allocated, allocated + count));
+    }
 
-        for (int i = 0; i < newBlocksNeeded; i++) {
-            file.addBlock(new byte[blockSize]);
+    /** Returns a cached block if there is one, or a new block otherwise. */
+    private ByteBuffer newBlock() {
+        if (cachedBlockCount.get() > 0) {
+            int first = magazineIndex();
+            for (int i = 0; i < magazines.length; i++) {
+                ByteBuffer block = magazines[(first + i) & (magazines.length - 1)].take();
+                if (block != null) {
+                    cachedBlockCount.decrementAndGet();
+                    return block;
+                }
+            }
         }
+        return storage.allocate(blockSize);
+    }
 
-        if (newBlocksNeeded != count) {
-            blockCache.transferBlocksTo(file, count - newBlocksNeeded);
+    /**
+     * Adds up to {@code count} cached blocks to the end of the given file, taking them from the
+     * magazine of the current thread first. Returns the number of blocks added.
+     */
+    private int takeCachedBlocks(RegularFile file, int count) {
+        int taken = 0;
+        if (cachedBlockCount.get() > 0) {
+            int first = magazineIndex();
+            for (int i = 0; i < magazines.length && taken < count; i++) {
+                taken +=
+                        magazines[(first + i) & (magazines.length - 1)].takeTo(file, count - taken);
+            }
+            cachedBlockCount.addAndGet(-taken);
         }
+        return taken;
+    }
+
+    /**
+     * Counts up to {@code count} blocks as cached, as many as the cache has space for. Returns the
+     * number of blocks that may be added to the magazines.
+     */
+    private int reserveCacheSpace(int count) {
+        int cached;
+        int toCache;
+        do {
+            cached = cachedBlockCount.get();
+            toCache = Math.min(count, maxCachedBlockCount - cached);
+            if (toCache <= 0) {
+                return 0;
+            }
+        } while (!cachedBlockCount.compareAndSet(cached, cached + toCache));
+        return toCache;
+    }
 
-        allocatedBlockCount = newAllocatedBlockCount;
+    /** Returns the index of the magazine the current thread uses first. */
+    private int magazineIndex() {
+        return (int) Thread.currentThread().getId() & (magazines.length - 1);
+    }
+
+    /**
+     * Replaces the block at the given index in the given file with the given compressed content of
+     * the block, freeing the block. The block must not be shared, and the file must not be memory
+     * mapped.
+     */
+    public void compress(RegularFile file, int index, byte[] data) {
+        ByteBuffer block = file.getBlock(index);
+        file.setCompressedBlock(index, data);
+
+        // count the compressed bytes first so that the freed block can't be allocated before the
+        // space the compressed content takes up is accounted for, which could overfill the disk
+        addCompressed(data);
+        allocatedBlockCount.decrementAndGet();
+        if (isReusable(block) && reserveCacheSpace(1) == 1) {
+            magazines[magazineIndex()].add(block);
+        }
+    }
+
+    private void addCompressed(byte[] data) {
+        compressedBlocks.incrementAndGet();
+        compressedBytes.addAndGet(data.length);
+    }
+
+    private void removeCompressed(byte[] data) {
+        compressedBytes.addAndGet(-data.length);
+        compressedBlocks.decrementAndGet();
+    }
+
+    /**
+     * Replaces the compressed block at the given index in the given file with a block holding its
+     * decompressed content.
+     *
+     * @throws IOException if the disk is full
+     */
+    public void decompress(RegularFile file, int index) throws IOException {
+        byte[] data = file.getCompressedBlock(index);
+        removeCompressed(data);
+        try {
+            reserve(1);
+        } catch (IOException e) {
+            addCompressed(data);
+            throw e;
+        }
+
+        ByteBuffer block = newBlock();
+        BlockCompression.decompress(data, block);
+        file.setBlock(index, block, null);
+    }
+
+    /**
+     * Adds all blocks of the given source file to the end of the given target file, sharing them
+     * between the two files rather than allocating new blocks. The compressed content of compressed
+     * blocks, which is never modified, is shared as well, but counted for each file.
+     */
+    public void share(RegularFile source, RegularFile target) {
+        shareLock.lock();
+        try {
+            for (int i = 0; i < source.blockCount(); i++) {
+                ByteBuffer block = source.getBlock(i);
+                if (block == null) {
+                    addHoleOrCompressedBlock(source, i, target);
+                    continue;
+                }
+                SharedBlock share = source.getShare(i);
+                if (share == null) {
+                    share = new SharedBlock(1);
+                    source.setBlock(i, block, share);
+                }
+                addReference(share);
+                target.addBlock(block, share);
+            }
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the hole or compressed block at the given index in the source file to the end of the
+     * target file.
+     */
+    private void addHoleOrCompressedBlock(RegularFile source, int index, RegularFile target) {
+        target.addBlock(null);
+        byte[] data = source.getCompressedBlock(index);
+        if (data != null) {
+            target.setCompressedBlock(target.blockCount() - 1, data);
+            addCompressed(data);
+        }
+    }
+
+    /**
+     * Replaces the block at index {@code targetIndex} in the target file with the block at index
+     * {@code sourceIndex} in the source file, sharing it between the two files rather than copying
+     * it. If the source block is a hole, the target block becomes a hole; it must not be compressed.
+     * The block the target held at that index is freed. Neither file may be memory mapped.
+     */
+    public void shareBlock(
+            RegularFile source, int sourceIndex, RegularFile target, int targetIndex) {
+        ByteBuffer oldBlock;
+        boolean freed = false;
+        shareLock.lock();
+        try {
+            ByteBuffer block = source.getBlock(sourceIndex);
+            SharedBlock share = source.getShare(sourceIndex);
+            if (block != null) {
+                if (share == null) {
+                    share = new SharedBlock(1);
+                    source.setBlock(sourceIndex, block, share);
+                }
+                // referenced before freeing the old target block, which may be the same block
+                addReference(share);
+            }
+
+            oldBlock = target.getBlock(targetIndex);
+            byte[] oldData = target.getCompressedBlock(targetIndex);
+            if (oldData != null) {
+                removeCompressed(oldData);
+            }
+            if (oldBlock != null) {
+                SharedBlock oldShare = target.getShare(targetIndex);
+                if (oldShare == null || removeReference(oldShare)) {
+                    freed = true;
+                    if (oldShare != null && oldShare.frozen) {
+                        oldBlock = null; // can't be reused
+                    }
+                }
+            }
+
+            target.setBlock(targetIndex, block, share);
+        } finally {
+            shareLock.unlock();
+        }
+
+        if (freed) {
+            allocatedBlockCount.decrementAndGet();
+            if (oldBlock != null && isReusable(oldBlock) && reserveCacheSpace(1) == 1) {
+                magazines[magazineIndex()].add(oldBlock);
+            }
+        }
+    }
+
+    /**
+     * Replaces the shared block at the given index in the given file with a block owned by the file
+     * alone, so that the file can write to it.
+     *
+     * @throws IOException if the block needs to be copied but the disk is full
+     */
+    public void unshare(RegularFile file, int index) throws IOException {
+        shareLock.lock();
+        try {
+            if (takeSoleReference(file, index)) {
+                return;
+            }
+
+            SharedBlock share = file.getShare(index);
+            ByteBuffer block = file.getBlock(index);
+
+            // if this is the last reference to a frozen block, the copy replaces it on this disk
+            if (share.references > 1) {
+                reserve(1);
+            }
+
+            ByteBuffer copy = newBlock();
+            copy.duplicate().put(block.duplicate());
+            file.setBlock(index, copy, null);
+
+            removeReference(share);
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the shared block at the given index in the given file owned by the file alone without
+     * copying it, if no other file references it and it isn't frozen. This is the case for a block
+     * that is only shared because it's in the deduplication index, which it's then removed from.
+     * Returns whether the file now owns the block.
+     */
+    public boolean tryUnshare(RegularFile file, int index) {
+        shareLock.lock();
+        try {
+            return takeSoleReference(file, index);
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the shared reference to the block at the given index in the given file, leaving the
+     * block to the file, if the file holds the only reference to it and it isn't frozen. Returns
+     * whether it did. The caller must hold the share lock.
+     */
+    private boolean takeSoleReference(RegularFile file, int index) {
+        SharedBlock share = file.getShare(index);
+        if (share.references > 1 || share.frozen) {
+            return false;
+        }
+        removeReference(share);
+        file.setBlock(index, file.getBlock(index), null);
+        return true;
+    }
+
+    /**
+     * Freezes all blocks of the given file, so that they can be shared with files of other disks.
+     * The file must not be memory mapped.
+     */
+    public void freeze(RegularFile file) {
+        shareLock.lock();
+        try {
+            for (int i = 0; i < file.blockCount(); i++) {
+                SharedBlock share = file.getShare(i);
+                if (share == null && file.getBlock(i) != null) {
+                    share = new SharedBlock(1);
+                    file.setBlock(i, file.getBlock(i), share);
+                }
+                if (share != null) {
+                    share.frozen = true;
+                }
+            }
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
+    /**
+     * Adds all blocks of the given source file, which belongs to another disk and has been {@linkplain
+     * #freeze frozen}, to the end of the given target file. The given map tracks the reference count
+     * on this disk for each source reference count, so that blocks shared by several source files
+     * are only allocated once on this disk.
+     *
+     * @throws IOException if the disk doesn't have enough space for the blocks
+     */
+    public void adopt(RegularFile source, RegularFile target, Map<SharedBlock, SharedBlock> shares)
+            throws IOException {
+        shareLock.lock();
+        try {
+            for (int i = 0; i < source.blockCount(); i++) {
+                SharedBlock sourceShare = source.getShare(i);
+                if (sourceShare == null) {
+                    addHoleOrCompressedBlock(source, i, target);
+                    continue;
+                }
+                SharedBlock share = shares.get(sourceShare);
+                if (share == null) {
+                    reserve(1);
+                    share = new SharedBlock(0);
+                    share.frozen = true;
+                    shares.put(sourceShare, share);
+                }
+                addReference(share);
+                target.addBlock(source.getBlock(i), share);
+            }
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
+    /** Adds a reference to the given shared block. The caller must hold the share lock. */
+    private void addReference(SharedBlock share) {
+        if (share.references++ > 0) {
+            extraReferenceCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a reference to the given shared block, returning whether it was the last reference on
+     * this disk. The caller must hold the share lock.
+     */
+    private boolean removeReference(SharedBlock share) {
+        if (--share.references > 0) {
+            extraReferenceCount.decrementAndGet();
+            return false;
+        }
+        if (share.block != null) {
+            // the block may now be written to or reused
+            deduplicationIndex.remove(share.hash, share);
+        }
+        return true;
+    }
+
+    /**
+     * Deduplicates the full blocks of the given file: each block with the same content as a block
+     * in the deduplication index is replaced by a shared reference to that block and freed, and
+     * each other block is added to the index. Blocks that are already shared or compressed are left
+     * as they are. Does nothing if this disk doesn't deduplicate blocks or the file is memory mapped.
+     * The caller must hold the file's write lock.
+     */
+    public void deduplicate(RegularFile file) {
+        deduplicate(file, 0, file.blockCount());
+    }
+
+    /**
+     * Deduplicates the full blocks of the given file from index {@code start} (inclusive) to {@code
+     * end} (exclusive), like {@link #deduplicate(RegularFile)}. The caller must hold the file's write
+     * lock.
+     */
+    public void deduplicate(RegularFile file, int start, int end) {
+        if (deduplicationIndex == null || file.isMapped()) {
+            return;
+        }
+
+        for (int i = start; i < end; i++) {
+            ByteBuffer block = file.getBlock(i);
+            if (block == null || block.capacity() != blockSize || file.getShare(i) != null) {
+                continue;
+            }
+
+            ByteBuffer content = block.duplicate();
+            content.clear();
+            int hash = content.hashCode();
+
+            boolean duplicate = false;
+            shareLock.lock();
+            try {
+                SharedBlock indexed = deduplicationIndex.get(hash);
+                if (indexed == null) {
+                    SharedBlock share = new SharedBlock(1);
+                    share.block = block;
+                    share.hash = hash;
+                    file.setBlock(i, block, share);
+                    deduplicationIndex.put(hash, share);
+                } else if (content.equals(indexed.block.duplicate().clear())) {
+                    addReference(indexed);
+                    file.setBlock(i, indexed.block, indexed);
+                    duplicate = true;
+                }
+                // otherwise the content differs from the indexed block with the same hash, and the
+                // block is left unshared
+            } finally {
+                shareLock.unlock();
+            }
+
+            if (duplicate) {
+                allocatedBlockCount.decrementAndGet();
+                if (isReusable(block) && reserveCacheSpace(1) == 1) {
+                    magazines[magazineIndex()].add(block);
+                }
+            }
+        }
     }
 
     /** Frees all blocks in the given file. */
@@ -151,14 +904,236 @@ final class HeapDisk {
         free(file, file.blockCount());
     }
 
-    /** Frees the last {@code count} blocks from the given file. */
-    public synchronized void free(RegularFile file, int count) {
-        int remainingCacheSpace = maxCachedBlockCount - blockCache.blockCount();
-        if (remainingCacheSpace > 0) {
-            file.copyBlocksTo(blockCache, Math.min(count, remainingCacheSpace));
+    /**
+     * Frees the last {@code count} blocks from the given file. Shared blocks that are still
+     * referenced by other files are only removed from the file.
+     */
+    public void free(RegularFile file, int count) {
+        int end = file.blockCount();
+        int start = end - count;
+
+        // the share lock is only needed if the file may hold shared blocks
+        boolean mayHoldSharedBlocks = file.mayHoldSharedBlocks();
+        if (mayHoldSharedBlocks) {
+            shareLock.lock();
+        }
+
+        // move the blocks that are actually freed and may be reused to the start of the range
+        int freed = 0;
+        int reusable = 0;
+        try {
+            for (int i = start; i < end; i++) {
+                if (file.getBlock(i) == null) {
+                    // a hole, which isn't allocated, or a compressed block
+                    byte[] data = file.getCompressedBlock(i);
+                    if (data != null) {
+                        removeCompressed(data);
+                    }
+                    continue;
+                }
+                SharedBlock share = file.getShare(i);
+                if (share == null || removeReference(share)) {
+                    freed++;
+                    if ((share == null || !share.frozen) && isReusable(file.getBlock(i))) {
+                        file.setBlock(start + reusable++, file.getBlock(i), null);
+                    }
+                }
+            }
+        } finally {
+            if (mayHoldSharedBlocks) {
+                shareLock.unlock();
+            }
+        }
+        allocatedBlockCount.addAndGet(-freed);
+
+        checkIdleBlocks();
+
+        // blocks of mapped files may still be in use by a mapping, so they can't be reused
+        if (reusable > 0 && !file.isMapped()) {
+            int toCache = reserveCacheSpace(reusable);
+            if (toCache > 0) {
+                magazines[magazineIndex()].add(file, start, toCache);
+            }
         }
-        file.truncateBlocks(file.blockCount() - count);
+        file.truncateBlocks(start);
+        releaseSpareBlocks(file);
+    }
+
+    /**
+     * A stack of free blocks cached for reuse, with its own lock. If the disk has a soft cache, the
+     * magazine only keeps its blocks softly reachable and starts over empty when the garbage
+     * collector has cleared them.
+     */
+    private final class Magazine {
 
-        allocatedBlockCount -= count;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        // @GuardedBy("lock")
+        private ByteBuffer[] blocks;
+
+        // @GuardedBy("lock")
+        private SoftReference<ByteBuffer[]> softBlocks;
+
+        // @GuardedBy("lock")
+        private int count;
+
+        /**
+         * The lowest count since the last pass for idle blocks; the blocks below it haven't been
+         * taken since then.
+         */
+        // @GuardedBy("lock")
+        private int lowWater;
+
+        Magazine() {
+            setBlocks(new ByteBuffer[8]);
+        }
+
+        /** Removes and returns the last block of the magazine, or returns null if it's empty. */
+        ByteBuffer take() {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = blocks();
+                if (count == 0) {
+                    return null;
+                }
+                ByteBuffer block = blocks[--count];
+                blocks[count] = null;
+                lowWater = Math.min(lowWater, count);
+                return block;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves up to {@code max} blocks from the end of the magazine to the end of the given file, in
+         * order. Returns the number of blocks moved.
+         */
+        int takeTo(RegularFile file, int max) {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = blocks();
+                int n = Math.min(max, count);
+                for (int i = count - n; i < count; i++) {
+                    file.addBlock(blocks[i]);
+                    blocks[i] = null;
+                }
+                count -= n;
+                lowWater = Math.min(lowWater, count);
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Adds the given block to the end of the magazine. */
+        void add(ByteBuffer block) {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = ensureCapacity(count + 1);
+                blocks[count++] = block;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds the {@code n} blocks starting at index {@code start} in the given file to the end of the
+         * magazine.
+         */
+        void add(RegularFile file, int start, int n) {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = ensureCapacity(count + n);
+                for (int i = 0; i < n; i++) {
+                    blocks[count++] = file.getBlock(start + i);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Releases up to {@code max} blocks from the bottom of the magazine, where the blocks that
+         * have been cached the longest are. Returns the number of blocks released.
+         */
+        int release(int max) {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = blocks();
+                int n = Math.min(max, count);
+                if (n > 0) {
+                    System.arraycopy(blocks, n, blocks, 0, count - n);
+                    Arrays.fill(blocks, count - n, count, null);
+                    count -= n;
+                    lowWater = Math.max(0, lowWater - n);
+                    cachedBlockCount.addAndGet(-n);
+                }
+                return n;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Releases all blocks of the magazine, adding them to the given list. */
+        void releaseAll(List<ByteBuffer> released) {
+            lock.lock();
+            try {
+                ByteBuffer[] blocks = blocks();
+                for (int i = 0; i < count; i++) {
+                    released.add(blocks[i]);
+                    blocks[i] = null;
+                }
+                cachedBlockCount.addAndGet(-count);
+                count = 0;
+                lowWater = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Releases the blocks that haven't been taken since the last call to this method. */
+        void releaseIdle() {
+            lock.lock();
+            try {
+                release(lowWater);
+                lowWater = count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Returns the array of blocks, first emptying the magazine if the garbage collector has
+         * cleared it.
+         */
+        private ByteBuffer[] blocks() {
+            ByteBuffer[] result = softBlocks == null ? blocks : softBlocks.get();
+            if (result == null) {
+                cachedBlockCount.addAndGet(-count);
+                count = 0;
+                lowWater = 0;
+                result = new ByteBuffer[8];
+                setBlocks(result);
+            }
+            return result;
+        }
+
+        private ByteBuffer[] ensureCapacity(int capacity) {
+            ByteBuffer[] result = blocks();
+            if (capacity > result.length) {
+                result = Arrays.copyOf(result, nextPowerOf2(capacity));
+                setBlocks(result);
+            }
+            return result;
+        }
+
+        private void setBlocks(ByteBuffer[] array) {
+            if (softCache) {
+                softBlocks = new SoftReference<>(array);
+            } else {
+                blocks = array;
+            }
+        }
     }
 }
@@ -0,0 +1,141 @@
+package io.roastedroot.zerofs;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the results of looking up absolute paths in a {@link FileTree}.
+ *
+ * <p>The cache is direct-mapped: a path can only be stored in the slot selected by its hash, and
+ * caching a path replaces whatever that slot held. Slots hold immutable objects, so no locking is
+ * needed; a thread racing with a put sees either the old or the new content of the slot.
+ *
+ * <p>Only lookups that found an existing file that is not a symbolic link are cached. Linking a new
+ * entry in a directory can't change the result of such a lookup, but unlinking one (to delete or
+ * move a file) can. Each cached result therefore records the {@linkplain Directory#unlinkCount()
+ * unlink counts} of the directories the lookup looked names up in, and is only used as long as none
+ * of them changed; deleting a file only invalidates the results of lookups that went through its
+ * directory. Paths are matched by the canonical form of their names, just like lookups in
+ * directories.
+ */
+final class LookupCache {
+
+    private final Slot[] slots;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+
+    /** Creates a cache holding at most {@code maxSize} results. */
+    LookupCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("maxSize (%s) must be positive", maxSize));
+        }
+        int size = Integer.highestOneBit(maxSize);
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the cached result of looking up the given absolute path, or {@code null} if there is no
+     * result for the path or a directory it depends on was modified since it was cached.
+     */
+    DirectoryEntry get(ZeroFsPath path) {
+        int hash = hash(path);
+        Slot slot = slots[hash & mask];
+        if (slot != null && slot.hash == hash && slot.matches(path) && slot.isValid()) {
+            hits.increment();
+            return slot.entry;
+        }
+        return null;
+    }
+
+    /**
+     * Caches the result of a lookup of the given path, which depends on the given directories. Does
+     * nothing if the lookup was found to be uncacheable.
+     */
+    void put(ZeroFsPath path, Dependencies dependencies, DirectoryEntry entry) {
+        if (dependencies.cacheable) {
+            int hash = hash(path);
+            slots[hash & mask] = new Slot(path, hash, dependencies, Objects.requireNonNull(entry));
+        }
+    }
+
+    /** Returns the number of lookups whose result was found in the cache. */
+    long hits() {
+        return hits.sum();
+    }
+
+    private static int hash(ZeroFsPath path) {
+        int hash = Objects.hashCode(path.root());
+        for (Name name : path.names()) {
+            hash = 31 * hash + name.hashCode();
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * The directories a lookup looked names up in, each with its unlink count from before the name
+     * was looked up in it. Recorded by the lookup as it goes.
+     */
+    static final class Dependencies {
+
+        private Directory[] directories = new Directory[8];
+        private int[] unlinkCounts = new int[8];
+        private int size;
+        private boolean cacheable = true;
+
+        /** Records that the lookup is about to look up a name in the given directory. */
+        void add(Directory directory) {
+            if (size == directories.length) {
+                directories = Arrays.copyOf(directories, size << 1);
+                unlinkCounts = Arrays.copyOf(unlinkCounts, size << 1);
+            }
+            directories[size] = directory;
+            unlinkCounts[size] = directory.unlinkCount();
+            size++;
+        }
+
+        /** Records that the result of the lookup depends on state that isn't tracked. */
+        void uncacheable() {
+            cacheable = false;
+        }
+    }
+
+    /** An immutable cached lookup result. */
+    private static final class Slot {
+
+        final Name root;
+        final List<Name> names;
+        final int hash;
+        final Directory[] directories;
+        final int[] unlinkCounts;
+        final DirectoryEntry entry;
+
+        Slot(ZeroFsPath path, int hash, Dependencies dependencies, DirectoryEntry entry) {
+            this.root = path.root();
+            this.names = path.names();
+            this.hash = hash;
+            this.directories = Arrays.copyOf(dependencies.directories, dependencies.size);
+            this.unlinkCounts = Arrays.copyOf(dependencies.unlinkCounts, dependencies.size);
+            this.entry = entry;
+        }
+
+        boolean matches(ZeroFsPath path) {
+            List<Name> otherNames = path.names();
+            return Objects.equals(root, path.root())
+                    && (names == otherNames || names.equals(otherNames));
+        }
+
+        boolean isValid() {
+            for (int i = 0; i < directories.length; i++) {
+                if (directories[i].unlinkCount() != unlinkCounts[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
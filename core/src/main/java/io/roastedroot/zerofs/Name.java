@@ -11,6 +11,11 @@ import java.util.Objects;
  * well as for {@code Path} equality and sort ordering) and a canonical string, which is used for
  * determining equality of the name during file lookup.
  *
+ * <p>As a file system may hold millions of names, a name is kept small: when its display and
+ * canonical strings are equal, as they are for most names, it holds a single string (which itself
+ * stores its characters as one byte each when they are all Latin-1), and it caches the hash code of
+ * its canonical string, which is needed for every directory lookup.
+ *
  * <p>Note: all factory methods return a constant name instance when given the original string "."
  * or "..", ensuring that those names can be accessed statically elsewhere in the code while still
  * being equal to any names created for those values, regardless of normalization settings.
@@ -49,24 +54,29 @@ final class Name {
 
     private final String display;
     private final String canonical;
+    private final int hash;
 
     private Name(String display, String canonical) {
         this.display = Objects.requireNonNull(display);
-        this.canonical = Objects.requireNonNull(canonical);
+        this.canonical = canonical.equals(display) ? display : canonical;
+        this.hash = canonical.hashCode();
     }
 
     @Override
     public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
         if (obj instanceof Name) {
             Name other = (Name) obj;
-            return canonical.equals(other.canonical);
+            return hash == other.hash && canonical.equals(other.canonical);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(canonical);
+        return hash;
     }
 
     @Override
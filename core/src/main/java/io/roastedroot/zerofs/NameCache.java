@@ -0,0 +1,45 @@
+package io.roastedroot.zerofs;
+
+/**
+ * A bounded cache of the names created from non-ASCII strings by a {@link PathService}, so that
+ * names containing characters that need Unicode normalization or case folding are only normalized
+ * once while they're parsed repeatedly.
+ *
+ * <p>Like {@link LookupCache}, the cache is direct-mapped: a string can only be stored in the slot
+ * selected by its hash, and caching a name replaces whatever that slot held. Slots hold immutable
+ * objects, so no locking is needed.
+ */
+final class NameCache {
+
+    /** The number of names cached by each file system whose names are normalized. */
+    static final int SIZE = 1024;
+
+    private final Slot[] slots = new Slot[SIZE];
+
+    /** Returns the cached name for the given string, or null if it isn't cached. */
+    Name get(String string) {
+        Slot slot = slots[index(string)];
+        return slot != null && slot.string.equals(string) ? slot.name : null;
+    }
+
+    /** Caches the given name, created from the given string. */
+    void put(String string, Name name) {
+        slots[index(string)] = new Slot(string, name);
+    }
+
+    private static int index(String string) {
+        int hash = string.hashCode();
+        return (hash ^ (hash >>> 16)) & (SIZE - 1);
+    }
+
+    private static final class Slot {
+
+        private final String string;
+        private final Name name;
+
+        Slot(String string, Name name) {
+            this.string = string;
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.roastedroot.zerofs;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Intern table for the names of a file system, keyed by the strings the names were parsed from.
+ * Parsing a string that was parsed before returns the same {@link Name} instance as long as that
+ * name is still in use, so that the names of parsed paths and of directory entries are shared and
+ * the string doesn't have to be normalized again.
+ *
+ * <p>Names are only weakly referenced by the table. The entries for names that were garbage
+ * collected are removed as new names are interned.
+ */
+final class NameTable {
+
+    private final ConcurrentMap<String, NameReference> names = new ConcurrentHashMap<>();
+    private final ReferenceQueue<Name> queue = new ReferenceQueue<>();
+
+    /** Returns the interned name parsed from the given string, or null if there is none. */
+    Name get(String string) {
+        NameReference ref = names.get(string);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Interns the given name, parsed from the given string, and returns it, unless another name was
+     * interned for the string in the meantime, in which case that name is returned instead.
+     */
+    Name intern(String string, Name name) {
+        expungeStaleEntries();
+
+        // share the name's own string as the key when possible
+        String display = name.toString();
+        String key = display.equals(string) ? display : string;
+        NameReference ref = new NameReference(key, name, queue);
+        while (true) {
+            NameReference existing = names.putIfAbsent(key, ref);
+            if (existing == null) {
+                return name;
+            }
+            Name existingName = existing.get();
+            if (existingName != null) {
+                return existingName;
+            }
+            if (names.replace(key, existing, ref)) {
+                return name;
+            }
+        }
+    }
+
+    /** Returns the number of entries in the table, including those for collected names. */
+    int size() {
+        return names.size();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends Name> ref;
+        while ((ref = queue.poll()) != null) {
+            NameReference nameRef = (NameReference) ref;
+            names.remove(nameRef.key, nameRef);
+        }
+    }
+
+    private static final class NameReference extends WeakReference<Name> {
+
+        private final String key;
+
+        NameReference(String key, Name name, ReferenceQueue<Name> queue) {
+            super(name, queue);
+            this.key = key;
+        }
+    }
+}
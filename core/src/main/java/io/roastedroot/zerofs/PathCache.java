@@ -0,0 +1,76 @@
+package io.roastedroot.zerofs;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of the paths parsed by a {@link PathService}, keyed by the string they were
+ * parsed from. Paths are immutable, so the same instance can be returned each time a string is
+ * parsed.
+ *
+ * <p>Like {@link LookupCache}, the cache is direct-mapped: a string can only be stored in the slot
+ * selected by its hash, and caching a path replaces whatever that slot held. Slots hold immutable
+ * objects, so no locking is needed. The numbers of hits and misses are counted so that the
+ * effectiveness of the cache can be checked through the file store's attributes.
+ */
+final class PathCache {
+
+    private final Slot[] slots;
+    private final int mask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** Creates a cache holding at most {@code maxSize} paths. */
+    PathCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(
+                    String.format("maxSize (%s) must be positive", maxSize));
+        }
+        int size = Integer.highestOneBit(maxSize);
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+    }
+
+    /** Returns the cached path parsed from the given string, or {@code null} if there is none. */
+    ZeroFsPath get(String string) {
+        Slot slot = slots[index(string)];
+        if (slot != null && slot.string.equals(string)) {
+            hits.increment();
+            return slot.path;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /** Caches the given path, parsed from the given string. */
+    void put(String string, ZeroFsPath path) {
+        slots[index(string)] = new Slot(string, Objects.requireNonNull(path));
+    }
+
+    /** Returns the number of times a path was found in the cache. */
+    long hits() {
+        return hits.sum();
+    }
+
+    /** Returns the number of times a path was not found in the cache. */
+    long misses() {
+        return misses.sum();
+    }
+
+    private int index(String string) {
+        int hash = string.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static final class Slot {
+
+        private final String string;
+        private final ZeroFsPath path;
+
+        Slot(String string, ZeroFsPath path) {
+            this.string = string;
+            this.path = path;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package io.roastedroot.zerofs;
 
+import static io.roastedroot.zerofs.Util.isAscii;
 import static io.roastedroot.zerofs.Util.toLowerCase;
 
 import java.text.Normalizer;
@@ -13,6 +14,10 @@ import java.util.regex.Pattern;
  * Configuration.Builder} when creating a ZeroFs file system instance and are automatically applied
  * to paths in the file system.
  *
+ * <p>ASCII strings are already in every Unicode normalization form and fold case the same way in
+ * Unicode as in ASCII, so the Unicode normalizations handle them without calling into {@link
+ * Normalizer} or the general case mappings.
+ *
  * @author Colin Decker
  */
 public enum PathNormalization implements Function<String, String> {
@@ -29,7 +34,7 @@ public enum PathNormalization implements Function<String, String> {
     NFC(Pattern.CANON_EQ) {
         @Override
         public String apply(String string) {
-            return Normalizer.normalize(string, Normalizer.Form.NFC);
+            return isAscii(string) ? string : Normalizer.normalize(string, Normalizer.Form.NFC);
         }
     },
 
@@ -37,7 +42,7 @@ public enum PathNormalization implements Function<String, String> {
     NFD(Pattern.CANON_EQ) {
         @Override
         public String apply(String string) {
-            return Normalizer.normalize(string, Normalizer.Form.NFD);
+            return isAscii(string) ? string : Normalizer.normalize(string, Normalizer.Form.NFD);
         }
     },
 
@@ -59,7 +64,7 @@ public enum PathNormalization implements Function<String, String> {
         @Override
         public String apply(String string) {
             // TODO: is this a viable implementation?
-            return string.toLowerCase(Locale.ROOT);
+            return isAscii(string) ? toLowerCase(string) : string.toLowerCase(Locale.ROOT);
         }
     },
 
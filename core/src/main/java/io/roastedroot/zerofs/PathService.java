@@ -1,5 +1,6 @@
 package io.roastedroot.zerofs;
 
+import static io.roastedroot.zerofs.Util.isAscii;
 import static java.nio.file.LinkOption.NOFOLLOW_LINKS;
 import static java.util.Comparator.nullsLast;
 
@@ -42,6 +43,15 @@ final class PathService implements Comparator<ZeroFsPath> {
     private final Comparator<Name> rootComparator;
     private final Comparator<Iterable<Name>> namesComparator;
 
+    /** The table of interned names, or null if names aren't interned. */
+    private final NameTable nameTable;
+
+    /** The cache of names created from non-ASCII strings, or null if names aren't normalized. */
+    private final NameCache nameCache;
+
+    /** The cache of parsed paths, or null if parsed paths aren't cached. */
+    private final PathCache pathCache;
+
     private volatile FileSystem fileSystem;
     private volatile ZeroFsPath emptyPath;
 
@@ -50,7 +60,9 @@ final class PathService implements Comparator<ZeroFsPath> {
                 config.pathType,
                 config.nameDisplayNormalization,
                 config.nameCanonicalNormalization,
-                config.pathEqualityUsesCanonicalForm);
+                config.pathEqualityUsesCanonicalForm,
+                config.nameInterning,
+                config.pathCacheSize);
     }
 
     PathService(
@@ -58,6 +70,22 @@ final class PathService implements Comparator<ZeroFsPath> {
             Iterable<PathNormalization> displayNormalizations,
             Iterable<PathNormalization> canonicalNormalizations,
             boolean equalityUsesCanonicalForm) {
+        this(
+                type,
+                displayNormalizations,
+                canonicalNormalizations,
+                equalityUsesCanonicalForm,
+                false,
+                0);
+    }
+
+    PathService(
+            PathType type,
+            Iterable<PathNormalization> displayNormalizations,
+            Iterable<PathNormalization> canonicalNormalizations,
+            boolean equalityUsesCanonicalForm,
+            boolean nameInterning,
+            int pathCacheSize) {
         this.type = Objects.requireNonNull(type);
         this.displayNormalizations = new TreeSet<>();
         Iterator<PathNormalization> displayNormalizationsIter = displayNormalizations.iterator();
@@ -76,6 +104,21 @@ final class PathService implements Comparator<ZeroFsPath> {
                 equalityUsesCanonicalForm ? CANONICAL_ROOT_COMPARATOR : DISPLAY_ROOT_COMPARATOR;
         this.namesComparator =
                 equalityUsesCanonicalForm ? CANONICAL_NAMES_COMPARATOR : DISPLAY_NAMES_COMPARATOR;
+        this.nameTable = nameInterning ? new NameTable() : null;
+        this.nameCache =
+                normalizes(this.displayNormalizations) || normalizes(this.canonicalNormalizations)
+                        ? new NameCache()
+                        : null;
+        this.pathCache = pathCacheSize == 0 ? null : new PathCache(pathCacheSize);
+    }
+
+    private static boolean normalizes(Set<PathNormalization> normalizations) {
+        for (PathNormalization normalization : normalizations) {
+            if (normalization != PathNormalization.NONE) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /** Sets the file system to use for created paths. */
@@ -92,6 +135,11 @@ final class PathService implements Comparator<ZeroFsPath> {
         return fileSystem;
     }
 
+    /** Returns the cache of parsed paths, or null if parsed paths aren't cached. */
+    PathCache pathCache() {
+        return pathCache;
+    }
+
     /** Returns the default path separator. */
     public String getSeparator() {
         return type.getSeparator();
@@ -119,10 +167,36 @@ final class PathService implements Comparator<ZeroFsPath> {
             case "..":
                 return Name.PARENT;
             default:
-                String display = PathNormalization.normalize(name, displayNormalizations);
-                String canonical = PathNormalization.normalize(name, canonicalNormalizations);
-                return Name.create(display, canonical);
+                NameTable table = nameTable;
+                if (table != null) {
+                    Name interned = table.get(name);
+                    if (interned != null) {
+                        return interned;
+                    }
+                }
+
+                Name result = createName(name);
+                return table == null ? result : table.intern(name, result);
+        }
+    }
+
+    private Name createName(String string) {
+        NameCache cache = nameCache;
+        boolean cacheable = cache != null && !isAscii(string);
+        if (cacheable) {
+            Name cached = cache.get(string);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        String display = PathNormalization.normalize(string, displayNormalizations);
+        String canonical = PathNormalization.normalize(string, canonicalNormalizations);
+        Name name = Name.create(display, canonical);
+        if (cacheable) {
+            cache.put(string, name);
         }
+        return name;
     }
 
     /** Returns the {@link Name} forms of the given strings. */
@@ -185,17 +259,32 @@ final class PathService implements Comparator<ZeroFsPath> {
 
     /** Parses the given strings as a path. */
     public ZeroFsPath parsePath(String first, String... more) {
-        List<String> args = new ArrayList<>();
-        if (NOT_EMPTY.test(first)) {
-            args.add(first);
-        }
-        for (String e : more) {
-            if (NOT_EMPTY.test(e)) {
-                args.add(e);
+        String joined;
+        if (more.length == 0) {
+            joined = Objects.requireNonNull(first);
+        } else {
+            List<String> args = new ArrayList<>();
+            if (NOT_EMPTY.test(first)) {
+                args.add(first);
+            }
+            for (String e : more) {
+                if (NOT_EMPTY.test(e)) {
+                    args.add(e);
+                }
             }
+            joined = type.join(args.toArray(String[]::new));
+        }
+
+        PathCache cache = pathCache;
+        if (cache == null) {
+            return toPath(type.parsePath(joined));
+        }
+        ZeroFsPath path = cache.get(joined);
+        if (path == null) {
+            path = toPath(type.parsePath(joined));
+            cache.put(joined, path);
         }
-        String joined = type.join(args.toArray(String[]::new));
-        return toPath(type.parsePath(joined));
+        return path;
     }
 
     private ZeroFsPath toPath(PathType.ParseResult parsed) {
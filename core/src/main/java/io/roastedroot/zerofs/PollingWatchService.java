@@ -21,7 +21,7 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of {@link WatchService} that polls for changes to directories at registered paths.
@@ -30,25 +30,6 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 final class PollingWatchService extends AbstractWatchService {
 
-    private static class ZeroFsThreadFactory implements ThreadFactory {
-        private final String nameFormat;
-        private final boolean daemon;
-        private final AtomicInteger count = new AtomicInteger(0);
-
-        public ZeroFsThreadFactory(String nameFormat, boolean daemon) {
-            this.nameFormat = nameFormat;
-            this.daemon = daemon;
-        }
-
-        @Override
-        public Thread newThread(Runnable r) {
-            String threadName = String.format(nameFormat, count.getAndIncrement());
-            Thread thread = new Thread(r, threadName);
-            thread.setDaemon(daemon);
-            return thread;
-        }
-    }
-
     /**
      * Thread factory for polling threads, which should be daemon threads so as not to keep the VM
      * running if the user doesn't close the watch service or the file system.
@@ -69,6 +50,10 @@ final class PollingWatchService extends AbstractWatchService {
     final long interval;
     final TimeUnit timeUnit;
 
+    /** Lock guarding the polling state, and held while polling. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // @GuardedBy("lock")
     private ScheduledFuture<?> pollingFuture;
 
     PollingWatchService(
@@ -100,11 +85,14 @@ final class PollingWatchService extends AbstractWatchService {
 
         Snapshot snapshot = takeSnapshot(path);
 
-        synchronized (this) {
+        lock.lock();
+        try {
             snapshots.put(key, snapshot);
             if (pollingFuture == null) {
                 startPolling();
             }
+        } finally {
+            lock.unlock();
         }
 
         return key;
@@ -126,16 +114,26 @@ final class PollingWatchService extends AbstractWatchService {
         return ((ZeroFsFileSystem) path.getFileSystem()).getDefaultView() == view;
     }
 
-    synchronized boolean isPolling() {
-        return pollingFuture != null;
+    boolean isPolling() {
+        lock.lock();
+        try {
+            return pollingFuture != null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void cancelled(Key key) {
-        snapshots.remove(key);
+    public void cancelled(Key key) {
+        lock.lock();
+        try {
+            snapshots.remove(key);
 
-        if (snapshots.isEmpty()) {
-            stopPolling();
+            if (snapshots.isEmpty()) {
+                stopPolling();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -143,14 +141,17 @@ final class PollingWatchService extends AbstractWatchService {
     public void close() {
         super.close();
 
-        synchronized (this) {
-            // synchronize to ensure no new
+        lock.lock();
+        try {
+            // lock to ensure no new
             for (Key key : snapshots.keySet()) {
                 key.cancel();
             }
 
             pollingService.shutdown();
             fileSystemState.unregister(this);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -168,7 +169,8 @@ final class PollingWatchService extends AbstractWatchService {
             new Runnable() {
                 @Override
                 public void run() {
-                    synchronized (PollingWatchService.this) {
+                    lock.lock();
+                    try {
                         for (Map.Entry<Key, Snapshot> entry : snapshots.entrySet()) {
                             Key key = entry.getKey();
                             Snapshot previousSnapshot = entry.getValue();
@@ -187,6 +189,8 @@ final class PollingWatchService extends AbstractWatchService {
                                 key.cancel();
                             }
                         }
+                    } finally {
+                        lock.unlock();
                     }
                 }
             };
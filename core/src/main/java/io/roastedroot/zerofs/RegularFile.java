@@ -9,42 +9,148 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
 
 /**
- * A mutable, resizable store for bytes. Bytes are stored in fixed-sized byte arrays (blocks)
- * allocated by a {@link HeapDisk}.
+ * A mutable, resizable store for bytes. Bytes are stored in fixed-sized buffers (blocks) allocated
+ * by a {@link HeapDisk}. Depending on the disk's {@link BlockStorage}, blocks are either backed by
+ * byte arrays or by direct memory; blocks are only accessed with absolute (index-based) operations
+ * or through duplicates, so their positions and limits are never changed.
+ *
+ * <p>A small file, whose content fits in a fraction of a block, stores it in a single block that is
+ * only as large as needed, rounded up to a power of 2. The block is replaced by a larger one as
+ * the file grows, until it reaches the normal block size; a file only has more than one block once
+ * its first block is a normal one. Small blocks count as full blocks against the size of the disk,
+ * but save the memory a full block would take.
+ *
+ * <p>Files may be sparse: writing past the end of a file leaves the blocks that are skipped over
+ * entirely as holes ({@code null} elements in the block list), which read as zeros and don't count
+ * as allocated on the disk until they are written to.
+ *
+ * <p>Blocks of a file that hasn't been read or written for a while may be {@linkplain
+ * #compressIfIdle compressed}. A compressed block is {@code null} in the block list, like a hole,
+ * with its compressed content in a parallel list. Reads decompress such blocks into temporary
+ * buffers, leaving them compressed until the file is written to or the next compression pass finds
+ * the file in use again. The last block decompressed for reading is kept until then, so that reading
+ * a block in small pieces only decompresses it once.
+ *
+ * <p>Changes to the size or the block list of a file require its write lock. Writes that only
+ * change the content of existing blocks may instead be done {@linkplain #writeInPlace in place}
+ * while holding the read lock, so that threads writing to different parts of the file don't block
+ * each other.
  *
  * @author Colin Decker
  */
 final class RegularFile extends File {
 
+    /** The capacity of the smallest block allocated for a small file. */
+    private static final int MIN_SMALL_BLOCK_SIZE = 64;
+
+    /**
+     * The initial length of the block list of a new file; most files are small, and the list grows
+     * as needed.
+     */
+    private static final int INITIAL_BLOCK_LIST_LENGTH = 4;
+
+    /**
+     * The number of blocks processed at a time when a closed file is deduplicated or an idle file is
+     * compressed, releasing the write lock between batches so that the file can still be read while
+     * it's being processed.
+     */
+    private static final int BATCH_BLOCK_COUNT = 64;
+
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
+    /**
+     * Locks the blocks being written in place, and the whole file while its blocks are being shared
+     * with other files, which changes which blocks may be written in place.
+     */
+    private final BlockRangeLock rangeLock = new BlockRangeLock();
+
     private final HeapDisk disk;
 
     /** Block list for the file. */
-    private byte[][] blocks;
+    private ByteBuffer[] blocks;
 
     /** Block count for the the file, which also acts as the head of the block list. */
     private int blockCount;
 
+    /**
+     * Reference counts of the blocks this file shares with other files, parallel to the block list,
+     * or {@code null} if the file has never held a shared block. A {@code null} element means that
+     * the block at that index is owned by this file alone.
+     */
+    private SharedBlock[] shares;
+
+    /**
+     * Compressed content of the blocks of this file that are compressed, parallel to the block list,
+     * or {@code null} if the file has never had a compressed block.
+     */
+    private byte[][] compressedBlocks;
+
+    /** The file is in use. */
+    private static final int ACTIVE = 0;
+
+    /** The file hasn't been used since the last compression pass. */
+    private static final int IDLE = 1;
+
+    /** The file hasn't been used since its blocks were compressed. */
+    private static final int COMPRESSED = 2;
+
+    /**
+     * Whether the file has been read or written since the last compression pass; one of {@link
+     * #ACTIVE}, {@link #IDLE} or {@link #COMPRESSED}.
+     */
+    private volatile int usage = ACTIVE;
+
+    /**
+     * The compressed block that was last decompressed for reading, or {@code null} if there is none.
+     * Dropped by each compression pass.
+     */
+    private volatile InflatedBlock inflated;
+
+    /**
+     * Whether the blocks of this file have been written since it was last {@linkplain
+     * HeapDisk#deduplicate deduplicated}.
+     */
+    private boolean modified;
+
     private long size;
 
+    /**
+     * The unused remainder of the extent the last blocks of this file were allocated from, from which
+     * the next blocks added to the file are taken, or {@code null} if there is none. Spare blocks
+     * aren't counted as allocated on the disk.
+     */
+    private ByteBuffer spareBlocks;
+
+    /**
+     * Regions of direct memory that currently back ranges of this file's blocks because they were
+     * memory mapped, or {@code null} if the file has never been mapped.
+     */
+    private List<MappedRegion> mappedRegions;
+
     /** Creates a new regular file with the given ID and using the given disk. */
     public static RegularFile create(int id, FileTime creationTime, HeapDisk disk) {
-        return new RegularFile(id, creationTime, disk, new byte[32][], 0, 0);
+        return new RegularFile(
+                id, creationTime, disk, new ByteBuffer[INITIAL_BLOCK_LIST_LENGTH], 0, 0);
     }
 
     RegularFile(
             int id,
             FileTime creationTime,
             HeapDisk disk,
-            byte[][] blocks,
+            ByteBuffer[] blocks,
             int blockCount,
             long size) {
         super(id, creationTime);
@@ -76,6 +182,12 @@ final class RegularFile extends File {
     private void expandIfNecessary(int minBlockCount) {
         if (minBlockCount > blocks.length) {
             this.blocks = Arrays.copyOf(blocks, nextPowerOf2(minBlockCount));
+            if (shares != null) {
+                this.shares = Arrays.copyOf(shares, blocks.length);
+            }
+            if (compressedBlocks != null) {
+                this.compressedBlocks = Arrays.copyOf(compressedBlocks, blocks.length);
+            }
         }
     }
 
@@ -91,6 +203,19 @@ final class RegularFile extends File {
         target.expandIfNecessary(targetEnd);
 
         System.arraycopy(this.blocks, start, target.blocks, target.blockCount, count);
+        if (this.shares != null) {
+            target.ensureShares();
+            System.arraycopy(this.shares, start, target.shares, target.blockCount, count);
+        }
+        if (this.compressedBlocks != null) {
+            target.ensureCompressedBlocks();
+            System.arraycopy(
+                    this.compressedBlocks,
+                    start,
+                    target.compressedBlocks,
+                    target.blockCount,
+                    count);
+        }
         target.blockCount = targetEnd;
     }
 
@@ -103,20 +228,119 @@ final class RegularFile extends File {
     /** Truncates the blocks of this file to the given block count. */
     void truncateBlocks(int count) {
         clear(blocks, count, blockCount - count);
+        if (shares != null) {
+            Arrays.fill(shares, count, blockCount, null);
+        }
+        if (compressedBlocks != null) {
+            Arrays.fill(compressedBlocks, count, blockCount, null);
+        }
         blockCount = count;
     }
 
     /** Adds the given block to the end of this file. */
-    void addBlock(byte[] block) {
+    void addBlock(ByteBuffer block) {
         expandIfNecessary(blockCount + 1);
         blocks[blockCount++] = block;
     }
 
+    /**
+     * Adds the given block, which is shared with other files with the given reference count, to the
+     * end of this file.
+     */
+    void addBlock(ByteBuffer block, SharedBlock share) {
+        expandIfNecessary(blockCount + 1);
+        ensureShares();
+        shares[blockCount] = share;
+        blocks[blockCount++] = block;
+    }
+
+    /** Sets the spare blocks of this file, the unused remainder of an extent allocated to it. */
+    void setSpareBlocks(ByteBuffer spareBlocks) {
+        this.spareBlocks = spareBlocks;
+    }
+
+    /** Removes and returns the spare blocks of this file, or returns null if it has none. */
+    ByteBuffer removeSpareBlocks() {
+        ByteBuffer result = spareBlocks;
+        spareBlocks = null;
+        return result;
+    }
+
     /** Gets the block at the given index in this file. */
-    byte[] getBlock(int index) {
+    ByteBuffer getBlock(int index) {
         return blocks[index];
     }
 
+    /**
+     * Replaces the block at the given index in this file with the given block, which is shared with
+     * other files with the given reference count (or not shared if {@code share} is null).
+     */
+    void setBlock(int index, ByteBuffer block, SharedBlock share) {
+        blocks[index] = block;
+        if (share != null) {
+            ensureShares();
+        }
+        if (shares != null) {
+            shares[index] = share;
+        }
+        if (compressedBlocks != null) {
+            compressedBlocks[index] = null;
+        }
+    }
+
+    /**
+     * Returns the compressed content of the block at the given index, or {@code null} if the block
+     * isn't compressed.
+     */
+    byte[] getCompressedBlock(int index) {
+        return compressedBlocks == null ? null : compressedBlocks[index];
+    }
+
+    /** Replaces the block at the given index in this file with the given compressed content. */
+    void setCompressedBlock(int index, byte[] data) {
+        ensureCompressedBlocks();
+        blocks[index] = null;
+        compressedBlocks[index] = data;
+    }
+
+    /** Returns whether or not the block at the given index is a hole. */
+    private boolean isHole(int index) {
+        return blocks[index] == null && getCompressedBlock(index) == null;
+    }
+
+    /**
+     * Returns the reference count of the block at the given index if it is shared with other files,
+     * or {@code null} if this file owns the block.
+     */
+    SharedBlock getShare(int index) {
+        return shares == null ? null : shares[index];
+    }
+
+    /** Returns whether or not this file has ever held a block shared with other files. */
+    boolean mayHoldSharedBlocks() {
+        return shares != null;
+    }
+
+    private void ensureShares() {
+        if (shares == null) {
+            shares = new SharedBlock[blocks.length];
+        }
+    }
+
+    private void ensureCompressedBlocks() {
+        if (compressedBlocks == null) {
+            compressedBlocks = new byte[blocks.length][];
+        }
+    }
+
+    /**
+     * Returns whether or not some of this file's blocks may be shared with a memory mapping. Such
+     * blocks must not be reused by other files once freed.
+     */
+    boolean isMapped() {
+        return mappedRegions != null;
+    }
+
     // end of lower-level methods dealing with the blocks array
 
     /**
@@ -141,39 +365,164 @@ final class RegularFile extends File {
 
     @Override
     RegularFile copyWithoutContent(int id, FileTime creationTime) {
-        byte[][] copyBlocks = new byte[Math.max(blockCount * 2, 32)][];
+        ByteBuffer[] copyBlocks = new ByteBuffer[Math.max(blockCount, INITIAL_BLOCK_LIST_LENGTH)];
         return new RegularFile(id, creationTime, disk, copyBlocks, 0, size);
     }
 
+    /**
+     * Copies the content of this file to the given file. If both files use the same disk, the copy
+     * shares this file's blocks copy-on-write, so no bytes are copied until one of the files writes
+     * to a block.
+     */
     @Override
     void copyContentTo(File file) throws IOException {
         RegularFile copy = (RegularFile) file;
-        disk.allocate(copy, blockCount);
+        if (copy.disk == disk && !isMapped()) {
+            BlockRangeLock.Range range = rangeLock.lockUninterruptibly(0, Integer.MAX_VALUE);
+            try {
+                disk.share(this, copy);
+            } finally {
+                rangeLock.unlock(range);
+            }
+            return;
+        }
+
+        // blocks of a mapped file may be written through a mapping, so they can't be shared
+        copy.disk.allocate(copy, blockCount);
 
         for (int i = 0; i < blockCount; i++) {
-            byte[] block = blocks[i];
-            byte[] copyBlock = copy.blocks[i];
-            System.arraycopy(block, 0, copyBlock, 0, block.length);
+            copy(readableBlock(i), copy.blocks[i]);
         }
     }
 
+    /**
+     * Creates a copy of this file, with the same ID, creation time, size and content, that stores its
+     * content on the given disk (the disk of another file system). Other attributes are not copied.
+     * Unless this file is memory mapped, its blocks are {@linkplain HeapDisk#freeze frozen} and shared
+     * with the copy; the given map tracks which blocks were already shared with other files of the
+     * target disk. The caller must hold this file's read lock.
+     *
+     * @throws IOException if the target disk doesn't have enough space for the copy
+     */
+    RegularFile copyToDisk(HeapDisk targetDisk, Map<SharedBlock, SharedBlock> shares)
+            throws IOException {
+        RegularFile copy =
+                new RegularFile(
+                        id(),
+                        getCreationTime(),
+                        targetDisk,
+                        new ByteBuffer[Math.max(blockCount, INITIAL_BLOCK_LIST_LENGTH)],
+                        0,
+                        size);
+        if (isMapped()) {
+            // blocks of a mapped file may be written through a mapping, so they can't be shared
+            targetDisk.allocate(copy, blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                copy(readableBlock(i), copy.blocks[i]);
+            }
+        } else {
+            BlockRangeLock.Range range = rangeLock.lockUninterruptibly(0, Integer.MAX_VALUE);
+            try {
+                disk.freeze(this);
+            } finally {
+                rangeLock.unlock(range);
+            }
+            targetDisk.adopt(this, copy, shares);
+        }
+        return copy;
+    }
+
     @Override
     ReadWriteLock contentLock() {
         return lock;
     }
 
     // opened/closed/delete don't use the read/write lock... they only need to ensure that they are
-    // synchronized among themselves
+    // synchronized among themselves, which they do with a lock of their own rather than this file's
+    // monitor so that a virtual thread closing a stream doesn't pin its carrier thread
+    private final ReentrantLock openLock = new ReentrantLock();
 
     @Override
-    public synchronized void opened() {
-        openCount++;
+    public void opened() {
+        openLock.lock();
+        try {
+            openCount++;
+        } finally {
+            openLock.unlock();
+        }
+    }
+
+    /**
+     * Called when a stream or channel to this file is about to be opened after the file was looked
+     * up. Returns {@code false}, without counting the file as opened, if the file has been deleted
+     * since it was looked up.
+     */
+    public boolean tryOpen() {
+        openLock.lock();
+        try {
+            if (deleted) {
+                return false;
+            }
+            openCount++;
+            return true;
+        } finally {
+            openLock.unlock();
+        }
     }
 
     @Override
-    public synchronized void closed() {
-        if (--openCount == 0 && deleted) {
-            deleteContents();
+    public void closed() {
+        boolean deduplicate = false;
+        openLock.lock();
+        try {
+            if (--openCount == 0) {
+                if (deleted) {
+                    deleteContents();
+                } else if (lock.writeLock().tryLock()) {
+                    // spare blocks are only worth keeping while the file is being written, and the
+                    // blocks are only worth deduplicating once it has been written
+                    try {
+                        disk.releaseSpareBlocks(this);
+                        if (modified && disk.deduplicates()) {
+                            // the file is deduplicated after releasing the open lock, and is kept
+                            // open meanwhile so that its contents can't be deleted under it
+                            modified = false;
+                            openCount++;
+                            deduplicate = true;
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                }
+            }
+        } finally {
+            openLock.unlock();
+        }
+
+        if (deduplicate) {
+            try {
+                deduplicate();
+            } finally {
+                closed();
+            }
+        }
+    }
+
+    /**
+     * Deduplicates the blocks of this file on its disk, {@value #BATCH_BLOCK_COUNT} blocks at a time
+     * while holding the write lock.
+     */
+    private void deduplicate() {
+        for (int start = 0; ; start += BATCH_BLOCK_COUNT) {
+            lock.writeLock().lock();
+            try {
+                if (start >= blockCount) {
+                    return;
+                }
+                disk.deduplicate(this, start, Math.min(blockCount, start + BATCH_BLOCK_COUNT));
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
     }
 
@@ -182,12 +531,17 @@ final class RegularFile extends File {
      * are deleted if necessary.
      */
     @Override
-    public synchronized void deleted() {
-        if (links() == 0) {
-            deleted = true;
-            if (openCount == 0) {
-                deleteContents();
+    public void deleted() {
+        openLock.lock();
+        try {
+            if (links() == 0) {
+                deleted = true;
+                if (openCount == 0) {
+                    deleteContents();
+                }
             }
+        } finally {
+            openLock.unlock();
         }
     }
 
@@ -198,6 +552,9 @@ final class RegularFile extends File {
     private void deleteContents() {
         disk.free(this);
         size = 0;
+        if (mappedRegions != null) {
+            mappedRegions.clear();
+        }
     }
 
     /**
@@ -224,39 +581,114 @@ final class RegularFile extends File {
         return true;
     }
 
-    /** Prepares for a write of len bytes starting at position pos. */
+    /**
+     * Prepares for a write of len bytes starting at position pos. Blocks are only allocated for the
+     * bytes being written: whole blocks between the current size and pos are left as holes.
+     */
     private void prepareForWrite(long pos, long len) throws IOException {
         long end = pos + len;
+        int blockSize = disk.blockSize();
+        growSmallBlock(end);
 
-        // allocate any additional blocks needed
-        int lastBlockIndex = blockCount - 1;
-        int endBlockIndex = blockIndex(end - 1);
-
-        if (endBlockIndex > lastBlockIndex) {
-            int additionalBlocksNeeded = endBlockIndex - lastBlockIndex;
-            disk.allocate(this, additionalBlocksNeeded);
+        // zero bytes between current size and pos in the block containing the end of the file
+        if (pos > size) {
+            int blockIndex = blockIndex(size);
+            if (blockIndex < blockCount && !isHole(blockIndex)) {
+                int off = offsetInBlock(size);
+                zero(writableBlock(blockIndex), off, length(off, pos - size));
+            }
         }
 
-        // zero bytes between current size and pos
-        if (pos > size) {
-            long remaining = pos - size;
+        if (len == 0) {
+            if (pos > 0 && blockIndex(pos - 1) >= blockCount) {
+                addHoles(blockIndex(pos - 1) + 1 - blockCount);
+            }
+        } else {
+            int firstBlockIndex = blockIndex(pos);
+            int endBlockIndex = blockIndex(end - 1);
 
-            int blockIndex = blockIndex(size);
-            byte[] block = blocks[blockIndex];
-            int off = offsetInBlock(size);
+            if (firstBlockIndex > blockCount) {
+                addHoles(firstBlockIndex - blockCount);
+            }
+
+            // fill holes in the range, zeroing the bytes of each new block that are inside the
+            // file but aren't written
+            for (int i = firstBlockIndex; i <= endBlockIndex && i < blockCount; i++) {
+                if (isHole(i)) {
+                    long blockStart = (long) i * blockSize;
+                    ByteBuffer block = disk.allocateBlock();
+                    if (pos > blockStart) {
+                        zero(block, 0, (int) (pos - blockStart));
+                    }
+                    long zeroEnd = Math.min(blockStart + blockSize, size);
+                    if (zeroEnd > end) {
+                        zero(block, (int) (end - blockStart), (int) (zeroEnd - end));
+                    }
+                    blocks[i] = block;
+                }
+            }
 
-            remaining -= zero(block, off, length(off, remaining));
+            // allocate any additional blocks needed
+            int oldBlockCount = blockCount;
+            if (blockCount == 0 && smallBlockCapacity(end) < blockSize) {
+                addBlock(disk.allocateSmallBlock(smallBlockCapacity(end)));
 
-            while (remaining > 0) {
-                block = blocks[++blockIndex];
+                if (pos > 0) {
+                    zero(blocks[0], 0, (int) pos);
+                }
+            } else if (endBlockIndex >= blockCount) {
+                disk.allocate(this, endBlockIndex - blockCount + 1);
 
-                remaining -= zero(block, 0, length(remaining));
+                long blockStart = (long) firstBlockIndex * blockSize;
+                if (firstBlockIndex >= oldBlockCount && pos > blockStart) {
+                    zero(blocks[firstBlockIndex], 0, (int) (pos - blockStart));
+                }
             }
+        }
 
+        if (pos > size) {
             size = pos;
         }
     }
 
+    /**
+     * Returns the capacity of the block for a small file whose content ends at position {@code end},
+     * or the block size if the content doesn't fit in a small block.
+     */
+    private int smallBlockCapacity(long end) {
+        int blockSize = disk.blockSize();
+        if (end >= blockSize) {
+            return blockSize;
+        }
+        int capacity = Math.max(MIN_SMALL_BLOCK_SIZE, nextPowerOf2((int) end));
+        return Math.min(capacity, blockSize);
+    }
+
+    /**
+     * Replaces the block of a small file with a larger one if its content is about to grow to
+     * position {@code end} and doesn't fit in the block anymore.
+     */
+    private void growSmallBlock(long end) throws IOException {
+        if (blockCount == 0 || blocks[0] == null) {
+            return;
+        }
+        int oldCapacity = blocks[0].capacity();
+        if (oldCapacity == disk.blockSize() || end <= oldCapacity) {
+            return;
+        }
+        ByteBuffer block = writableBlock(0); // a shared block is replaced with a full block
+        int capacity = smallBlockCapacity(end);
+        if (block.capacity() < capacity) {
+            blocks[0] = disk.growSmallBlock(block, capacity);
+        }
+    }
+
+    /** Adds the given number of holes, which read as zeros and use no space, to the block list. */
+    private void addHoles(int count) {
+        expandIfNecessary(blockCount + count);
+        blockCount += count;
+    }
+
     /**
      * Writes the given byte to this file at position {@code pos}. {@code pos} may be greater than the
      * current size of this file, in which case this file is resized and all bytes between the current
@@ -267,9 +699,9 @@ final class RegularFile extends File {
     public int write(long pos, byte b) throws IOException {
         prepareForWrite(pos, 1);
 
-        byte[] block = blocks[blockIndex(pos)];
+        ByteBuffer block = writableBlock(blockIndex(pos));
         int off = offsetInBlock(pos);
-        block[off] = b;
+        block.put(off, b);
 
         if (pos >= size) {
             size = pos + 1;
@@ -296,7 +728,7 @@ final class RegularFile extends File {
         int remaining = len;
 
         int blockIndex = blockIndex(pos);
-        byte[] block = blocks[blockIndex];
+        ByteBuffer block = writableBlock(blockIndex);
         int offInBlock = offsetInBlock(pos);
 
         int written = put(block, offInBlock, b, off, length(offInBlock, remaining));
@@ -304,7 +736,7 @@ final class RegularFile extends File {
         off += written;
 
         while (remaining > 0) {
-            block = blocks[++blockIndex];
+            block = writableBlock(++blockIndex);
 
             written = put(block, 0, b, off, length(remaining));
             remaining -= written;
@@ -337,13 +769,13 @@ final class RegularFile extends File {
         }
 
         int blockIndex = blockIndex(pos);
-        byte[] block = blocks[blockIndex];
+        ByteBuffer block = writableBlock(blockIndex);
         int off = offsetInBlock(pos);
 
         put(block, off, buf);
 
         while (buf.hasRemaining()) {
-            block = blocks[++blockIndex];
+            block = writableBlock(++blockIndex);
 
             put(block, 0, buf);
         }
@@ -356,6 +788,50 @@ final class RegularFile extends File {
         return len;
     }
 
+    /**
+     * Writes all available bytes from buffer {@code buf} to this file starting at position {@code
+     * pos} if that can be done without changing the size or the block list of this file; that is, if
+     * the bytes are all within the file and the blocks they go to are allocated and not shared with
+     * other files. Returns the number of bytes written, or -1 if nothing was written because the write
+     * must instead be done with {@link #write(long, ByteBuffer)} while holding the write lock.
+     *
+     * <p>The caller only needs to hold the read lock. Writes to the same blocks are done one at a
+     * time, but writes to different blocks may be done concurrently.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting for another thread
+     *     writing to the same blocks
+     */
+    public int writeInPlace(long pos, ByteBuffer buf) throws InterruptedException {
+        int len = buf.remaining();
+        if (len == 0 || pos + len > size) {
+            return -1;
+        }
+
+        int firstBlockIndex = blockIndex(pos);
+        int lastBlockIndex = blockIndex(pos + len - 1);
+
+        used();
+        modified = true;
+        BlockRangeLock.Range range = rangeLock.lock(firstBlockIndex, lastBlockIndex);
+        try {
+            for (int i = firstBlockIndex; i <= lastBlockIndex; i++) {
+                // a block only shared through the deduplication index can be taken back
+                if (blocks[i] == null || (getShare(i) != null && !disk.tryUnshare(this, i))) {
+                    return -1;
+                }
+            }
+
+            put(blocks[firstBlockIndex], offsetInBlock(pos), buf);
+            for (int i = firstBlockIndex + 1; i <= lastBlockIndex; i++) {
+                put(blocks[i], 0, buf);
+            }
+        } finally {
+            rangeLock.unlock(range);
+        }
+
+        return len;
+    }
+
     /**
      * Writes all available bytes from each buffer in {@code bufs}, in order, to this file starting at
      * position {@code pos}. {@code pos} may be greater than the current size of this file, in which
@@ -390,6 +866,8 @@ final class RegularFile extends File {
             return 0;
         }
 
+        growSmallBlock(startPos + Math.min(count, disk.blockSize()));
+
         long remaining = count;
         long currentPos = startPos;
 
@@ -398,9 +876,9 @@ final class RegularFile extends File {
 
         outer:
         while (remaining > 0) {
-            byte[] block = blockForWrite(blockIndex);
+            ByteBuffer block = blockForWrite(blockIndex);
 
-            ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
+            ByteBuffer buf = slice(block, off, length(off, remaining));
             while (buf.hasRemaining()) {
                 int read = src.read(buf);
                 // Note: we stop if we read 0 bytes from the src; even though the src is not at EOF,
@@ -460,9 +938,9 @@ final class RegularFile extends File {
             return -1;
         }
 
-        byte[] block = blocks[blockIndex(pos)];
+        ByteBuffer block = readableBlock(blockIndex(pos));
         int off = offsetInBlock(pos);
-        return (block[off] & 0xFF);
+        return (block.get(off) & 0xFF);
     }
 
     /**
@@ -476,22 +954,13 @@ final class RegularFile extends File {
 
         if (bytesToRead > 0) {
             int remaining = bytesToRead;
-
-            int blockIndex = blockIndex(pos);
-            byte[] block = blocks[blockIndex];
-            int offsetInBlock = offsetInBlock(pos);
-
-            int read = get(block, offsetInBlock, b, off, length(offsetInBlock, remaining));
-            remaining -= read;
-            off += read;
-
             while (remaining > 0) {
-                int index = ++blockIndex;
-                block = blocks[index];
-
-                read = get(block, 0, b, off, length(remaining));
-                remaining -= read;
+                ByteBuffer run = readableRun(pos, remaining);
+                int read = run.remaining();
+                run.get(b, off, read);
+                pos += read;
                 off += read;
+                remaining -= read;
             }
         }
 
@@ -509,17 +978,12 @@ final class RegularFile extends File {
 
         if (bytesToRead > 0) {
             int remaining = bytesToRead;
-
-            int blockIndex = blockIndex(pos);
-            byte[] block = blocks[blockIndex];
-            int off = offsetInBlock(pos);
-
-            remaining -= get(block, off, buf, length(off, remaining));
-
             while (remaining > 0) {
-                int index = ++blockIndex;
-                block = blocks[index];
-                remaining -= get(block, 0, buf, length(remaining));
+                ByteBuffer run = readableRun(pos, remaining);
+                int read = run.remaining();
+                buf.put(run);
+                pos += read;
+                remaining -= read;
             }
         }
 
@@ -561,42 +1025,361 @@ final class RegularFile extends File {
 
         if (bytesToRead > 0) {
             long remaining = bytesToRead;
+            while (remaining > 0) {
+                ByteBuffer run = readableRun(pos, remaining);
+                int len = run.remaining();
+                while (run.hasRemaining()) {
+                    dest.write(run);
+                }
+                pos += len;
+                remaining -= len;
+            }
+        }
 
-            int blockIndex = blockIndex(pos);
-            byte[] block = blocks[blockIndex];
+        return Math.max(bytesToRead, 0); // don't return -1 for this method
+    }
+
+    /**
+     * Transfers up to {@code count} bytes starting at position {@code pos} in this file to the given
+     * target file, starting at position {@code targetPos} in the target. Returns the number of bytes
+     * transferred, possibly 0. As with {@link #write(long, ByteBuffer)}, {@code targetPos} may be
+     * greater than the current size of the target, in which case the target is grown first.
+     *
+     * <p>If both files use the same disk, neither is memory mapped and both positions are at the
+     * same offset in a block, whole blocks are shared copy-on-write with the target rather than
+     * copied; only the bytes of a partial block at the start or end of the range are copied.
+     *
+     * <p>The caller must hold this file's read lock and the target's write lock. The target must
+     * not be this file.
+     *
+     * @throws IOException if the target needs more blocks but the disk is full
+     */
+    public long transferTo(long pos, long count, RegularFile target, long targetPos)
+            throws IOException {
+        long bytesToRead = bytesToRead(pos, count);
+        if (bytesToRead <= 0) {
+            return 0;
+        }
+
+        long remaining = bytesToRead;
+        if (target.disk == disk
+                && !isMapped()
+                && !target.isMapped()
+                && offsetInBlock(pos) == offsetInBlock(targetPos)) {
+            int blockSize = disk.blockSize();
             int off = offsetInBlock(pos);
+            if (off != 0) {
+                int len = length(off, remaining);
+                target.write(targetPos, slice(readableBlock(blockIndex(pos)), off, len));
+                pos += len;
+                targetPos += len;
+                remaining -= len;
+            }
 
-            ByteBuffer buf = ByteBuffer.wrap(block, off, length(off, remaining));
-            while (buf.hasRemaining()) {
-                remaining -= dest.write(buf);
+            if (remaining >= blockSize) {
+                if (targetPos > target.size) {
+                    target.prepareForWrite(targetPos, 0);
+                }
+
+                // sharing blocks changes which blocks of this file may be written in place
+                BlockRangeLock.Range range = rangeLock.lockUninterruptibly(0, Integer.MAX_VALUE);
+                try {
+                    while (remaining >= blockSize) {
+                        int index = blockIndex(pos);
+                        int targetIndex = target.blockIndex(targetPos);
+                        if (getCompressedBlock(index) != null) {
+                            // compressed blocks can't be shared
+                            target.write(targetPos, readableBlock(index).duplicate());
+                        } else {
+                            if (targetIndex >= target.blockCount) {
+                                target.addHoles(targetIndex - target.blockCount + 1);
+                            }
+                            disk.shareBlock(this, index, target, targetIndex);
+                        }
+
+                        pos += blockSize;
+                        targetPos += blockSize;
+                        remaining -= blockSize;
+                        if (targetPos > target.size) {
+                            target.size = targetPos;
+                        }
+                    }
+                } finally {
+                    rangeLock.unlock(range);
+                }
             }
-            buf.clear();
+        }
 
-            while (remaining > 0) {
-                int index = ++blockIndex;
-                block = blocks[index];
+        // copy whatever couldn't be shared
+        while (remaining > 0) {
+            int off = offsetInBlock(pos);
+            int len = length(off, remaining);
+            target.write(targetPos, slice(readableBlock(blockIndex(pos)), off, len));
+            pos += len;
+            targetPos += len;
+            remaining -= len;
+        }
+
+        return bytesToRead;
+    }
+
+    /**
+     * Returns a direct buffer containing the {@code len} bytes starting at position {@code pos} in
+     * this file. If the file is smaller than {@code pos + len}, it is first grown to that size, with
+     * the new bytes set to 0.
+     *
+     * <p>If {@code shared} is true, the returned buffer shares its memory with the file: bytes
+     * written through the buffer are visible to reads of the file and vice versa. To make this
+     * possible, the blocks covering the range are moved to a single region of direct memory and
+     * replaced by slices of it. Mapping a range that is already covered by a region reuses that
+     * region; mapping a range that only overlaps existing regions moves their blocks to a new, larger
+     * region, after which buffers returned by earlier calls no longer see changes to the file. The
+     * same is true of any part of a buffer covering bytes that are later truncated from the file.
+     *
+     * <p>If {@code shared} is false, the returned buffer is a private copy of the bytes.
+     *
+     * @throws IOException if the file needs more blocks but the disk is full, or if the region of
+     *     memory that would be needed is too large
+     */
+    public ByteBuffer map(long pos, int len, boolean shared) throws IOException {
+        long end = pos + len;
+        if (end > size) {
+            prepareForWrite(end, 0);
+        }
+
+        if (!shared || len == 0) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(len);
+            read(pos, copy.duplicate());
+            return copy;
+        }
+
+        int blockSize = disk.blockSize();
+        int first = blockIndex(pos);
+        int last = blockIndex(end - 1);
 
-                buf = ByteBuffer.wrap(block, 0, length(remaining));
-                while (buf.hasRemaining()) {
-                    remaining -= dest.write(buf);
+        if (mappedRegions == null) {
+            mappedRegions = new ArrayList<>();
+        }
+
+        // reuse a region covering the whole range if there is one; otherwise, merge the range with
+        // all regions it overlaps, since a block can only be part of one region at a time
+        boolean merged;
+        do {
+            merged = false;
+            for (Iterator<MappedRegion> it = mappedRegions.iterator(); it.hasNext(); ) {
+                MappedRegion region = it.next();
+                if (!region.isAttached()) {
+                    it.remove();
+                } else if (region.first <= first && last <= region.last()) {
+                    return slice(region.memory, (int) (pos - (long) region.first * blockSize), len)
+                            .slice();
+                } else if (region.first <= last && first <= region.last()) {
+                    first = Math.min(first, region.first);
+                    last = Math.max(last, region.last());
+                    it.remove();
+                    merged = true;
                 }
-                buf.clear();
             }
+        } while (merged);
+
+        long regionSize = (long) (last - first + 1) * blockSize;
+        if (regionSize > Integer.MAX_VALUE) {
+            throw new IOException("mapped region too large: " + regionSize + " bytes");
         }
 
-        return Math.max(bytesToRead, 0); // don't return -1 for this method
+        MappedRegion region = new MappedRegion(first, ByteBuffer.allocateDirect((int) regionSize));
+        for (int i = 0; i < region.blocks.length; i++) {
+            ByteBuffer block = slice(region.memory, i * blockSize, blockSize).slice();
+            copy(writableBlock(first + i), block);
+            blocks[first + i] = block;
+            region.blocks[i] = block;
+        }
+        mappedRegions.add(region);
+
+        return slice(region.memory, (int) (pos - (long) first * blockSize), len).slice();
     }
 
     /** Gets the block at the given index, expanding to create the block if necessary. */
-    private byte[] blockForWrite(int index) throws IOException {
+    private ByteBuffer blockForWrite(int index) throws IOException {
         if (index >= blockCount) {
             int additionalBlocksNeeded = index - blockCount + 1;
             disk.allocate(this, additionalBlocksNeeded);
         }
 
+        return writableBlock(index);
+    }
+
+    /**
+     * Gets the existing block at the given index for writing to it. If the block is shared with other
+     * files, it's first replaced with a private copy.
+     *
+     * @throws IOException if a copy is needed but the disk is full
+     */
+    private ByteBuffer writableBlock(int index) throws IOException {
+        used();
+        modified = true;
+        if (getCompressedBlock(index) != null) {
+            disk.decompress(this, index);
+        } else if (blocks[index] == null) {
+            ByteBuffer block = disk.allocateBlock();
+            zero(block, 0, block.capacity());
+            blocks[index] = block;
+        } else if (shares != null && shares[index] != null) {
+            disk.unshare(this, index);
+        }
         return blocks[index];
     }
 
+    /**
+     * Gets the existing block at the given index for reading from it. Holes read as zeros, and
+     * compressed blocks are decompressed to a temporary block, which is reused while the same block
+     * is read again.
+     */
+    private ByteBuffer readableBlock(int index) {
+        used();
+        ByteBuffer block = blocks[index];
+        if (block != null) {
+            return block;
+        }
+        byte[] data = getCompressedBlock(index);
+        if (data == null) {
+            return disk.zeroBlock();
+        }
+        // compressed content is never modified, so the same content means the same block
+        InflatedBlock last = inflated;
+        if (last != null && last.data == data) {
+            return last.block;
+        }
+        block = ByteBuffer.allocate(disk.blockSize());
+        BlockCompression.decompress(data, block);
+        inflated = new InflatedBlock(data, block);
+        return block;
+    }
+
+    /** Records that this file was read or written since the last compression pass. */
+    private void used() {
+        if (usage != ACTIVE) {
+            usage = ACTIVE;
+        }
+    }
+
+    /**
+     * Compresses the blocks of this file if it hasn't been read or written since the last two calls
+     * to this method, or decompresses them if it has been used since they were compressed. Called
+     * periodically by a {@link ColdFileCompressor}, which passes the same deflater for all files it
+     * visits in a pass. Does nothing if another thread holds a lock on the file; blocks that are
+     * shared or memory mapped aren't compressed.
+     *
+     * <p>Blocks are compressed {@value #BATCH_BLOCK_COUNT} at a time, releasing the write lock
+     * between batches. If the file is used or locked by another thread in between, the rest of its
+     * blocks are left to the next call.
+     */
+    void compressIfIdle(Deflater deflater) {
+        if (!lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            inflated = null;
+            switch (usage) {
+                case ACTIVE:
+                    if (compressedBlocks != null) {
+                        decompressAll();
+                    }
+                    usage = IDLE;
+                    return;
+                case IDLE:
+                    break;
+                default:
+                    return;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        compressAll(deflater);
+    }
+
+    private void compressAll(Deflater deflater) {
+        int start = 0;
+        while (lock.writeLock().tryLock()) {
+            try {
+                if (usage != IDLE) {
+                    return;
+                }
+                if (isMapped() || start >= blockCount) {
+                    usage = COMPRESSED;
+                    return;
+                }
+                int end = Math.min(blockCount, start + BATCH_BLOCK_COUNT);
+                compressBlocks(start, end, deflater);
+                start = end;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void compressBlocks(int start, int end, Deflater deflater) {
+        int blockSize = disk.blockSize();
+        for (int i = start; i < end; i++) {
+            ByteBuffer block = blocks[i];
+            if (block != null
+                    && block.capacity() == blockSize
+                    && (getShare(i) == null || disk.tryUnshare(this, i))) {
+                byte[] data = BlockCompression.compress(block, deflater);
+                if (data != null) {
+                    disk.compress(this, i, data);
+                }
+            }
+        }
+    }
+
+    private void decompressAll() {
+        for (int i = 0; i < blockCount; i++) {
+            if (getCompressedBlock(i) != null) {
+                try {
+                    disk.decompress(this, i);
+                } catch (IOException e) {
+                    return; // the disk is full; leave the rest compressed
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer for reading up to {@code max} bytes starting at position {@code pos}, which
+     * must be inside the file. The buffer covers the rest of the block containing {@code pos} and
+     * extends over the following blocks for as long as they are adjacent slices of the same heap
+     * extent, so that a run of blocks can be processed with a single copy.
+     */
+    private ByteBuffer readableRun(long pos, long max) {
+        int blockSize = disk.blockSize();
+        int index = blockIndex(pos);
+        int off = offsetInBlock(pos);
+        ByteBuffer block = readableBlock(index);
+        int len = length(off, max);
+        if (len == max || !block.hasArray()) {
+            return slice(block, off, len);
+        }
+
+        byte[] array = block.array();
+        int start = block.arrayOffset() + off;
+        int nextOffset = block.arrayOffset() + blockSize;
+        long limit = Math.min(max, Integer.MAX_VALUE - blockSize);
+        while (len < limit && ++index < blockCount) {
+            ByteBuffer next = blocks[index];
+            if (next == null
+                    || !next.hasArray()
+                    || next.array() != array
+                    || next.arrayOffset() != nextOffset) {
+                break;
+            }
+            len += (int) Math.min(blockSize, limit - len);
+            nextOffset += blockSize;
+        }
+        return ByteBuffer.wrap(array, start, len);
+    }
+
     private int blockIndex(long position) {
         return (int) (position / disk.blockSize());
     }
@@ -626,35 +1409,103 @@ final class RegularFile extends File {
     }
 
     /** Zeroes len bytes in the given block starting at the given offset. Returns len. */
-    private static int zero(byte[] block, int offset, int len) {
+    private static int zero(ByteBuffer block, int offset, int len) {
         Util.zero(block, offset, len);
         return len;
     }
 
     /** Puts the given slice of the given array at the given offset in the given block. */
-    private static int put(byte[] block, int offset, byte[] b, int off, int len) {
-        System.arraycopy(b, off, block, offset, len);
+    private static int put(ByteBuffer block, int offset, byte[] b, int off, int len) {
+        if (block.hasArray()) {
+            System.arraycopy(b, off, block.array(), block.arrayOffset() + offset, len);
+        } else {
+            ByteBuffer dup = block.duplicate();
+            dup.position(offset);
+            dup.put(b, off, len);
+        }
         return len;
     }
 
     /** Puts the contents of the given byte buffer at the given offset in the given block. */
-    private static void put(byte[] block, int offset, ByteBuffer buf) {
-        int len = Math.min(block.length - offset, buf.remaining());
-        buf.get(block, offset, len);
+    private static void put(ByteBuffer block, int offset, ByteBuffer buf) {
+        int len = Math.min(block.capacity() - offset, buf.remaining());
+        if (block.hasArray()) {
+            buf.get(block.array(), block.arrayOffset() + offset, len);
+        } else {
+            ByteBuffer src = buf.duplicate();
+            src.limit(src.position() + len);
+            ByteBuffer dup = block.duplicate();
+            dup.position(offset);
+            dup.put(src);
+            buf.position(buf.position() + len);
+        }
+    }
+
+    /** Copies the full content of the given block to the given target block of the same size. */
+    private static void copy(ByteBuffer block, ByteBuffer target) {
+        target.duplicate().put(block.duplicate());
     }
 
     /**
-     * Reads len bytes starting at the given offset in the given block into the given slice of the
-     * given byte array.
+     * Returns a view of {@code len} bytes starting at the given offset in the given block, with its
+     * own position and limit.
      */
-    private static int get(byte[] block, int offset, byte[] b, int off, int len) {
-        System.arraycopy(block, offset, b, off, len);
-        return len;
+    private static ByteBuffer slice(ByteBuffer block, int offset, int len) {
+        ByteBuffer dup = block.duplicate();
+        dup.position(offset);
+        dup.limit(offset + len);
+        return dup;
     }
 
-    /** Reads len bytes starting at the given offset in the given block into the given byte buffer. */
-    private static int get(byte[] block, int offset, ByteBuffer buf, int len) {
-        buf.put(block, offset, len);
-        return len;
+    /** A compressed block of a file decompressed for reading, along with its compressed content. */
+    private static final class InflatedBlock {
+
+        final byte[] data;
+        final ByteBuffer block;
+
+        InflatedBlock(byte[] data, ByteBuffer block) {
+            this.data = data;
+            this.block = block;
+        }
+    }
+
+    /** A region of direct memory backing a contiguous range of a file's blocks. */
+    private final class MappedRegion {
+
+        /** Index of the first block in the region. */
+        final int first;
+
+        /** The memory of the region. */
+        final ByteBuffer memory;
+
+        /** The slices of the memory that were placed in the file's block list. */
+        final ByteBuffer[] blocks;
+
+        MappedRegion(int first, ByteBuffer memory) {
+            this.first = first;
+            this.memory = memory;
+            this.blocks = new ByteBuffer[memory.capacity() / disk.blockSize()];
+        }
+
+        /** Returns the index of the last block in the region. */
+        int last() {
+            return first + blocks.length - 1;
+        }
+
+        /**
+         * Returns whether or not all of the region's blocks are still part of the file. Once one of
+         * them has been freed, the region can't be used for new mappings.
+         */
+        boolean isAttached() {
+            if (last() >= blockCount) {
+                return false;
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                if (RegularFile.this.blocks[first + i] != blocks[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 }
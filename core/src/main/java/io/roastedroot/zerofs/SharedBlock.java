@@ -0,0 +1,46 @@
+package io.roastedroot.zerofs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reference count for a block that is shared copy-on-write by several regular files of the same
+ * {@link HeapDisk}. Copying a file within a file system shares its blocks with the copy instead of
+ * duplicating them; a file that holds a shared block must replace it with a private copy before
+ * writing to it. A shared block is only counted as allocated once, and is only freed when the last
+ * file referencing it frees it.
+ *
+ * <p>A block may also be <i>frozen</i> when it's shared with the files of other disks, which happens
+ * when taking a {@linkplain FileSystemSnapshot snapshot} of a file system. Each disk then keeps its
+ * own reference count for the block, so the count only says when the block stops being allocated
+ * on this disk. A frozen block is never written to, even by the last file of this disk referencing
+ * it, and is never reused for other files once freed.
+ *
+ * <p>A shared block may also be indexed by its content when the disk {@linkplain
+ * HeapDisk#deduplicate deduplicates} blocks, in which case files whose blocks have the same content
+ * are given a reference to it in place of their own block. It's removed from the index once its
+ * last reference is removed, since the block may then be written to. A file holding the only
+ * reference to an indexed block can therefore take the block back whenever it needs to write to or
+ * compress it.
+ *
+ * <p>The fields are guarded by the share lock of the disk the reference count belongs to.
+ */
+final class SharedBlock {
+
+    /** The number of files of the disk referencing the block. */
+    int references;
+
+    /** Whether or not the block may also be referenced by files of other disks. */
+    boolean frozen;
+
+    /**
+     * The block, if it's in the deduplication index of the disk; {@code null} if it isn't indexed.
+     */
+    ByteBuffer block;
+
+    /** The hash code of the content of the block, if it's indexed. */
+    int hash;
+
+    SharedBlock(int references) {
+        this.references = references;
+    }
+}
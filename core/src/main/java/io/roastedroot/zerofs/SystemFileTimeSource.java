@@ -12,6 +12,12 @@ enum SystemFileTimeSource implements FileTimeSource {
         return FileTime.from(Instant.now());
     }
 
+    @Override
+    public long nowNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
     @Override
     public String toString() {
         return "SystemFileTimeSource";
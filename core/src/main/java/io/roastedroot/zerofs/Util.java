@@ -1,5 +1,6 @@
 package io.roastedroot.zerofs;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
@@ -60,7 +61,7 @@ final class Util {
 
     private static final int ARRAY_LEN = 8192;
     private static final byte[] ZERO_ARRAY = new byte[ARRAY_LEN];
-    private static final byte[][] NULL_ARRAY = new byte[ARRAY_LEN][];
+    private static final ByteBuffer[] NULL_ARRAY = new ByteBuffer[ARRAY_LEN];
 
     /** Zeroes all bytes between off (inclusive) and off + len (exclusive) in the given array. */
     static void zero(byte[] bytes, int off, int len) {
@@ -77,11 +78,32 @@ final class Util {
         System.arraycopy(ZERO_ARRAY, 0, bytes, off, remaining);
     }
 
+    /**
+     * Zeroes all bytes between off (inclusive) and off + len (exclusive) in the given buffer. The
+     * position and limit of the buffer are not changed.
+     */
+    static void zero(ByteBuffer buffer, int off, int len) {
+        if (buffer.hasArray()) {
+            zero(buffer.array(), buffer.arrayOffset() + off, len);
+            return;
+        }
+
+        ByteBuffer dup = buffer.duplicate();
+        dup.position(off);
+        int remaining = len;
+        while (remaining > ARRAY_LEN) {
+            dup.put(ZERO_ARRAY, 0, ARRAY_LEN);
+            remaining -= ARRAY_LEN;
+        }
+
+        dup.put(ZERO_ARRAY, 0, remaining);
+    }
+
     /**
      * Clears (sets to null) all blocks between off (inclusive) and off + len (exclusive) in the given
      * array.
      */
-    static void clear(byte[][] blocks, int off, int len) {
+    static void clear(ByteBuffer[] blocks, int off, int len) {
         // this is significantly faster than looping or Arrays.fill (which loops), particularly when
         // the length of the slice to be cleared is <= to ARRAY_LEN (in that case, it's faster by a
         // factor of 2)
@@ -98,6 +120,17 @@ final class Util {
     // from com.google.common.base.Ascii
     private static final char CASE_MASK = 0x20;
 
+    /** Returns whether all characters of the given string are ASCII characters. */
+    public static boolean isAscii(String string) {
+        int length = string.length();
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static boolean isUpperCase(char c) {
         return (c >= 'A') && (c <= 'Z');
     }
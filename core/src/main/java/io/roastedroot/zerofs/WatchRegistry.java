@@ -0,0 +1,177 @@
+package io.roastedroot.zerofs;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of the directories of a file system that are watched by {@link EventWatchService}s.
+ * Directories that are watched notify the registry when entries are linked into or unlinked from
+ * them, and the file system's {@link FileSystemState} notifies it when a file is modified, so that
+ * the events are posted to the keys watching the directories as the changes happen.
+ *
+ * <p>A directory's watches are added and removed while holding the directory's write lock, the
+ * same lock under which its entries are linked and unlinked, so that the entries the registry
+ * knows of for a directory are always those it contains. When no directory is watched, notifying
+ * the registry of a modification only costs a check of an empty map.
+ */
+final class WatchRegistry {
+
+    /** The watches of each watched directory. The lists are copied on write. */
+    private final ConcurrentMap<Directory, List<EventWatchService.Watch>> watches =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The entries of the watched directories for each file they link to, so that the modification
+     * of a file can be posted to the directories it's in. The lists are copied on write.
+     */
+    private final ConcurrentMap<File, List<DirectoryEntry>> watchedEntries =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Adds the given watch to the given directory. Returns {@code false}, without adding it, if the
+     * directory has been deleted.
+     */
+    boolean watch(Directory dir, EventWatchService.Watch watch) {
+        dir.writeLock().lock();
+        try {
+            if (dir.isDeleted()) {
+                return false;
+            }
+            List<EventWatchService.Watch> dirWatches = watches.get(dir);
+            if (dirWatches == null) {
+                for (DirectoryEntry entry : dir) {
+                    if (!isReserved(entry)) {
+                        addEntry(entry);
+                    }
+                }
+                dir.setWatchRegistry(this);
+                dirWatches = List.of();
+            }
+            List<EventWatchService.Watch> newWatches = new ArrayList<>(dirWatches);
+            newWatches.add(watch);
+            watches.put(dir, List.copyOf(newWatches));
+            return true;
+        } finally {
+            dir.writeLock().unlock();
+        }
+    }
+
+    /** Removes the given watch from the given directory, if it's still there. */
+    void unwatch(Directory dir, EventWatchService.Watch watch) {
+        if (!watches.containsKey(dir)) {
+            return; // the directory was deleted
+        }
+
+        dir.writeLock().lock();
+        try {
+            List<EventWatchService.Watch> dirWatches = watches.get(dir);
+            if (dirWatches == null || !dirWatches.contains(watch)) {
+                return;
+            }
+            if (dirWatches.size() > 1) {
+                List<EventWatchService.Watch> newWatches = new ArrayList<>(dirWatches);
+                newWatches.remove(watch);
+                watches.put(dir, List.copyOf(newWatches));
+                return;
+            }
+
+            watches.remove(dir);
+            dir.setWatchRegistry(null);
+            for (DirectoryEntry entry : dir) {
+                if (!isReserved(entry)) {
+                    removeEntry(entry);
+                }
+            }
+        } finally {
+            dir.writeLock().unlock();
+        }
+    }
+
+    /** Called by a watched directory after the given entry was linked into it. */
+    void linked(DirectoryEntry entry) {
+        addEntry(entry);
+        post(entry.directory(), ENTRY_CREATE, entry.name());
+    }
+
+    /** Called by a watched directory after the given entry was unlinked from it. */
+    void unlinked(DirectoryEntry entry) {
+        removeEntry(entry);
+        post(entry.directory(), ENTRY_DELETE, entry.name());
+    }
+
+    /**
+     * Called by a watched directory when it's deleted, while holding its write lock. The keys
+     * watching the directory are cancelled.
+     */
+    void deleted(Directory dir) {
+        List<EventWatchService.Watch> dirWatches = watches.remove(dir);
+        dir.setWatchRegistry(null);
+        if (dirWatches != null) {
+            for (EventWatchService.Watch watch : dirWatches) {
+                watch.cancel();
+            }
+        }
+    }
+
+    /** Called when the given file was modified. */
+    void modified(File file) {
+        if (watchedEntries.isEmpty()) {
+            return;
+        }
+        List<DirectoryEntry> entries = watchedEntries.get(file);
+        if (entries != null) {
+            for (DirectoryEntry entry : entries) {
+                post(entry.directory(), ENTRY_MODIFY, entry.name());
+            }
+        }
+    }
+
+    private void post(Directory dir, WatchEvent.Kind<Path> kind, Name name) {
+        List<EventWatchService.Watch> dirWatches = watches.get(dir);
+        if (dirWatches != null) {
+            for (EventWatchService.Watch watch : dirWatches) {
+                watch.post(kind, name);
+            }
+        }
+    }
+
+    private void addEntry(DirectoryEntry entry) {
+        watchedEntries.compute(
+                entry.file(),
+                (file, entries) -> {
+                    if (entries == null) {
+                        return List.of(entry);
+                    }
+                    List<DirectoryEntry> newEntries = new ArrayList<>(entries);
+                    newEntries.add(entry);
+                    return List.copyOf(newEntries);
+                });
+    }
+
+    private void removeEntry(DirectoryEntry entry) {
+        watchedEntries.computeIfPresent(
+                entry.file(),
+                (file, entries) -> {
+                    List<DirectoryEntry> newEntries = new ArrayList<>(entries.size());
+                    for (DirectoryEntry e : entries) {
+                        // compared by identity, as the name may have been linked to the file again
+                        if (e != entry) {
+                            newEntries.add(e);
+                        }
+                    }
+                    return newEntries.isEmpty() ? null : List.copyOf(newEntries);
+                });
+    }
+
+    private static boolean isReserved(DirectoryEntry entry) {
+        return entry.name().equals(Name.SELF) || entry.name().equals(Name.PARENT);
+    }
+}
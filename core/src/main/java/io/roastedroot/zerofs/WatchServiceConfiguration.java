@@ -27,6 +27,17 @@ public abstract class WatchServiceConfiguration {
         return new PollingConfig(interval, timeUnit);
     }
 
+    /**
+     * Returns a configuration for a {@link WatchService} that posts events for changes to watched
+     * directories as the changes are made, rather than polling the directories. Events are thus
+     * available as soon as the change that caused them completes, and watching costs nothing while
+     * nothing changes. An event that is repeated before the key's events are retrieved is only
+     * reported once.
+     */
+    public static WatchServiceConfiguration eventDriven() {
+        return EventDrivenConfig.INSTANCE;
+    }
+
     WatchServiceConfiguration() {}
 
     /** Creates a new {@link AbstractWatchService} implementation. */
@@ -59,4 +70,20 @@ public abstract class WatchServiceConfiguration {
             return "WatchServiceConfiguration.polling(" + interval + ", " + timeUnit + ")";
         }
     }
+
+    /** Implementation for {@link #eventDriven}. */
+    private static final class EventDrivenConfig extends WatchServiceConfiguration {
+
+        static final EventDrivenConfig INSTANCE = new EventDrivenConfig();
+
+        @Override
+        AbstractWatchService newWatchService(FileSystemView view, PathService pathService) {
+            return new EventWatchService(view, pathService, view.state());
+        }
+
+        @Override
+        public String toString() {
+            return "WatchServiceConfiguration.eventDriven()";
+        }
+    }
 }
@@ -5,6 +5,7 @@ import static io.roastedroot.zerofs.SystemZeroFsFileSystemProvider.FILE_SYSTEM_K
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.ProviderNotFoundException;
@@ -76,43 +77,90 @@ public final class ZeroFs {
         }
     }
 
+    /**
+     * Takes a snapshot of the current content of the given ZeroFs file system. New file systems with
+     * the same configuration and content can then be created from the snapshot with {@link
+     * FileSystemSnapshot#newFileSystem()}, without copying the content of regular files.
+     *
+     * <p>The snapshot is consistent if the file system is not modified while the snapshot is being
+     * taken; otherwise it may include some concurrent modifications and not others.
+     *
+     * @throws IllegalArgumentException if the given file system was not created by ZeroFs
+     * @throws ClosedFileSystemException if the file system is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public static FileSystemSnapshot snapshot(FileSystem fileSystem) throws IOException {
+        if (!(fileSystem instanceof ZeroFsFileSystem)) {
+            throw new IllegalArgumentException(
+                    String.format("file system (%s) was not created by ZeroFs", fileSystem));
+        }
+        return FileSystemSnapshot.of((ZeroFsFileSystem) fileSystem);
+    }
+
+    /**
+     * Releases the space that the given ZeroFs file system has cached for reuse after files were
+     * truncated or deleted, making it available for garbage collection. Returns the number of bytes
+     * of memory this frees. Cached space that shares memory with the content of files can't be freed
+     * before that content is, so it's released but not counted.
+     *
+     * @throws IllegalArgumentException if the given file system was not created by ZeroFs
+     * @throws ClosedFileSystemException if the file system is closed
+     * @see Configuration.Builder#setMaxCacheSize(long)
+     */
+    public static long trim(FileSystem fileSystem) {
+        if (!(fileSystem instanceof ZeroFsFileSystem)) {
+            throw new IllegalArgumentException(
+                    String.format("file system (%s) was not created by ZeroFs", fileSystem));
+        }
+        return ((ZeroFsFileSystem) fileSystem).getFileStore().trim();
+    }
+
     static FileSystem newFileSystem(URI uri, Configuration config) {
+        try {
+            return newFileSystem(uri, config, null);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Creates a new file system with the given URI and configuration, with a copy of the content of
+     * the given snapshot if it's not null.
+     */
+    static FileSystem newFileSystem(URI uri, Configuration config, FileSystemSnapshot snapshot)
+            throws IOException {
         if (!URI_SCHEME.equals(uri.getScheme())) {
             throw new IllegalArgumentException(
                     String.format("uri (%s) must have scheme %s", uri, URI_SCHEME));
         }
 
+        // Create the FileSystem. It uses ZeroFsFileSystemProvider as its provider, as that is
+        // the provider that actually implements the operations needed for Files methods to
+        // work.
+        ZeroFsFileSystem fileSystem =
+                ZeroFsFileSystems.newFileSystem(
+                        ZeroFsFileSystemProvider.instance(), uri, config, snapshot);
+
+        /*
+         * Now, call FileSystems.newFileSystem, passing it the FileSystem we just created. This
+         * allows the system-loaded SystemZeroFsFileSystemProvider instance to cache the FileSystem
+         * so that methods like Paths.get(URI) work.
+         * We do it in this awkward way to avoid issues when the classes in the API (this class
+         * and Configuration, for example) are loaded by a different classloader than the one that
+         * loads SystemZeroFsFileSystemProvider using ServiceLoader. See
+         * https://github.com/google/jimfs/issues/18 for gory details.
+         */
         try {
-            // Create the FileSystem. It uses ZeroFsFileSystemProvider as its provider, as that is
-            // the provider that actually implements the operations needed for Files methods to
-            // work.
-            ZeroFsFileSystem fileSystem =
-                    ZeroFsFileSystems.newFileSystem(
-                            ZeroFsFileSystemProvider.instance(), uri, config);
-
-            /*
-             * Now, call FileSystems.newFileSystem, passing it the FileSystem we just created. This
-             * allows the system-loaded SystemZeroFsFileSystemProvider instance to cache the FileSystem
-             * so that methods like Paths.get(URI) work.
-             * We do it in this awkward way to avoid issues when the classes in the API (this class
-             * and Configuration, for example) are loaded by a different classloader than the one that
-             * loads SystemZeroFsFileSystemProvider using ServiceLoader. See
-             * https://github.com/google/jimfs/issues/18 for gory details.
-             */
-            try {
-                Map<String, ?> env = Map.of(FILE_SYSTEM_KEY, fileSystem);
-                FileSystems.newFileSystem(
-                        uri, env, SystemZeroFsFileSystemProvider.class.getClassLoader());
-            } catch (ProviderNotFoundException | ServiceConfigurationError ignore) {
-                // See the similar catch block below for why we ignore this.
-                // We log there rather than here so that there's only typically one such message per
-                // VM.
-            }
-
-            return fileSystem;
-        } catch (IOException e) {
-            throw new AssertionError(e);
+            Map<String, ?> env = Map.of(FILE_SYSTEM_KEY, fileSystem);
+            FileSystems.newFileSystem(
+                    uri, env, SystemZeroFsFileSystemProvider.class.getClassLoader());
+        } catch (ProviderNotFoundException | ServiceConfigurationError ignore) {
+            // See the similar catch block below for why we ignore this.
+            // We log there rather than here so that there's only typically one such message per
+            // VM.
         }
+
+        return fileSystem;
     }
 
     /**
@@ -185,7 +233,7 @@ public final class ZeroFs {
         return null;
     }
 
-    private static String newRandomFileSystemName() {
+    static String newRandomFileSystemName() {
         return UUID.randomUUID().toString();
     }
 }
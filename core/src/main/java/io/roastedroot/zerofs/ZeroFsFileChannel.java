@@ -20,19 +20,22 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.OpenOption;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A {@link FileChannel} implementation that reads and writes to a {@link RegularFile} object. The
  * read and write methods and other methods that read or change the position of the channel are
  * locked because the {@link ReadableByteChannel} and {@link WritableByteChannel} interfaces specify
  * that the read and write methods block when another thread is currently doing a read or write
- * operation.
+ * operation. Methods that take an explicit position (other than appending writes) don't use the
+ * channel's position and don't lock the channel, so they only contend on the file's own locks.
  *
  * @author Colin Decker
  */
@@ -41,10 +44,10 @@ final class ZeroFsFileChannel extends FileChannel {
     /**
      * Set of threads that are currently doing an interruptible blocking operation; that is, doing
      * something that requires acquiring the file's lock. These threads must be interrupted if the
-     * channel is closed by another thread.
+     * channel is closed by another thread. The set is concurrent so that threads doing positional
+     * operations don't contend on it.
      */
-    // @GuardedBy("blockingThreads")
-    private final Set<Thread> blockingThreads = new HashSet<Thread>();
+    private final Set<Thread> blockingThreads = ConcurrentHashMap.newKeySet();
 
     private final RegularFile file;
     private final FileSystemState fileSystemState;
@@ -53,7 +56,14 @@ final class ZeroFsFileChannel extends FileChannel {
     private final boolean write;
     private final boolean append;
 
-    // @GuardedBy("this")
+    /**
+     * Lock held by the operations that use the channel's position. A {@link ReentrantLock} rather
+     * than the channel's monitor, so that virtual threads waiting for the file's locks while holding
+     * it don't pin their carrier threads.
+     */
+    private final ReentrantLock positionLock = new ReentrantLock();
+
+    // @GuardedBy("positionLock")
     private long position;
 
     public ZeroFsFileChannel(
@@ -100,14 +110,16 @@ final class ZeroFsFileChannel extends FileChannel {
      */
     private boolean beginBlocking() {
         begin();
-        synchronized (blockingThreads) {
-            if (isOpen()) {
-                blockingThreads.add(Thread.currentThread());
-                return true;
-            }
-
-            return false;
+        Thread thread = Thread.currentThread();
+        blockingThreads.add(thread);
+        // checking after adding the thread guarantees that either this sees the channel closed or
+        // implCloseChannel sees the thread
+        if (isOpen()) {
+            return true;
         }
+
+        blockingThreads.remove(thread);
+        return false;
     }
 
     /**
@@ -115,9 +127,7 @@ final class ZeroFsFileChannel extends FileChannel {
      * or if the channel was closed from another thread.
      */
     private void endBlocking(boolean completed) throws AsynchronousCloseException {
-        synchronized (blockingThreads) {
-            blockingThreads.remove(Thread.currentThread());
-        }
+        blockingThreads.remove(Thread.currentThread());
         end(completed);
     }
 
@@ -129,7 +139,8 @@ final class ZeroFsFileChannel extends FileChannel {
 
         int read = 0; // will definitely either be assigned or an exception will be thrown
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
@@ -141,7 +152,7 @@ final class ZeroFsFileChannel extends FileChannel {
                     if (read != -1) {
                         position += read;
                     }
-                    file.setLastAccessTime(fileSystemState.now());
+                    fileSystemState.accessed(file);
                     completed = true;
                 } finally {
                     file.readLock().unlock();
@@ -151,6 +162,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return read;
@@ -168,7 +181,8 @@ final class ZeroFsFileChannel extends FileChannel {
 
         long read = 0; // will definitely either be assigned or an exception will be thrown
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
@@ -180,7 +194,7 @@ final class ZeroFsFileChannel extends FileChannel {
                     if (read != -1) {
                         position += read;
                     }
-                    file.setLastAccessTime(fileSystemState.now());
+                    fileSystemState.accessed(file);
                     completed = true;
                 } finally {
                     file.readLock().unlock();
@@ -190,6 +204,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return read;
@@ -204,7 +220,7 @@ final class ZeroFsFileChannel extends FileChannel {
 
         int read = 0; // will definitely either be assigned or an exception will be thrown
 
-        // no need to synchronize here; this method does not make use of the channel's position
+        // no need to lock here; this method does not make use of the channel's position
         boolean completed = false;
         try {
             if (!beginBlocking()) {
@@ -213,7 +229,7 @@ final class ZeroFsFileChannel extends FileChannel {
             file.readLock().lockInterruptibly();
             try {
                 read = file.read(position, dst);
-                file.setLastAccessTime(fileSystemState.now());
+                fileSystemState.accessed(file);
                 completed = true;
             } finally {
                 file.readLock().unlock();
@@ -235,34 +251,66 @@ final class ZeroFsFileChannel extends FileChannel {
 
         int written = 0; // will definitely either be assigned or an exception will be thrown
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
                     return 0; // AsynchronousCloseException will be thrown
                 }
-                file.writeLock().lockInterruptibly();
-                try {
-                    if (append) {
+                if (append) {
+                    file.writeLock().lockInterruptibly();
+                    try {
                         position = file.size();
+                        written = file.write(position, src);
+                        fileSystemState.modified(file);
+                    } finally {
+                        file.writeLock().unlock();
                     }
-                    written = file.write(position, src);
-                    position += written;
-                    file.setLastModifiedTime(fileSystemState.now());
-                    completed = true;
-                } finally {
-                    file.writeLock().unlock();
+                } else {
+                    written = writeToFile(position, src);
                 }
+                position += written;
+                completed = true;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return written;
     }
 
+    /**
+     * Writes the given buffer to the file at the given position. If the write doesn't change the size
+     * or the blocks of the file, it's done under the file's read lock so that it can proceed
+     * concurrently with writes to other parts of the file; otherwise, it's done under the write lock.
+     */
+    private int writeToFile(long position, ByteBuffer src)
+            throws IOException, InterruptedException {
+        int written;
+        file.readLock().lockInterruptibly();
+        try {
+            written = file.writeInPlace(position, src);
+        } finally {
+            file.readLock().unlock();
+        }
+
+        if (written < 0) {
+            file.writeLock().lockInterruptibly();
+            try {
+                written = file.write(position, src);
+            } finally {
+                file.writeLock().unlock();
+            }
+        }
+        fileSystemState.modified(file);
+        return written;
+    }
+
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
         if (offset < 0 || (offset + length) < offset || (offset + length) > srcs.length) {
@@ -275,7 +323,8 @@ final class ZeroFsFileChannel extends FileChannel {
 
         long written = 0; // will definitely either be assigned or an exception will be thrown
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
@@ -288,7 +337,7 @@ final class ZeroFsFileChannel extends FileChannel {
                     }
                     written = file.write(position, buffers);
                     position += written;
-                    file.setLastModifiedTime(fileSystemState.now());
+                    fileSystemState.modified(file);
                     completed = true;
                 } finally {
                     file.writeLock().unlock();
@@ -298,6 +347,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return written;
@@ -313,8 +364,9 @@ final class ZeroFsFileChannel extends FileChannel {
         int written = 0; // will definitely either be assigned or an exception will be thrown
 
         if (append) {
-            // synchronize because appending does update the channel's position
-            synchronized (this) {
+            // lock because appending does update the channel's position
+            positionLock.lock();
+            try {
                 boolean completed = false;
                 try {
                     if (!beginBlocking()) {
@@ -326,7 +378,7 @@ final class ZeroFsFileChannel extends FileChannel {
                         position = file.sizeWithoutLocking();
                         written = file.write(position, src);
                         this.position = position + written;
-                        file.setLastModifiedTime(fileSystemState.now());
+                        fileSystemState.modified(file);
                         completed = true;
                     } finally {
                         file.writeLock().unlock();
@@ -336,22 +388,18 @@ final class ZeroFsFileChannel extends FileChannel {
                 } finally {
                     endBlocking(completed);
                 }
+            } finally {
+                positionLock.unlock();
             }
         } else {
-            // don't synchronize because the channel's position is not involved
+            // don't lock because the channel's position is not involved
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
                     return 0; // AsynchronousCloseException will be thrown
                 }
-                file.writeLock().lockInterruptibly();
-                try {
-                    written = file.write(position, src);
-                    file.setLastModifiedTime(fileSystemState.now());
-                    completed = true;
-                } finally {
-                    file.writeLock().unlock();
-                }
+                written = writeToFile(position, src);
+                completed = true;
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } finally {
@@ -368,7 +416,8 @@ final class ZeroFsFileChannel extends FileChannel {
 
         long pos;
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 begin(); // don't call beginBlocking() because this method doesn't block
@@ -380,6 +429,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 end(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return pos;
@@ -390,7 +441,8 @@ final class ZeroFsFileChannel extends FileChannel {
         Util.checkNotNegative(newPosition, "newPosition");
         checkOpen();
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 begin(); // don't call beginBlocking() because this method doesn't block
@@ -402,6 +454,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 end(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return this;
@@ -440,7 +494,8 @@ final class ZeroFsFileChannel extends FileChannel {
         checkOpen();
         checkWritable();
 
-        synchronized (this) {
+        positionLock.lock();
+        try {
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
@@ -452,7 +507,7 @@ final class ZeroFsFileChannel extends FileChannel {
                     if (position > size) {
                         position = size;
                     }
-                    file.setLastModifiedTime(fileSystemState.now());
+                    fileSystemState.modified(file);
                     completed = true;
                 } finally {
                     file.writeLock().unlock();
@@ -462,6 +517,8 @@ final class ZeroFsFileChannel extends FileChannel {
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return this;
@@ -493,7 +550,25 @@ final class ZeroFsFileChannel extends FileChannel {
 
         long transferred = 0; // will definitely either be assigned or an exception will be thrown
 
-        // no need to synchronize here; this method does not make use of the channel's position
+        if (target instanceof ZeroFsFileChannel && ((ZeroFsFileChannel) target).file != file) {
+            // let the target lock the files, in the same order as transferFrom does
+            boolean completed = false;
+            try {
+                if (!beginBlocking()) {
+                    return 0; // AsynchronousCloseException will be thrown
+                }
+                transferred =
+                        ((ZeroFsFileChannel) target)
+                                .transferFromFile(file, fileSystemState, position, count);
+                fileSystemState.accessed(file);
+                completed = true;
+            } finally {
+                endBlocking(completed);
+            }
+            return transferred;
+        }
+
+        // no need to lock here; this method does not make use of the channel's position
         boolean completed = false;
         try {
             if (!beginBlocking()) {
@@ -502,7 +577,7 @@ final class ZeroFsFileChannel extends FileChannel {
             file.readLock().lockInterruptibly();
             try {
                 transferred = file.transferTo(position, count, target);
-                file.setLastAccessTime(fileSystemState.now());
+                fileSystemState.accessed(file);
                 completed = true;
             } finally {
                 file.readLock().unlock();
@@ -528,8 +603,9 @@ final class ZeroFsFileChannel extends FileChannel {
         long transferred = 0; // will definitely either be assigned or an exception will be thrown
 
         if (append) {
-            // synchronize because appending does update the channel's position
-            synchronized (this) {
+            // lock because appending does update the channel's position
+            positionLock.lock();
+            try {
                 boolean completed = false;
                 try {
                     if (!beginBlocking()) {
@@ -541,7 +617,7 @@ final class ZeroFsFileChannel extends FileChannel {
                         position = file.sizeWithoutLocking();
                         transferred = file.transferFrom(src, position, count);
                         this.position = position + transferred;
-                        file.setLastModifiedTime(fileSystemState.now());
+                        fileSystemState.modified(file);
                         completed = true;
                     } finally {
                         file.writeLock().unlock();
@@ -551,9 +627,26 @@ final class ZeroFsFileChannel extends FileChannel {
                 } finally {
                     endBlocking(completed);
                 }
+            } finally {
+                positionLock.unlock();
+            }
+        } else if (src instanceof ZeroFsFileChannel && ((ZeroFsFileChannel) src).file != file) {
+            // let the source lock the files, in the same order as transferTo does
+            boolean completed = false;
+            try {
+                if (!beginBlocking()) {
+                    return 0; // AsynchronousCloseException will be thrown
+                }
+                transferred =
+                        ((ZeroFsFileChannel) src)
+                                .transferToFile(file, fileSystemState, position, count);
+                fileSystemState.modified(file);
+                completed = true;
+            } finally {
+                endBlocking(completed);
             }
         } else {
-            // don't synchronize because the channel's position is not involved
+            // don't lock because the channel's position is not involved
             boolean completed = false;
             try {
                 if (!beginBlocking()) {
@@ -562,27 +655,205 @@ final class ZeroFsFileChannel extends FileChannel {
                 file.writeLock().lockInterruptibly();
                 try {
                     transferred = file.transferFrom(src, position, count);
-                    file.setLastModifiedTime(fileSystemState.now());
+                    fileSystemState.modified(file);
+                    completed = true;
+                } finally {
+                    file.writeLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                endBlocking(completed);
+            }
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Transfers up to {@code count} bytes starting at the given position in the given source file to
+     * this channel, as if by writing them to this channel, without copying whole blocks if possible.
+     * Called by {@link #transferTo} when the target is a channel to another ZeroFs file; the source
+     * file, which belongs to the file system with the given state, must not be this channel's file.
+     */
+    private long transferFromFile(
+            RegularFile source, FileSystemState sourceState, long sourcePosition, long count)
+            throws IOException {
+        checkOpen();
+        checkWritable();
+
+        long transferred = 0; // will definitely either be assigned or an exception will be thrown
+
+        positionLock.lock();
+        try {
+            boolean completed = false;
+            try {
+                if (!beginBlocking()) {
+                    return 0; // AsynchronousCloseException will be thrown
+                }
+                lockForTransfer(source, file, sourceState == fileSystemState);
+                try {
+                    if (append) {
+                        position = file.sizeWithoutLocking();
+                    }
+                    transferred = source.transferTo(sourcePosition, count, file, position);
+                    position += transferred;
+                    fileSystemState.modified(file);
                     completed = true;
                 } finally {
                     file.writeLock().unlock();
+                    source.readLock().unlock();
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             } finally {
                 endBlocking(completed);
             }
+        } finally {
+            positionLock.unlock();
         }
 
         return transferred;
     }
 
+    /**
+     * Transfers up to {@code count} bytes from this channel to the given target file starting at the
+     * given position, as if by reading them from this channel, without copying whole blocks if
+     * possible. Nothing is transferred if the position is greater than the size of the target. Called
+     * by {@link #transferFrom} when the source is a channel to another ZeroFs file; the target,
+     * which belongs to the file system with the given state, must not be this channel's file.
+     */
+    private long transferToFile(
+            RegularFile target, FileSystemState targetState, long targetPosition, long count)
+            throws IOException {
+        checkOpen();
+        checkReadable();
+
+        long transferred = 0; // will definitely either be assigned or an exception will be thrown
+
+        positionLock.lock();
+        try {
+            boolean completed = false;
+            try {
+                if (!beginBlocking()) {
+                    return 0; // AsynchronousCloseException will be thrown
+                }
+                lockForTransfer(file, target, targetState == fileSystemState);
+                try {
+                    if (targetPosition <= target.sizeWithoutLocking()) {
+                        transferred = file.transferTo(position, count, target, targetPosition);
+                        position += transferred;
+                    }
+                    fileSystemState.accessed(file);
+                    completed = true;
+                } finally {
+                    target.writeLock().unlock();
+                    file.readLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                endBlocking(completed);
+            }
+        } finally {
+            positionLock.unlock();
+        }
+
+        return transferred;
+    }
+
+    /**
+     * Acquires the read lock of the source file and the write lock of the target file of a transfer
+     * between two different files. No other file lock may be held by the caller. Within one file
+     * system, the locks are acquired in order of the files' IDs, so that two transfers in opposite
+     * directions can't deadlock. IDs can't be used to order locks across file systems, so there the
+     * second lock is only tried while holding the first, alternating which one is taken first.
+     */
+    private static void lockForTransfer(
+            RegularFile source, RegularFile target, boolean sameFileSystem)
+            throws InterruptedException {
+        Lock readLock = source.readLock();
+        Lock writeLock = target.writeLock();
+        if (sameFileSystem) {
+            Lock first = source.id() < target.id() ? readLock : writeLock;
+            Lock second = first == readLock ? writeLock : readLock;
+            first.lockInterruptibly();
+            try {
+                second.lockInterruptibly();
+            } catch (InterruptedException e) {
+                first.unlock();
+                throw e;
+            }
+            return;
+        }
+
+        while (true) {
+            readLock.lockInterruptibly();
+            if (writeLock.tryLock()) {
+                return;
+            }
+            readLock.unlock();
+
+            writeLock.lockInterruptibly();
+            if (readLock.tryLock()) {
+                return;
+            }
+            writeLock.unlock();
+        }
+    }
+
     @Override
     public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
-        // would like this to pretend to work, but can't create an implementation of
-        // MappedByteBuffer
-        // well, a direct buffer could be cast to MappedByteBuffer, but it couldn't work in general
-        throw new UnsupportedOperationException();
+        Objects.requireNonNull(mode);
+        Util.checkNotNegative(position, "position");
+        Util.checkNotNegative(size, "size");
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("size must not be greater than Integer.MAX_VALUE");
+        }
+        checkOpen();
+        if (mode == MapMode.READ_ONLY) {
+            checkReadable();
+        } else if (mode == MapMode.READ_WRITE || mode == MapMode.PRIVATE) {
+            if (!read || !write) {
+                throw new NonWritableChannelException();
+            }
+        } else {
+            throw new UnsupportedOperationException("unsupported map mode: " + mode);
+        }
+
+        // the buffers returned are always direct buffers, which are MappedByteBuffers; they just
+        // aren't backed by a file descriptor, so force() does nothing
+        ByteBuffer buffer = null;
+        boolean completed = false;
+        try {
+            if (!beginBlocking()) {
+                return null; // AsynchronousCloseException will be thrown
+            }
+            file.writeLock().lockInterruptibly();
+            try {
+                long oldSize = file.sizeWithoutLocking();
+                if (position + size > oldSize && !write) {
+                    throw new IOException(
+                            "channel not open for writing; cannot extend file to required size");
+                }
+                buffer = file.map(position, (int) size, mode != MapMode.PRIVATE);
+                if (file.sizeWithoutLocking() != oldSize) {
+                    fileSystemState.modified(file);
+                }
+                completed = true;
+            } finally {
+                file.writeLock().unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            endBlocking(completed);
+        }
+
+        if (mode == MapMode.READ_ONLY) {
+            buffer = buffer.asReadOnlyBuffer();
+        }
+        return (MappedByteBuffer) buffer;
     }
 
     @Override
@@ -628,10 +899,8 @@ final class ZeroFsFileChannel extends FileChannel {
         // interrupt the current blocking threads, if any, causing them to throw
         // ClosedByInterruptException
         try {
-            synchronized (blockingThreads) {
-                for (Thread thread : blockingThreads) {
-                    thread.interrupt();
-                }
+            for (Thread thread : blockingThreads) {
+                thread.interrupt();
             }
         } finally {
             fileSystemState.unregister(this);
@@ -12,9 +12,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.SortedSet;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Supplier;
 
 /**
@@ -35,10 +33,11 @@ final class ZeroFsFileStore extends FileStore {
     private final AttributeService attributes;
     private final FileFactory factory;
     private final Set<Feature> supportedFeatures;
+    private final boolean sortedDirectoryStreams;
+    private final PathCache pathCache;
     private final FileSystemState state;
 
-    private final Lock readLock;
-    private final Lock writeLock;
+    private final StampedLock renameLock = new StampedLock();
 
     public ZeroFsFileStore(
             FileTree tree,
@@ -46,17 +45,17 @@ final class ZeroFsFileStore extends FileStore {
             HeapDisk disk,
             AttributeService attributes,
             Set<Feature> supportedFeatures,
+            boolean sortedDirectoryStreams,
+            PathCache pathCache,
             FileSystemState state) {
         this.tree = Objects.requireNonNull(tree);
         this.factory = Objects.requireNonNull(factory);
         this.disk = Objects.requireNonNull(disk);
         this.attributes = Objects.requireNonNull(attributes);
         this.supportedFeatures = Objects.requireNonNull(supportedFeatures);
+        this.sortedDirectoryStreams = sortedDirectoryStreams;
+        this.pathCache = pathCache;
         this.state = Objects.requireNonNull(state);
-
-        ReadWriteLock lock = new ReentrantReadWriteLock();
-        this.readLock = lock.readLock();
-        this.writeLock = lock.writeLock();
     }
 
     // internal use methods
@@ -66,14 +65,14 @@ final class ZeroFsFileStore extends FileStore {
         return state;
     }
 
-    /** Returns the read lock for this store. */
-    Lock readLock() {
-        return readLock;
-    }
-
-    /** Returns the write lock for this store. */
-    Lock writeLock() {
-        return writeLock;
+    /**
+     * Returns the lock that is held for writing while a directory is moved. Moving a directory is the
+     * only operation that changes the parent of a directory, so holding the lock for reading (or
+     * validating an optimistic read) guarantees a consistent view of the chain of parents of any
+     * directory. Directory locks may be acquired while holding this lock, but never the reverse.
+     */
+    StampedLock renameLock() {
+        return renameLock;
     }
 
     /** Returns the names of the root directories in this store. */
@@ -88,6 +87,20 @@ final class ZeroFsFileStore extends FileStore {
         return entry == null ? null : (Directory) entry.file();
     }
 
+    /**
+     * Releases the space cached for reuse by this store's disk. Returns the number of bytes of
+     * memory this frees.
+     */
+    long trim() {
+        state.checkOpen();
+        return disk.trim();
+    }
+
+    /** Returns whether or not directory streams return the names of entries in sorted order. */
+    boolean sortsDirectoryStreams() {
+        return sortedDirectoryStreams;
+    }
+
     /** Returns whether or not the given feature is supported by this file store. */
     boolean supportsFeature(Feature feature) {
         return supportedFeatures.contains(feature);
@@ -241,6 +254,19 @@ final class ZeroFsFileStore extends FileStore {
 
     @Override
     public Object getAttribute(String attribute) throws IOException {
-        throw new UnsupportedOperationException();
+        state.checkOpen();
+        switch (attribute) {
+            case "zerofs:logicalUsedSpace":
+                return disk.getLogicalUsedSpace();
+            case "zerofs:physicalUsedSpace":
+                return disk.getPhysicalUsedSpace();
+            case "zerofs:pathCacheHits":
+                return pathCache == null ? 0L : pathCache.hits();
+            case "zerofs:pathCacheMisses":
+                return pathCache == null ? 0L : pathCache.misses();
+            default:
+                throw new UnsupportedOperationException(
+                        "file store attribute not supported: " + attribute);
+        }
     }
 }
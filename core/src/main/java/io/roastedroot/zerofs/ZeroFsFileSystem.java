@@ -139,11 +139,16 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * <h3>Thread safety</h3>
  *
- * All file system operations should be safe in a multithreaded environment. The file hierarchy
- * itself is protected by a file system level read-write lock. This ensures safety of all
- * modifications to directory tables as well as atomicity of operations like file moves. Regular
- * files are each protected by a read-write lock which is obtained for each read or write operation.
- * File attributes are protected by synchronization on the file object itself.
+ * All file system operations should be safe in a multithreaded environment. Each directory table
+ * is protected by its own lock. Lookups read each directory on the path optimistically, only
+ * locking a directory that is modified concurrently, so lookups don't contend with each other and
+ * operations in unrelated parts of the file hierarchy don't contend at all.
+ * Modifications lock every directory they change (in order of directory ID, to avoid deadlocks) and
+ * then check that the entries they looked up are still current, which keeps operations like file
+ * moves atomic. Moving a directory additionally holds a file system level rename lock, since it
+ * changes the ancestry of everything below the directory. Regular files are each protected by a
+ * read-write lock which is obtained for each read or write operation. File attributes are protected
+ * by synchronization on the file object itself.
  *
  * @author Colin Decker
  */
@@ -159,7 +164,7 @@ final class ZeroFsFileSystem extends FileSystem {
 
     private final FileSystemView defaultView;
 
-    private final WatchServiceConfiguration watchServiceConfig;
+    private final Configuration config;
 
     ZeroFsFileSystem(
             ZeroFsFileSystemProvider provider,
@@ -167,13 +172,18 @@ final class ZeroFsFileSystem extends FileSystem {
             ZeroFsFileStore fileStore,
             PathService pathService,
             FileSystemView defaultView,
-            WatchServiceConfiguration watchServiceConfig) {
+            Configuration config) {
         this.provider = Objects.requireNonNull(provider);
         this.uri = Objects.requireNonNull(uri);
         this.fileStore = Objects.requireNonNull(fileStore);
         this.pathService = Objects.requireNonNull(pathService);
         this.defaultView = Objects.requireNonNull(defaultView);
-        this.watchServiceConfig = Objects.requireNonNull(watchServiceConfig);
+        this.config = Objects.requireNonNull(config);
+    }
+
+    /** Returns the configuration this file system was created with. */
+    Configuration configuration() {
+        return config;
     }
 
     @Override
@@ -264,7 +274,7 @@ final class ZeroFsFileSystem extends FileSystem {
 
     @Override
     public WatchService newWatchService() throws IOException {
-        return watchServiceConfig.newWatchService(defaultView, pathService);
+        return config.watchServiceConfig.newWatchService(defaultView, pathService);
     }
 
     private ExecutorService defaultThreadPool;
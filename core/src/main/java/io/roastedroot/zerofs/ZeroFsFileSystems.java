@@ -55,17 +55,36 @@ final class ZeroFsFileSystems {
      */
     public static ZeroFsFileSystem newFileSystem(
             ZeroFsFileSystemProvider provider, URI uri, Configuration config) throws IOException {
+        return newFileSystem(provider, uri, config, null);
+    }
+
+    /**
+     * Initialize and configure a new file system with the given provider and URI, using the given
+     * configuration. If {@code snapshot} is not null, the file system starts out with a copy of its
+     * content.
+     */
+    public static ZeroFsFileSystem newFileSystem(
+            ZeroFsFileSystemProvider provider,
+            URI uri,
+            Configuration config,
+            FileSystemSnapshot snapshot)
+            throws IOException {
         PathService pathService = new PathService(config);
         FileSystemState state =
-                new FileSystemState(config.fileTimeSource, removeFileSystemRunnable(uri));
-
-        ZeroFsFileStore fileStore = createFileStore(config, pathService, state);
+                new FileSystemState(
+                        config.fileTimeSource,
+                        config.accessTimeMode,
+                        removeFileSystemRunnable(uri));
+
+        ZeroFsFileStore fileStore = createFileStore(config, pathService, state, snapshot);
+        if (config.compressionIdleTime != null) {
+            // registers itself to be closed with the file system
+            new ColdFileCompressor(fileStore, config.compressionIdleTime.toNanos());
+        }
         FileSystemView defaultView = createDefaultView(config, fileStore, pathService);
-        WatchServiceConfiguration watchServiceConfig = config.watchServiceConfig;
 
         ZeroFsFileSystem fileSystem =
-                new ZeroFsFileSystem(
-                        provider, uri, fileStore, pathService, defaultView, watchServiceConfig);
+                new ZeroFsFileSystem(provider, uri, fileStore, pathService, defaultView, config);
 
         pathService.setFileSystem(fileSystem);
         return fileSystem;
@@ -73,34 +92,48 @@ final class ZeroFsFileSystems {
 
     /** Creates the file store for the file system. */
     private static ZeroFsFileStore createFileStore(
-            Configuration config, PathService pathService, FileSystemState state) {
+            Configuration config,
+            PathService pathService,
+            FileSystemState state,
+            FileSystemSnapshot snapshot)
+            throws IOException {
         AttributeService attributeService = new AttributeService(config);
 
         HeapDisk disk = new HeapDisk(config);
-        FileFactory fileFactory = new FileFactory(disk, config.fileTimeSource);
-
-        Map<Name, Directory> roots = new HashMap<>();
-
-        // create roots
-        for (String root : config.roots) {
-            ZeroFsPath path = pathService.parsePath(root);
-            if (!path.isAbsolute() && path.getNameCount() == 0) {
-                throw new IllegalArgumentException("Invalid root path: " + root);
+        FileFactory fileFactory;
+        Map<Name, Directory> roots;
+
+        if (snapshot != null) {
+            // copy roots, keeping the IDs of the copied files unique
+            roots = snapshot.copyRoots(disk, pathService);
+            fileFactory = new FileFactory(disk, config.fileTimeSource, snapshot.nextFileId());
+        } else {
+            fileFactory = new FileFactory(disk, config.fileTimeSource);
+            roots = new HashMap<>();
+
+            // create roots
+            for (String root : config.roots) {
+                ZeroFsPath path = pathService.parsePath(root);
+                if (!path.isAbsolute() && path.getNameCount() == 0) {
+                    throw new IllegalArgumentException("Invalid root path: " + root);
+                }
+
+                Name rootName = path.root();
+
+                Directory rootDir = fileFactory.createRootDirectory(rootName);
+                attributeService.setInitialAttributes(rootDir);
+                roots.put(rootName, rootDir);
             }
-
-            Name rootName = path.root();
-
-            Directory rootDir = fileFactory.createRootDirectory(rootName);
-            attributeService.setInitialAttributes(rootDir);
-            roots.put(rootName, rootDir);
         }
 
         return new ZeroFsFileStore(
-                new FileTree(roots),
+                new FileTree(roots, config.lookupCacheSize),
                 fileFactory,
                 disk,
                 attributeService,
                 config.supportedFeatures,
+                config.sortedDirectoryStreams,
+                pathService.pathCache(),
                 state);
     }
 
@@ -116,6 +149,13 @@ final class ZeroFsFileSystems {
         }
 
         for (Name name : workingDirPath.names()) {
+            // a file system created from a snapshot may already contain the directory
+            DirectoryEntry entry = dir.get(name);
+            if (entry != null && entry.file().isDirectory()) {
+                dir = (Directory) entry.file();
+                continue;
+            }
+
             Directory newDir = fileStore.directoryCreator().get();
             fileStore.setInitialAttributes(newDir);
             dir.link(name, newDir);
@@ -3,6 +3,7 @@ package io.roastedroot.zerofs;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * {@link InputStream} for reading from a file's {@link RegularFile}.
@@ -11,14 +12,17 @@ import java.util.Objects;
  */
 final class ZeroFsInputStream extends InputStream {
 
+    /** Lock serializing the operations on this stream. */
+    private final ReentrantLock lock = new ReentrantLock();
+
     // TODO: verify accesses and other GuardedBy
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     RegularFile file;
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private long pos;
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private boolean finished;
 
     private final FileSystemState fileSystemState;
@@ -30,24 +34,29 @@ final class ZeroFsInputStream extends InputStream {
     }
 
     @Override
-    public synchronized int read() throws IOException {
-        checkNotClosed();
-        if (finished) {
-            return -1;
-        }
-
-        file.readLock().lock();
+    public int read() throws IOException {
+        lock.lock();
         try {
+            checkNotClosed();
+            if (finished) {
+                return -1;
+            }
 
-            int b = file.read(pos++); // it's ok for pos to go beyond size()
-            if (b == -1) {
-                finished = true;
-            } else {
-                file.setLastAccessTime(fileSystemState.now());
+            file.readLock().lock();
+            try {
+
+                int b = file.read(pos++); // it's ok for pos to go beyond size()
+                if (b == -1) {
+                    finished = true;
+                } else {
+                    fileSystemState.accessed(file);
+                }
+                return b;
+            } finally {
+                file.readLock().unlock();
             }
-            return b;
         } finally {
-            file.readLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -64,25 +73,30 @@ final class ZeroFsInputStream extends InputStream {
         return readInternal(b, off, len);
     }
 
-    private synchronized int readInternal(byte[] b, int off, int len) throws IOException {
-        checkNotClosed();
-        if (finished) {
-            return -1;
-        }
-
-        file.readLock().lock();
+    private int readInternal(byte[] b, int off, int len) throws IOException {
+        lock.lock();
         try {
-            int read = file.read(pos, b, off, len);
-            if (read == -1) {
-                finished = true;
-            } else {
-                pos += read;
+            checkNotClosed();
+            if (finished) {
+                return -1;
             }
 
-            file.setLastAccessTime(fileSystemState.now());
-            return read;
+            file.readLock().lock();
+            try {
+                int read = file.read(pos, b, off, len);
+                if (read == -1) {
+                    finished = true;
+                } else {
+                    pos += read;
+                }
+
+                fileSystemState.accessed(file);
+                return read;
+            } finally {
+                file.readLock().unlock();
+            }
         } finally {
-            file.readLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -92,7 +106,8 @@ final class ZeroFsInputStream extends InputStream {
             return 0;
         }
 
-        synchronized (this) {
+        lock.lock();
+        try {
             checkNotClosed();
             if (finished) {
                 return 0;
@@ -102,6 +117,8 @@ final class ZeroFsInputStream extends InputStream {
             int skip = (int) Math.min(Math.max(file.size() - pos, 0), n);
             pos += skip;
             return skip;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -116,39 +133,45 @@ final class ZeroFsInputStream extends InputStream {
     }
 
     @Override
-    public synchronized int available() throws IOException {
-        checkNotClosed();
-        if (finished) {
-            return 0;
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            checkNotClosed();
+            if (finished) {
+                return 0;
+            }
+            long available = Math.max(file.size() - pos, 0);
+            return saturatedCast(available);
+        } finally {
+            lock.unlock();
         }
-        long available = Math.max(file.size() - pos, 0);
-        return saturatedCast(available);
     }
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private void checkNotClosed() throws IOException {
-        synchronized (this) {
-            if (file == null) {
-                throw new IOException("stream is closed");
-            }
+        if (file == null) {
+            throw new IOException("stream is closed");
         }
     }
 
     @Override
-    public synchronized void close() throws IOException {
-        if (isOpen()) {
-            fileSystemState.unregister(this);
-            file.closed();
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (isOpen()) {
+                fileSystemState.unregister(this);
+                file.closed();
 
-            // file is set to null here and only here
-            file = null;
+                // file is set to null here and only here
+                file = null;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private boolean isOpen() {
-        synchronized (this) {
-            return file != null;
-        }
+        return file != null;
     }
 }
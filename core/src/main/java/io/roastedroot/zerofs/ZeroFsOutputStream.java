@@ -3,6 +3,7 @@ package io.roastedroot.zerofs;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * {@link OutputStream} for writing to a {@link RegularFile}.
@@ -11,10 +12,13 @@ import java.util.Objects;
  */
 final class ZeroFsOutputStream extends OutputStream {
 
-    // @GuardedBy("this")
+    /** Lock serializing the operations on this stream. */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // @GuardedBy("lock")
     RegularFile file;
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private long pos;
 
     private final boolean append;
@@ -28,19 +32,24 @@ final class ZeroFsOutputStream extends OutputStream {
     }
 
     @Override
-    public synchronized void write(int b) throws IOException {
-        checkNotClosed();
-
-        file.writeLock().lock();
+    public void write(int b) throws IOException {
+        lock.lock();
         try {
-            if (append) {
-                pos = file.sizeWithoutLocking();
+            checkNotClosed();
+
+            file.writeLock().lock();
+            try {
+                if (append) {
+                    pos = file.sizeWithoutLocking();
+                }
+                file.write(pos++, (byte) b);
+
+                fileSystemState.modified(file);
+            } finally {
+                file.writeLock().unlock();
             }
-            file.write(pos++, (byte) b);
-
-            file.setLastModifiedTime(fileSystemState.now());
         } finally {
-            file.writeLock().unlock();
+            lock.unlock();
         }
     }
 
@@ -57,46 +66,52 @@ final class ZeroFsOutputStream extends OutputStream {
         writeInternal(b, off, len);
     }
 
-    private synchronized void writeInternal(byte[] b, int off, int len) throws IOException {
-        checkNotClosed();
-
-        file.writeLock().lock();
+    private void writeInternal(byte[] b, int off, int len) throws IOException {
+        lock.lock();
         try {
-            if (append) {
-                pos = file.sizeWithoutLocking();
+            checkNotClosed();
+
+            file.writeLock().lock();
+            try {
+                if (append) {
+                    pos = file.sizeWithoutLocking();
+                }
+                pos += file.write(pos, b, off, len);
+
+                fileSystemState.modified(file);
+            } finally {
+                file.writeLock().unlock();
             }
-            pos += file.write(pos, b, off, len);
-
-            file.setLastModifiedTime(fileSystemState.now());
         } finally {
-            file.writeLock().unlock();
+            lock.unlock();
         }
     }
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private void checkNotClosed() throws IOException {
-        synchronized (this) {
-            if (file == null) {
-                throw new IOException("stream is closed");
-            }
+        if (file == null) {
+            throw new IOException("stream is closed");
         }
     }
 
     @Override
-    public synchronized void close() throws IOException {
-        if (isOpen()) {
-            fileSystemState.unregister(this);
-            file.closed();
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (isOpen()) {
+                fileSystemState.unregister(this);
+                file.closed();
 
-            // file is set to null here and only here
-            file = null;
+                // file is set to null here and only here
+                file = null;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    // @GuardedBy("this")
+    // @GuardedBy("lock")
     private boolean isOpen() {
-        synchronized (this) {
-            return file != null;
-        }
+        return file != null;
     }
 }
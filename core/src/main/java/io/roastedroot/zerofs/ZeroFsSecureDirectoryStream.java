@@ -16,6 +16,7 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Secure directory stream implementation that uses a {@link FileSystemView} with the stream's
@@ -29,6 +30,9 @@ final class ZeroFsSecureDirectoryStream implements SecureDirectoryStream<Path> {
     private final Filter<? super Path> filter;
     private final FileSystemState fileSystemState;
 
+    /** Lock guarding the state of this stream. */
+    private final ReentrantLock lock = new ReentrantLock();
+
     private boolean open = true;
     private Iterator<Path> iterator = new DirectoryIterator();
 
@@ -45,31 +49,48 @@ final class ZeroFsSecureDirectoryStream implements SecureDirectoryStream<Path> {
     }
 
     @Override
-    public synchronized Iterator<Path> iterator() {
-        checkOpen();
-        Iterator<Path> result = iterator;
-        // checkState(result != null, "iterator() has already been called once");
-        if (result == null) {
-            throw new IllegalStateException("iterator() has already been called once");
+    public Iterator<Path> iterator() {
+        lock.lock();
+        try {
+            checkOpen();
+            Iterator<Path> result = iterator;
+            // checkState(result != null, "iterator() has already been called once");
+            if (result == null) {
+                throw new IllegalStateException("iterator() has already been called once");
+            }
+            iterator = null;
+            return result;
+        } finally {
+            lock.unlock();
         }
-        iterator = null;
-        return result;
     }
 
     @Override
-    public synchronized void close() {
-        open = false;
-        fileSystemState.unregister(this);
+    public void close() {
+        lock.lock();
+        try {
+            open = false;
+            fileSystemState.unregister(this);
+        } finally {
+            lock.unlock();
+        }
     }
 
-    protected synchronized void checkOpen() {
-        if (!open) {
-            throw new ClosedDirectoryStreamException();
+    protected void checkOpen() {
+        lock.lock();
+        try {
+            if (!open) {
+                throw new ClosedDirectoryStreamException();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public final class DirectoryIterator implements Iterator<Path> {
 
+        private final ReentrantLock iteratorLock = new ReentrantLock();
+
         private Iterator<Name> fileNames;
         private Path nextPath;
         private boolean nextPathReady = false;
@@ -81,7 +102,7 @@ final class ZeroFsSecureDirectoryStream implements SecureDirectoryStream<Path> {
 
             try {
                 if (fileNames == null) {
-                    fileNames = view.snapshotWorkingDirectoryEntries().iterator();
+                    fileNames = view.workingDirectoryEntries();
                 }
 
                 while (fileNames.hasNext()) {
@@ -103,22 +124,32 @@ final class ZeroFsSecureDirectoryStream implements SecureDirectoryStream<Path> {
         }
 
         @Override
-        public synchronized boolean hasNext() {
-            prepareNext();
-            return nextPathReady;
+        public boolean hasNext() {
+            iteratorLock.lock();
+            try {
+                prepareNext();
+                return nextPathReady;
+            } finally {
+                iteratorLock.unlock();
+            }
         }
 
         @Override
-        public synchronized Path next() {
-            prepareNext();
-            if (!nextPathReady) {
-                throw new NoSuchElementException();
-            }
+        public Path next() {
+            iteratorLock.lock();
+            try {
+                prepareNext();
+                if (!nextPathReady) {
+                    throw new NoSuchElementException();
+                }
 
-            Path result = nextPath;
-            nextPath = null;
-            nextPathReady = false;
-            return result;
+                Path result = nextPath;
+                nextPath = null;
+                nextPathReady = false;
+                return result;
+            } finally {
+                iteratorLock.unlock();
+            }
         }
     }
 
@@ -211,7 +242,7 @@ final class ZeroFsSecureDirectoryStream implements SecureDirectoryStream<Path> {
                     public File lookup() throws IOException {
                         checkOpen(); // per the spec, must check that the stream is open for each
                         // view operation
-                        return view.lookUpWithLock(checkedPath, optionsSet)
+                        return view.lookUp(checkedPath, optionsSet)
                                 .requireExists(checkedPath)
                                 .file();
                     }
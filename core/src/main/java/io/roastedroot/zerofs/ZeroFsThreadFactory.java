@@ -0,0 +1,24 @@
+package io.roastedroot.zerofs;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Factory for the threads of the background services of a file system. */
+final class ZeroFsThreadFactory implements ThreadFactory {
+    private final String nameFormat;
+    private final boolean daemon;
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    public ZeroFsThreadFactory(String nameFormat, boolean daemon) {
+        this.nameFormat = nameFormat;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        String threadName = String.format(nameFormat, count.getAndIncrement());
+        Thread thread = new Thread(r, threadName);
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
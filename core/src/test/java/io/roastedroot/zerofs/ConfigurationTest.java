@@ -21,6 +21,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.WatchService;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
 import java.util.Iterator;
 import java.util.Set;
 import org.junit.jupiter.api.Test;
@@ -191,14 +192,24 @@ public class ConfigurationTest {
                         .setNameCanonicalNormalization(NFD, CASE_FOLD_UNICODE)
                         .setNameDisplayNormalization(NFC)
                         .setPathEqualityUsesCanonicalForm(true)
+                        .setLookupCacheSize(64)
+                        .setNameInterning(true)
+                        .setPathCacheSize(128)
                         .setBlockSize(10)
                         .setMaxSize(100)
                         .setMaxCacheSize(50)
+                        .setCacheIdleTimeout(Duration.ofSeconds(30))
+                        .setSoftCache(true)
+                        .setCompressionIdleTime(Duration.ofMinutes(5))
+                        .setDeduplication(true)
+                        .setSortedDirectoryStreams(false)
+                        .setBlockStorage(BlockStorage.DIRECT)
                         .setAttributeViews("basic", "posix")
                         .addAttributeProvider(unixProvider)
                         .setDefaultAttributeValue(
                                 "posix:permissions", PosixFilePermissions.fromString("---------"))
                         .setFileTimeSource(fileTimeSource)
+                        .setAccessTimeMode(AccessTimeMode.RELATIVE)
                         .build();
 
         assertEquals(PathType.unix(), config.pathType);
@@ -207,9 +218,18 @@ public class ConfigurationTest {
         assertEquals(Set.of(NFD, CASE_FOLD_UNICODE), config.nameCanonicalNormalization);
         assertEquals(Set.of(NFC), config.nameDisplayNormalization);
         assertTrue(config.pathEqualityUsesCanonicalForm);
+        assertEquals(64, config.lookupCacheSize);
+        assertTrue(config.nameInterning);
+        assertEquals(128, config.pathCacheSize);
         assertEquals(10, config.blockSize);
         assertEquals(100, config.maxSize);
         assertEquals(50, config.maxCacheSize);
+        assertEquals(Duration.ofSeconds(30), config.cacheIdleTimeout);
+        assertTrue(config.softCache);
+        assertEquals(Duration.ofMinutes(5), config.compressionIdleTime);
+        assertTrue(config.deduplication);
+        assertFalse(config.sortedDirectoryStreams);
+        assertEquals(BlockStorage.DIRECT, config.blockStorage);
         assertEquals(Set.of("basic", "posix"), config.attributeViews);
         assertEquals(Set.of(unixProvider), config.attributeProviders);
         assertTrue(config.defaultAttributeValues.containsKey("posix:permissions"));
@@ -217,6 +237,7 @@ public class ConfigurationTest {
                 PosixFilePermissions.fromString("---------"),
                 config.defaultAttributeValues.get("posix:permissions"));
         assertEquals(fileTimeSource, config.fileTimeSource);
+        assertEquals(AccessTimeMode.RELATIVE, config.accessTimeMode);
     }
 
     @Test
@@ -279,6 +300,7 @@ public class ConfigurationTest {
         assertEquals(8192, config.blockSize);
         assertEquals(4L * 1024 * 1024 * 1024, config.maxSize);
         assertEquals(-1, config.maxCacheSize);
+        assertEquals(BlockStorage.HEAP, config.blockStorage);
         assertEquals(Set.of("basic", "posix"), config.attributeViews);
         assertTrue(config.attributeProviders.isEmpty());
         assertTrue(config.defaultAttributeValues.isEmpty());
@@ -300,6 +322,30 @@ public class ConfigurationTest {
         }
     }
 
+    @Test
+    public void testSettingNonPositiveCacheIdleTimeout() {
+        try {
+            Configuration.unix().toBuilder().setCacheIdleTimeout(Duration.ZERO);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            Configuration.unix().toBuilder().setCacheIdleTimeout(Duration.ofSeconds(-1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testSettingNonPositiveCompressionIdleTime() {
+        try {
+            Configuration.unix().toBuilder().setCompressionIdleTime(Duration.ZERO);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     @Test
     public void testSettingWorkingDirectoryWithRelativePath() {
         try {
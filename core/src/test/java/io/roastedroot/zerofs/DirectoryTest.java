@@ -12,10 +12,12 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -229,6 +231,80 @@ public class DirectoryTest {
         assertFalse(snapshotIter.hasNext());
     }
 
+    @Test
+    public void testScan() {
+        Set<Name> names = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            names.add(Name.simple(String.valueOf(i)));
+            dir.link(Name.simple(String.valueOf(i)), regularFile(0));
+        }
+
+        List<Name> scanned = new ArrayList<>();
+        int cursor = 0;
+        do {
+            int size = scanned.size();
+            cursor = dir.scan(cursor, scanned, 10);
+            assertTrue(scanned.size() - size >= 10 || cursor == 0);
+        } while (cursor != 0);
+
+        // does not include . or ..
+        assertEquals(100, scanned.size());
+        assertEquals(names, new HashSet<>(scanned));
+    }
+
+    @Test
+    public void testScan_whileExpanding() {
+        Set<Name> names = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            names.add(Name.simple(String.valueOf(i)));
+            dir.link(Name.simple(String.valueOf(i)), regularFile(0));
+        }
+
+        // names that stay in the directory are returned exactly once, even though the table is
+        // expanded several times during the scan
+        List<Name> scanned = new ArrayList<>();
+        int cursor = 0;
+        int added = 0;
+        do {
+            cursor = dir.scan(cursor, scanned, 1);
+            for (int i = 0; i < 20 && added < 200; i++) {
+                dir.link(Name.simple("new" + added++), regularFile(0));
+            }
+        } while (cursor != 0);
+
+        Set<Name> scannedSet = new HashSet<>(scanned);
+        assertEquals(scanned.size(), scannedSet.size());
+        assertTrue(scannedSet.containsAll(names));
+    }
+
+    @Test
+    public void testScan_whileShrinking() {
+        Set<Name> names = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            names.add(Name.simple(String.valueOf(i)));
+            dir.link(Name.simple(String.valueOf(i)), regularFile(0));
+        }
+        for (int i = 0; i < 1000; i++) {
+            dir.link(Name.simple("old" + i), regularFile(0));
+        }
+
+        // buckets that were partly scanned are merged as the table shrinks, but names are still
+        // returned only once
+        List<Name> scanned = new ArrayList<>();
+        int cursor = 0;
+        int removed = 0;
+        do {
+            cursor = dir.scan(cursor, scanned, 1);
+            for (int i = 0; i < 20 && removed < 1000; i++) {
+                dir.unlink(Name.simple("old" + removed++));
+            }
+        } while (cursor != 0);
+
+        Set<Name> scannedSet = new HashSet<>(scanned);
+        assertEquals(scanned.size(), scannedSet.size());
+        assertTrue(scannedSet.containsAll(names));
+    }
+
     // Tests for internal hash table implementation
     private final Directory a = createDirectory(0);
 
@@ -294,6 +370,49 @@ public class DirectoryTest {
         dir.put(entry("foo")); // these should just succeeded
     }
 
+    @Test
+    public void testLookUpWhileModifying() throws Exception {
+        Name stable = Name.simple("stable");
+        DirectoryEntry stableEntry = entry("stable");
+        dir.put(stableEntry);
+
+        // one thread keeps growing and shrinking the table while this thread looks up an entry
+        // that is always present
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer =
+                new Thread(
+                        () -> {
+                            while (!done.get()) {
+                                for (int i = 0; i < 200; i++) {
+                                    dir.writeLock().lock();
+                                    try {
+                                        dir.put(entry(String.valueOf(i)));
+                                    } finally {
+                                        dir.writeLock().unlock();
+                                    }
+                                }
+                                for (int i = 0; i < 200; i++) {
+                                    dir.writeLock().lock();
+                                    try {
+                                        dir.remove(Name.simple(String.valueOf(i)));
+                                    } finally {
+                                        dir.writeLock().unlock();
+                                    }
+                                }
+                            }
+                        });
+        writer.start();
+        try {
+            for (int i = 0; i < 100000; i++) {
+                assertEquals(stableEntry, dir.lookUp(stable));
+                assertNull(dir.lookUp(Name.simple("missing")));
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+        }
+    }
+
     @Test
     public void testManyPutsAndRemoves() {
         // test resizing/rehashing
@@ -349,6 +468,20 @@ public class DirectoryTest {
         }
     }
 
+    @Test
+    public void testResize() {
+        for (int i = 0; i < 1000; i++) {
+            dir.put(entry(String.valueOf(i)));
+        }
+        assertEquals(2048, dir.capacity());
+
+        for (int i = 0; i < 1000; i++) {
+            dir.remove(Name.simple(String.valueOf(i)));
+        }
+        assertEquals(16, dir.capacity());
+        assertEquals(2, iteratorToList(dir.iterator()).size());
+    }
+
     private DirectoryEntry entry(String name) {
         return new DirectoryEntry(a, Name.simple(name), a);
     }
@@ -0,0 +1,242 @@
+package io.roastedroot.zerofs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/** Tests for {@link EventWatchService}. */
+public class EventWatchServiceTest {
+
+    private ZeroFsFileSystem fs;
+    private EventWatchService watcher;
+
+    @BeforeEach
+    public void setUp() {
+        fs = (ZeroFsFileSystem) ZeroFs.newFileSystem(Configuration.unix());
+        watcher =
+                new EventWatchService(
+                        fs.getDefaultView(),
+                        fs.getPathService(),
+                        new FileSystemState(new FakeFileTimeSource(), () -> {}));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        watcher.close();
+        fs.close();
+        watcher = null;
+        fs = null;
+    }
+
+    @Test
+    public void testNewWatcher() {
+        assertTrue(watcher.isOpen());
+        assertFalse(watcher.isWatching());
+    }
+
+    @Test
+    public void testRegister() throws IOException {
+        AbstractWatchService.Key key = watcher.register(createDirectory(), List.of(ENTRY_CREATE));
+        assertTrue(key.isValid());
+
+        assertTrue(watcher.isWatching());
+    }
+
+    @Test
+    public void testRegister_fileDoesNotExist() throws IOException {
+        try {
+            watcher.register(fs.getPath("/a/b/c"), List.of(ENTRY_CREATE));
+            fail();
+        } catch (NoSuchFileException expected) {
+        }
+    }
+
+    @Test
+    public void testRegister_fileIsNotDirectory() throws IOException {
+        Path path = fs.getPath("/a.txt");
+        Files.createFile(path);
+        try {
+            watcher.register(path, List.of(ENTRY_CREATE));
+            fail();
+        } catch (NotDirectoryException expected) {
+        }
+    }
+
+    @Test
+    public void testCancelledKeyGetsNoEvents() throws IOException {
+        ZeroFsPath path = createDirectory();
+        AbstractWatchService.Key key = watcher.register(path, List.of(ENTRY_CREATE));
+        key.cancel();
+        assertFalse(key.isValid());
+        assertFalse(watcher.isWatching());
+
+        Files.createFile(path.resolve("foo"));
+
+        assertNull(watcher.poll());
+    }
+
+    @Test
+    public void testCloseCancelsAllKeys() throws IOException {
+        AbstractWatchService.Key key1 = watcher.register(createDirectory(), List.of(ENTRY_CREATE));
+        AbstractWatchService.Key key2 = watcher.register(createDirectory(), List.of(ENTRY_DELETE));
+
+        watcher.close();
+
+        assertFalse(key1.isValid());
+        assertFalse(key2.isValid());
+        assertFalse(watcher.isWatching());
+    }
+
+    @Test
+    public void testDeletingDirectoryCancelsKey() throws IOException {
+        ZeroFsPath path = createDirectory();
+        AbstractWatchService.Key key = watcher.register(path, List.of(ENTRY_CREATE));
+
+        Files.delete(path);
+
+        assertFalse(key.isValid());
+        assertFalse(watcher.isWatching());
+    }
+
+    @Test
+    public void testWatchForOneEventType() throws IOException {
+        ZeroFsPath path = createDirectory();
+        watcher.register(path, List.of(ENTRY_CREATE));
+
+        Files.createFile(path.resolve("foo"));
+
+        // events are posted as soon as the change is made
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("foo")));
+
+        Files.createFile(path.resolve("bar"));
+        Files.delete(path.resolve("bar"));
+        Files.createFile(path.resolve("baz"));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("bar")),
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("baz")));
+    }
+
+    @Test
+    public void testWatchForMultipleEventTypes() throws IOException {
+        ZeroFsPath path = createDirectory();
+        watcher.register(path, List.of(ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+
+        Files.createDirectory(path.resolve("foo"));
+        Files.createFile(path.resolve("bar"));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("bar")));
+
+        Files.createFile(path.resolve("baz"));
+        Files.delete(path.resolve("bar"));
+        Files.createFile(path.resolve("foo/bar"));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("baz")),
+                new AbstractWatchService.Event<>(ENTRY_DELETE, 1, fs.getPath("bar")),
+                new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+
+        Files.delete(path.resolve("foo/bar"));
+        Files.delete(path.resolve("foo"));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_DELETE, 1, fs.getPath("foo")));
+    }
+
+    @Test
+    public void testRepeatedModificationsAreReportedOnce() throws IOException {
+        ZeroFsPath path = createDirectory();
+        Files.createFile(path.resolve("foo"));
+        watcher.register(path, List.of(ENTRY_MODIFY));
+
+        Files.write(path.resolve("foo"), "hello".getBytes(UTF_8));
+        Files.write(path.resolve("foo"), "world".getBytes(UTF_8));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+    }
+
+    @Test
+    public void testRecreatedFileIsReportedInOrder() throws IOException {
+        ZeroFsPath path = createDirectory();
+        watcher.register(path, List.of(ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+
+        Files.createFile(path.resolve("foo"));
+        Files.delete(path.resolve("foo"));
+        Files.createFile(path.resolve("foo"));
+        Files.write(path.resolve("foo"), "hello".getBytes(UTF_8));
+        Files.delete(path.resolve("foo"));
+        Files.createFile(path.resolve("foo"));
+        Files.write(path.resolve("foo"), "world".getBytes(UTF_8));
+
+        assertWatcherHasEvents(
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_DELETE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_DELETE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("foo")),
+                new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("foo")));
+    }
+
+    @Test
+    public void testMoves() throws IOException {
+        ZeroFsPath source = createDirectory();
+        ZeroFsPath target = createDirectory();
+        Files.createFile(source.resolve("foo"));
+        WatchKey sourceKey = watcher.register(source, List.of(ENTRY_DELETE, ENTRY_MODIFY));
+        WatchKey targetKey = watcher.register(target, List.of(ENTRY_CREATE, ENTRY_MODIFY));
+
+        Files.move(source.resolve("foo"), target.resolve("bar"));
+        Files.write(target.resolve("bar"), "hello".getBytes(UTF_8));
+
+        assertEquals(sourceKey, watcher.poll());
+        assertEquals(
+                List.of(new AbstractWatchService.Event<>(ENTRY_DELETE, 1, fs.getPath("foo"))),
+                sourceKey.pollEvents());
+        assertEquals(targetKey, watcher.poll());
+        assertEquals(
+                List.of(
+                        new AbstractWatchService.Event<>(ENTRY_CREATE, 1, fs.getPath("bar")),
+                        new AbstractWatchService.Event<>(ENTRY_MODIFY, 1, fs.getPath("bar"))),
+                targetKey.pollEvents());
+        assertNull(watcher.poll());
+    }
+
+    private void assertWatcherHasEvents(WatchEvent<?>... events) {
+        WatchKey key = watcher.poll();
+        assertEquals(Arrays.asList(events), key.pollEvents());
+        key.reset();
+        assertNull(watcher.poll());
+    }
+
+    private ZeroFsPath createDirectory() throws IOException {
+        ZeroFsPath path = fs.getPath("/" + UUID.randomUUID().toString());
+        Files.createDirectory(path);
+        return path;
+    }
+}
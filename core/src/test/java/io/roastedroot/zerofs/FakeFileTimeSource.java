@@ -18,7 +18,10 @@ final class FakeFileTimeSource implements FileTimeSource {
     FakeFileTimeSource randomize() {
         now =
                 Instant.ofEpochSecond(
-                        random.longs(Instant.MIN.getEpochSecond(), Instant.MAX.getEpochSecond())
+                        // file times are kept as nanoseconds since the epoch
+                        random.longs(
+                                        Long.MIN_VALUE / 1_000_000_000L + 1,
+                                        Long.MAX_VALUE / 1_000_000_000L - 1)
                                 .findAny()
                                 .getAsLong(),
                         random.nextInt(1_000_000_000));
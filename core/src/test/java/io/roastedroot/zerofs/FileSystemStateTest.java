@@ -8,9 +8,11 @@ import static org.junit.jupiter.api.Assertions.fail;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.ClosedFileSystemException;
+import java.nio.file.attribute.FileTime;
 import java.time.Duration;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -49,6 +51,77 @@ public class FileSystemStateTest {
         assertEquals(fileTimeSource.now(), state.now());
     }
 
+    @Test
+    public void testAccessed() {
+        RegularFile file = regularFile(FileTime.fromMillis(0));
+        fileTimeSource.advance(Duration.ofSeconds(1));
+        state.accessed(file);
+        assertEquals(fileTimeSource.now(), file.getLastAccessTime());
+
+        state.modified(file);
+        assertEquals(fileTimeSource.now(), file.getLastModifiedTime());
+    }
+
+    @Test
+    public void testAccessed_relative() {
+        FileSystemState relativeState =
+                new FileSystemState(fileTimeSource, AccessTimeMode.RELATIVE, onClose);
+        RegularFile file = regularFile(fileTimeSource.now());
+
+        // updated when not later than the last modified time
+        fileTimeSource.advance(Duration.ofSeconds(1));
+        relativeState.accessed(file);
+        FileTime accessed = fileTimeSource.now();
+        assertEquals(accessed, file.getLastAccessTime());
+
+        // then not updated again until a day later
+        fileTimeSource.advance(Duration.ofHours(23));
+        relativeState.accessed(file);
+        assertEquals(accessed, file.getLastAccessTime());
+
+        fileTimeSource.advance(Duration.ofHours(1));
+        relativeState.accessed(file);
+        assertEquals(fileTimeSource.now(), file.getLastAccessTime());
+
+        // or until the file is modified
+        fileTimeSource.advance(Duration.ofSeconds(1));
+        relativeState.modified(file);
+        fileTimeSource.advance(Duration.ofSeconds(1));
+        relativeState.accessed(file);
+        assertEquals(fileTimeSource.now(), file.getLastAccessTime());
+    }
+
+    @Test
+    public void testAccessed_none() {
+        FileSystemState noneState =
+                new FileSystemState(fileTimeSource, AccessTimeMode.NONE, onClose);
+        FileTime created = fileTimeSource.now();
+        RegularFile file = regularFile(created);
+
+        fileTimeSource.advance(Duration.ofSeconds(1));
+        noneState.accessed(file);
+        assertEquals(created, file.getLastAccessTime());
+    }
+
+    @Test
+    public void testCoarseFileTimeSource() {
+        FileTimeSource source = FileTimeSource.coarse(Duration.ofSeconds(1));
+        assertEquals(0, source.nowNanos() % 1_000_000_000L);
+        assertEquals(
+                source.now().to(TimeUnit.SECONDS) * 1_000_000_000L,
+                source.now().to(TimeUnit.NANOSECONDS));
+
+        try {
+            FileTimeSource.coarse(Duration.ofNanos(1000));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static RegularFile regularFile(FileTime creationTime) {
+        return RegularFile.create(0, creationTime, new HeapDisk(8, 10, 10));
+    }
+
     @Test
     public void testClose_callsOnCloseRunnable() throws IOException {
         assertEquals(0, onClose.runCount);
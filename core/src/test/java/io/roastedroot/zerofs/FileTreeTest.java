@@ -416,6 +416,44 @@ public class FileTreeTest {
         assertExists(lookup("four/six/.."), "/", "work");
     }
 
+    @Test
+    public void testLookup_cached() throws IOException {
+        fileTree =
+                new FileTree(
+                        Map.of(
+                                Name.simple("/"), (Directory) files.get("/"),
+                                Name.simple("$"), (Directory) files.get("$")),
+                        16);
+        LookupCache cache = fileTree.lookupCache();
+
+        assertExists(lookup("/work/one/two/three"), "two", "three");
+        assertExists(lookup("/work/four/six/two"), "one", "two");
+        assertExists(lookup("/work/one/two/three"), "two", "three");
+        assertExists(lookup("/work/four/six/two"), "one", "two");
+        assertEquals(2, cache.hits());
+
+        // unlinking a file from a directory the lookups didn't go through doesn't invalidate them
+        ((Directory) files.get("foo")).unlink(Name.simple("bar"));
+        assertExists(lookup("/work/one/two/three"), "two", "three");
+        assertExists(lookup("/work/four/six/two"), "one", "two");
+        assertEquals(4, cache.hits());
+
+        // but unlinking one from a directory they went through, including through a symbolic link,
+        // does
+        ((Directory) files.get("one")).unlink(Name.simple("eleven"));
+        assertExists(lookup("/work/one/two/three"), "two", "three");
+        assertExists(lookup("/work/four/six/two"), "one", "two");
+        assertEquals(4, cache.hits());
+
+        ((Directory) files.get("two")).unlink(Name.simple("three"));
+        assertParentExists(lookup("/work/one/two/three"), "two");
+
+        // results found through "." or ".." aren't cached
+        assertExists(lookup("/work/one/.."), "/", "work");
+        assertExists(lookup("/work/one/.."), "/", "work");
+        assertEquals(4, cache.hits());
+    }
+
     private DirectoryEntry lookup(String path, LinkOption... options) throws IOException {
         ZeroFsPath pathObj = pathService.parsePath(path);
         return fileTree.lookUp(workingDirectory, pathObj, Options.getLinkOptions(options));
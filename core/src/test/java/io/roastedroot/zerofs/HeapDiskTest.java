@@ -1,11 +1,25 @@
 package io.roastedroot.zerofs;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -33,7 +47,8 @@ public class HeapDiskTest {
         assertEquals(8192, disk.blockSize());
         assertEquals(819200, disk.getTotalSpace());
         assertEquals(819200, disk.getUnallocatedSpace());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
+        assertEquals(BlockStorage.HEAP, disk.storage());
     }
 
     @Test
@@ -50,7 +65,7 @@ public class HeapDiskTest {
         assertEquals(4, disk.blockSize());
         assertEquals(96, disk.getTotalSpace());
         assertEquals(96, disk.getUnallocatedSpace());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
     }
 
     @Test
@@ -60,17 +75,51 @@ public class HeapDiskTest {
         disk.allocate(blocks, 1);
 
         assertEquals(1, blocks.blockCount());
-        assertEquals(4, blocks.getBlock(0).length);
+        assertEquals(4, blocks.getBlock(0).capacity());
         assertEquals(36, disk.getUnallocatedSpace());
 
         disk.allocate(blocks, 5);
 
         assertEquals(6, blocks.blockCount());
         for (int i = 0; i < blocks.blockCount(); i++) {
-            assertEquals(4, blocks.getBlock(i).length);
+            assertEquals(4, blocks.getBlock(i).capacity());
         }
         assertEquals(16, disk.getUnallocatedSpace());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testAllocate_heapStorage() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 0, BlockStorage.HEAP);
+
+        disk.allocate(blocks, 2);
+
+        for (int i = 0; i < blocks.blockCount(); i++) {
+            assertFalse(blocks.getBlock(i).isDirect());
+            assertTrue(blocks.getBlock(i).hasArray());
+        }
+    }
+
+    @Test
+    public void testAllocate_directStorage() throws IOException {
+        Configuration config =
+                Configuration.unix().toBuilder()
+                        .setBlockSize(4)
+                        .setMaxSize(40)
+                        .setBlockStorage(BlockStorage.DIRECT)
+                        .build();
+        HeapDisk disk = new HeapDisk(config);
+
+        assertEquals(BlockStorage.DIRECT, disk.storage());
+
+        disk.allocate(blocks, 3);
+
+        assertEquals(3, blocks.blockCount());
+        for (int i = 0; i < blocks.blockCount(); i++) {
+            assertEquals(4, blocks.getBlock(i).capacity());
+            assertTrue(blocks.getBlock(i).isDirect());
+        }
+        assertEquals(28, disk.getUnallocatedSpace());
     }
 
     @Test
@@ -81,13 +130,13 @@ public class HeapDiskTest {
         disk.free(blocks, 2);
         assertEquals(4, blocks.blockCount());
         assertEquals(24, disk.getUnallocatedSpace());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
 
         disk.free(blocks);
 
         assertEquals(0, blocks.blockCount());
         assertEquals(40, disk.getUnallocatedSpace());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
     }
 
     @Test
@@ -99,13 +148,13 @@ public class HeapDiskTest {
 
         assertEquals(4, blocks.blockCount());
         assertEquals(24, disk.getUnallocatedSpace());
-        assertEquals(2, disk.blockCache.blockCount());
+        assertEquals(2, disk.cachedBlockCount());
 
         disk.free(blocks);
 
         assertEquals(0, blocks.blockCount());
         assertEquals(40, disk.getUnallocatedSpace());
-        assertEquals(6, disk.blockCache.blockCount());
+        assertEquals(6, disk.cachedBlockCount());
     }
 
     @Test
@@ -117,13 +166,13 @@ public class HeapDiskTest {
 
         assertEquals(4, blocks.blockCount());
         assertEquals(24, disk.getUnallocatedSpace());
-        assertEquals(2, disk.blockCache.blockCount());
+        assertEquals(2, disk.cachedBlockCount());
 
         disk.free(blocks);
 
         assertEquals(0, blocks.blockCount());
         assertEquals(40, disk.getUnallocatedSpace());
-        assertEquals(4, disk.blockCache.blockCount());
+        assertEquals(4, disk.cachedBlockCount());
     }
 
     @Test
@@ -133,25 +182,20 @@ public class HeapDiskTest {
 
         assertEquals(0, disk.getUnallocatedSpace());
 
+        Set<ByteBuffer> cachedBlocks = blockSet(blocks);
         disk.free(blocks);
 
         assertEquals(0, blocks.blockCount());
-        assertEquals(10, disk.blockCache.blockCount());
-
-        List<byte[]> cachedBlocks = new ArrayList<>();
-        for (int i = 0; i < 10; i++) {
-            cachedBlocks.add(disk.blockCache.getBlock(i));
-        }
+        assertEquals(10, disk.cachedBlockCount());
 
         disk.allocate(blocks, 6);
 
         assertEquals(6, blocks.blockCount());
-        assertEquals(4, disk.blockCache.blockCount());
+        assertEquals(4, disk.cachedBlockCount());
 
-        // the 6 arrays in blocks are the last 6 arrays that were cached
-        for (int i = 0; i < 6; i++) {
-            assertEquals(cachedBlocks.get(i + 4), blocks.getBlock(i));
-        }
+        // all 6 blocks were cached
+        assertTrue(cachedBlocks.containsAll(blockSet(blocks)));
+        assertEquals(6, blockSet(blocks).size());
     }
 
     @Test
@@ -161,25 +205,242 @@ public class HeapDiskTest {
 
         assertEquals(0, disk.getUnallocatedSpace());
 
+        Set<ByteBuffer> allocatedBlocks = blockSet(blocks);
         disk.free(blocks);
 
         assertEquals(0, blocks.blockCount());
-        assertEquals(4, disk.blockCache.blockCount());
+        assertEquals(4, disk.cachedBlockCount());
 
-        List<byte[]> cachedBlocks = new ArrayList<>();
-        for (int i = 0; i < 4; i++) {
-            cachedBlocks.add(disk.blockCache.getBlock(i));
+        disk.allocate(blocks, 6);
+
+        assertEquals(6, blocks.blockCount());
+        assertEquals(0, disk.cachedBlockCount());
+
+        // 4 of the blocks were cached
+        Set<ByteBuffer> reused = blockSet(blocks);
+        reused.retainAll(allocatedBlocks);
+        assertEquals(4, reused.size());
+    }
+
+    @Test
+    public void testAllocate_extents() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 100, 100);
+        for (int i = 0; i < 16; i++) {
+            disk.allocate(blocks, 1);
         }
 
+        // the last 8 blocks, allocated while the file had 8 blocks, are adjacent in one extent
+        ByteBuffer first = blocks.getBlock(8);
+        for (int i = 9; i < 16; i++) {
+            ByteBuffer block = blocks.getBlock(i);
+            assertSame(first.array(), block.array());
+            assertEquals(first.arrayOffset() + (i - 8) * 4, block.arrayOffset());
+            assertEquals(4, block.capacity());
+        }
+        assertEquals(84 * 4, disk.getUnallocatedSpace());
+
+        // the 17th block comes from a 16 block extent; the other 15 are spares of the file
+        disk.allocate(blocks, 1);
+        assertEquals(17, blocks.blockCount());
+        assertEquals(83 * 4, disk.getUnallocatedSpace());
+
+        disk.allocate(blocks, 2);
+        assertSame(blocks.getBlock(16).array(), blocks.getBlock(18).array());
+
+        // spare blocks are cached when the file is freed
+        disk.free(blocks);
+        assertEquals(400, disk.getUnallocatedSpace());
+        assertEquals(32, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testSmallBlocks() throws IOException {
+        HeapDisk disk = new HeapDisk(4096, 10, 10);
+        ByteBuffer block = disk.allocateSmallBlock(64);
+
+        assertEquals(64, block.capacity());
+        assertEquals(9 * 4096, disk.getUnallocatedSpace());
+
+        block.put(0, (byte) 1);
+        ByteBuffer grown = disk.growSmallBlock(block, 4096);
+
+        assertEquals(4096, grown.capacity());
+        assertEquals(1, grown.get(0));
+        assertEquals(9 * 4096, disk.getUnallocatedSpace());
+
+        // small blocks aren't cached for reuse when freed
+        blocks.addBlock(disk.allocateSmallBlock(128));
+        disk.free(blocks);
+
+        assertEquals(9 * 4096, disk.getUnallocatedSpace());
+        assertEquals(0, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testCompressAndDecompress() throws IOException {
+        HeapDisk disk = new HeapDisk(4096, 10, 0);
+        disk.allocate(blocks, 3);
+        ByteBuffer block = blocks.getBlock(0);
+        block.put(0, (byte) 1);
+        block.put(4095, (byte) 2);
+
+        // the compressed blocks count by their total size, rounded up to whole blocks
+        Deflater deflater = BlockCompression.newDeflater();
+        disk.compress(blocks, 0, BlockCompression.compress(block, deflater));
+        disk.compress(blocks, 1, BlockCompression.compress(blocks.getBlock(1), deflater));
+        deflater.end();
+
+        assertNull(blocks.getBlock(0));
+        assertEquals(8 * 4096, disk.getUnallocatedSpace());
+
+        disk.decompress(blocks, 0);
+
+        assertNull(blocks.getCompressedBlock(0));
+        assertEquals(1, blocks.getBlock(0).get(0));
+        assertEquals(2, blocks.getBlock(0).get(4095));
+        assertEquals(7 * 4096, disk.getUnallocatedSpace());
+
+        disk.free(blocks);
+        assertEquals(10 * 4096, disk.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testTrim() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10);
         disk.allocate(blocks, 6);
+        disk.free(blocks, 4);
 
-        assertEquals(6, blocks.blockCount());
-        assertEquals(0, disk.blockCache.blockCount());
+        assertEquals(4, disk.cachedBlockCount());
+        assertEquals(32, disk.getUnallocatedSpace());
+
+        // the cached blocks are slices of the same extent as the blocks still in use, which keep
+        // its memory reachable
+        assertEquals(0, disk.trim());
+
+        assertEquals(0, disk.cachedBlockCount());
+        assertEquals(32, disk.getUnallocatedSpace());
+        assertEquals(0, disk.trim());
 
-        // the last 4 arrays in blocks are the 4 arrays that were cached
-        for (int i = 2; i < 6; i++) {
-            assertEquals(cachedBlocks.get(i - 2), blocks.getBlock(i));
+        disk.allocate(blocks, 8);
+
+        assertEquals(10, blocks.blockCount());
+        assertEquals(0, disk.getUnallocatedSpace());
+
+        // only the extent whose blocks are all released at once is counted
+        disk.free(blocks);
+        assertEquals(32, disk.trim());
+        assertEquals(40, disk.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testTrim_directStorage() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10, BlockStorage.DIRECT);
+        disk.allocate(blocks, 6);
+        disk.free(blocks, 4);
+
+        // blocks in direct memory aren't slices of extents, so each one released is freed
+        assertEquals(16, disk.trim());
+        assertEquals(0, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testTrimIdleBlocks() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10);
+        disk.allocate(blocks, 6);
+        disk.free(blocks);
+
+        // the first pass only marks the cached blocks
+        disk.trimIdleBlocks();
+        assertEquals(6, disk.cachedBlockCount());
+
+        disk.allocate(blocks, 2);
+        assertEquals(4, disk.cachedBlockCount());
+
+        // the 4 blocks that weren't taken since the last pass are released
+        disk.trimIdleBlocks();
+        assertEquals(0, disk.cachedBlockCount());
+
+        disk.free(blocks);
+        assertEquals(2, disk.cachedBlockCount());
+
+        disk.trimIdleBlocks();
+        assertEquals(2, disk.cachedBlockCount());
+
+        disk.trimIdleBlocks();
+        assertEquals(0, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testCacheIdleTimeout() throws Exception {
+        HeapDisk disk = new HeapDisk(4, 10, 10, BlockStorage.HEAP, 1_000_000, false, false);
+        disk.allocate(blocks, 6);
+        disk.free(blocks);
+
+        assertEquals(6, disk.cachedBlockCount());
+
+        // each allocation after the timeout elapses runs a pass; the second releases the blocks
+        RegularFile other = RegularFile.create(-2, fileTimeSource.now(), disk);
+        for (int i = 0; i < 2; i++) {
+            Thread.sleep(5);
+            disk.allocate(other, 0);
+        }
+
+        assertEquals(0, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testSoftCache() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10, BlockStorage.HEAP, 0, true, false);
+        disk.allocate(blocks, 6);
+        Set<ByteBuffer> allocatedBlocks = blockSet(blocks);
+        disk.free(blocks);
+
+        assertEquals(6, disk.cachedBlockCount());
+
+        disk.allocate(blocks, 6);
+
+        assertEquals(0, disk.cachedBlockCount());
+        assertEquals(allocatedBlocks, blockSet(blocks));
+    }
+
+    @Test
+    public void testAllocateAndFree_concurrently() throws Exception {
+        HeapDisk disk = new HeapDisk(4, 1000, 100);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    RegularFile file =
+                                            RegularFile.create(-2, fileTimeSource.now(), disk);
+                                    for (int j = 0; j < 1000; j++) {
+                                        disk.allocate(file, 10);
+                                        disk.free(file, 5);
+                                        disk.allocate(file, 3);
+                                        disk.free(file);
+                                    }
+                                    return null;
+                                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
         }
+
+        assertEquals(disk.getTotalSpace(), disk.getUnallocatedSpace());
+        assertTrue(disk.cachedBlockCount() <= 100);
+    }
+
+    private static Set<ByteBuffer> blockSet(RegularFile file) {
+        Set<ByteBuffer> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < file.blockCount(); i++) {
+            set.add(file.getBlock(i));
+        }
+        return set;
     }
 
     @Test
@@ -210,4 +471,202 @@ public class HeapDiskTest {
 
         assertEquals(0, blocks2.blockCount());
     }
+
+    @Test
+    public void testShare() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10);
+        disk.allocate(blocks, 3);
+        RegularFile copy = RegularFile.create(-2, fileTimeSource.now(), disk);
+
+        disk.share(blocks, copy);
+
+        assertEquals(3, copy.blockCount());
+        for (int i = 0; i < 3; i++) {
+            assertSame(blocks.getBlock(i), copy.getBlock(i));
+            assertSame(blocks.getShare(i), copy.getShare(i));
+            assertEquals(2, copy.getShare(i).references);
+        }
+        assertEquals(28, disk.getUnallocatedSpace());
+
+        // freeing the blocks of one file leaves them allocated for the other
+        disk.free(blocks);
+        assertEquals(28, disk.getUnallocatedSpace());
+        assertEquals(0, disk.cachedBlockCount());
+
+        disk.free(copy);
+        assertEquals(40, disk.getUnallocatedSpace());
+        assertEquals(3, disk.cachedBlockCount());
+    }
+
+    @Test
+    public void testUnshare() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10);
+        disk.allocate(blocks, 2);
+        blocks.getBlock(0).put(0, (byte) 1);
+        RegularFile copy = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.share(blocks, copy);
+
+        disk.unshare(copy, 0);
+
+        assertNull(copy.getShare(0));
+        assertNotSame(blocks.getBlock(0), copy.getBlock(0));
+        assertEquals(1, copy.getBlock(0).get(0));
+        assertEquals(1, blocks.getShare(0).references);
+        assertEquals(28, disk.getUnallocatedSpace());
+
+        // the last file referencing a block takes it over without copying
+        ByteBuffer block = blocks.getBlock(0);
+        disk.unshare(blocks, 0);
+
+        assertNull(blocks.getShare(0));
+        assertSame(block, blocks.getBlock(0));
+        assertEquals(28, disk.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testUnshare_fullDisk() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 2, 0);
+        disk.allocate(blocks, 2);
+        RegularFile copy = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.share(blocks, copy);
+
+        try {
+            disk.unshare(copy, 0);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertSame(blocks.getBlock(0), copy.getBlock(0));
+    }
+
+    @Test
+    public void testDeduplicate() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10, BlockStorage.HEAP, 0, false, true);
+        disk.allocate(blocks, 2);
+        blocks.getBlock(0).put(0, (byte) 1);
+        blocks.getBlock(1).put(0, (byte) 2);
+        RegularFile other = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.allocate(other, 2);
+        other.getBlock(0).put(0, (byte) 2);
+        other.getBlock(1).put(0, (byte) 3);
+
+        disk.deduplicate(blocks);
+        disk.deduplicate(other);
+
+        // the block with the same content as one of the first file's is shared
+        assertSame(blocks.getBlock(1), other.getBlock(0));
+        assertSame(blocks.getShare(1), other.getShare(0));
+        assertEquals(2, other.getShare(0).references);
+        assertNotSame(blocks.getBlock(0), other.getBlock(1));
+        assertEquals(28, disk.getUnallocatedSpace());
+        assertEquals(1, disk.cachedBlockCount());
+        assertEquals(16, disk.getLogicalUsedSpace());
+        assertEquals(12, disk.getPhysicalUsedSpace());
+
+        // a shared block that is written to is no longer deduplicated against
+        disk.unshare(other, 0);
+        other.getBlock(0).put(0, (byte) 4);
+        disk.unshare(blocks, 1);
+        RegularFile third = RegularFile.create(-3, fileTimeSource.now(), disk);
+        disk.allocate(third, 1);
+        third.getBlock(0).put(0, (byte) 2);
+        disk.deduplicate(third);
+
+        assertNotSame(blocks.getBlock(1), third.getBlock(0));
+        assertEquals(20, disk.getPhysicalUsedSpace());
+    }
+
+    @Test
+    public void testTryUnshare() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10, BlockStorage.HEAP, 0, false, true);
+        disk.allocate(blocks, 2);
+        blocks.getBlock(0).put(0, (byte) 1);
+        RegularFile copy = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.share(blocks, copy);
+
+        // a block referenced by another file must be copied
+        assertFalse(disk.tryUnshare(copy, 0));
+        assertSame(blocks.getShare(0), copy.getShare(0));
+
+        // a block only referenced through the deduplication index is taken back and unindexed
+        RegularFile file = RegularFile.create(-3, fileTimeSource.now(), disk);
+        disk.allocate(file, 1);
+        file.getBlock(0).put(0, (byte) 5);
+        disk.deduplicate(file);
+        ByteBuffer block = file.getBlock(0);
+
+        assertTrue(disk.tryUnshare(file, 0));
+        assertNull(file.getShare(0));
+        assertSame(block, file.getBlock(0));
+
+        RegularFile other = RegularFile.create(-4, fileTimeSource.now(), disk);
+        disk.allocate(other, 1);
+        other.getBlock(0).put(0, (byte) 5);
+        disk.deduplicate(other);
+
+        assertNotSame(block, other.getBlock(0));
+    }
+
+    @Test
+    public void testDeduplicate_uniqueBlocksAreCompressed() throws IOException {
+        Deflater deflater = BlockCompression.newDeflater();
+        HeapDisk disk = new HeapDisk(4096, 100, 0, BlockStorage.HEAP, 0, false, true);
+        RegularFile file = RegularFile.create(-2, fileTimeSource.now(), disk);
+        byte[] bytes = new byte[4096 * 4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i * 4096] = (byte) i;
+        }
+        file.write(0, bytes, 0, bytes.length);
+        disk.deduplicate(file);
+        long unallocatedSpace = disk.getUnallocatedSpace();
+
+        file.compressIfIdle(deflater);
+        file.compressIfIdle(deflater);
+
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(file.getCompressedBlock(i));
+        }
+        assertEquals(unallocatedSpace + 3 * 4096, disk.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testDeduplicate_disabled() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 10, 10);
+        disk.allocate(blocks, 1);
+        RegularFile other = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.allocate(other, 1);
+
+        disk.deduplicate(blocks);
+        disk.deduplicate(other);
+
+        assertNull(other.getShare(0));
+        assertEquals(32, disk.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testUsedSpace() throws IOException {
+        HeapDisk disk = new HeapDisk(4096, 10, 10);
+        disk.allocate(blocks, 2);
+        RegularFile copy = RegularFile.create(-2, fileTimeSource.now(), disk);
+        disk.share(blocks, copy);
+
+        assertEquals(4 * 4096, disk.getLogicalUsedSpace());
+        assertEquals(2 * 4096, disk.getPhysicalUsedSpace());
+
+        // compressed blocks count by their compressed size, rounded up to whole blocks
+        RegularFile other = RegularFile.create(-3, fileTimeSource.now(), disk);
+        disk.allocate(other, 2);
+        disk.compress(other, 0, new byte[100]);
+        disk.compress(other, 1, new byte[100]);
+
+        assertEquals(6 * 4096, disk.getLogicalUsedSpace());
+        assertEquals(3 * 4096, disk.getPhysicalUsedSpace());
+
+        disk.free(blocks);
+        disk.free(copy);
+        disk.free(other);
+
+        assertEquals(0, disk.getLogicalUsedSpace());
+        assertEquals(0, disk.getPhysicalUsedSpace());
+    }
 }
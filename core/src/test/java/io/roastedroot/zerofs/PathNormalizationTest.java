@@ -7,6 +7,7 @@ import static io.roastedroot.zerofs.PathNormalization.NFD;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Set;
@@ -109,6 +110,18 @@ public class PathNormalizationTest {
         }
     }
 
+    @Test
+    public void testNormalizeAscii() {
+        // ASCII strings are returned as is by the Unicode normalizations
+        String ascii = "Hello-World_1.txt";
+        assertSame(ascii, NFC.apply(ascii));
+        assertSame(ascii, NFD.apply(ascii));
+        assertEquals("hello-world_1.txt", CASE_FOLD_UNICODE.apply(ascii));
+        assertEquals(
+                "hello-world_1.txt",
+                PathNormalization.normalize(ascii, Set.of(NFD, CASE_FOLD_UNICODE)));
+    }
+
     private static final String[][] NORMALIZE_CASE_FOLD_TEST_DATA = {
         {"\u00c5", "\u00e5", "\u212b"},
         {"Am\u00e9lie", "Am\u00c9lie", "Ame\u0301lie", "AME\u0301LIE"}
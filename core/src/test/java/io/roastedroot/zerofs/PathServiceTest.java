@@ -1,10 +1,15 @@
 package io.roastedroot.zerofs;
 
 import static io.roastedroot.zerofs.PathNormalization.CASE_FOLD_ASCII;
+import static io.roastedroot.zerofs.PathNormalization.NFC;
+import static io.roastedroot.zerofs.PathNormalization.NFD;
 import static io.roastedroot.zerofs.PathSubject.paths;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
@@ -139,6 +144,63 @@ public class PathServiceTest {
         assertEquals(1, pathService.compare(path2, path3));
     }
 
+    @Test
+    public void testNameInterning() {
+        PathService pathService =
+                new PathService(
+                        PathType.unix(),
+                        NO_NORMALIZATIONS,
+                        Set.of(CASE_FOLD_ASCII),
+                        false,
+                        true,
+                        0);
+
+        Name name = pathService.name("Foo");
+        assertSame(name, pathService.name("Foo"));
+        assertSame(name, pathService.parsePath("Foo/bar").names().get(0));
+
+        // equal names parsed from different strings are different instances
+        Name lowerCase = pathService.name("foo");
+        assertEquals(name, lowerCase);
+        assertNotSame(name, lowerCase);
+        assertEquals("foo", lowerCase.toString());
+
+        // names aren't interned by default
+        assertNotSame(service.name("foo"), service.name("foo"));
+    }
+
+    @Test
+    public void testNameCache() {
+        PathService pathService = new PathService(PathType.unix(), Set.of(NFC), Set.of(NFD), false);
+
+        // names created from non-ASCII strings are only normalized once
+        Name name = pathService.name("Am\u00e9lie");
+        assertSame(name, pathService.name("Am\u00e9lie"));
+        assertEquals("Am\u00e9lie", name.toString());
+        assertEquals(pathService.name("Ame\u0301lie"), name);
+
+        assertNotSame(pathService.name("foo"), pathService.name("foo"));
+    }
+
+    @Test
+    public void testPathCache() {
+        PathService pathService =
+                new PathService(
+                        PathType.unix(), NO_NORMALIZATIONS, NO_NORMALIZATIONS, false, false, 4);
+        pathService.setFileSystem(FILE_SYSTEM);
+
+        ZeroFsPath path = pathService.parsePath("/foo/bar");
+        assertSame(path, pathService.parsePath("/foo/bar"));
+        assertSame(path, pathService.parsePath("/foo", "bar"));
+        assertEquals(pathService.parsePath("foo"), pathService.parsePath("foo"));
+        assertEquals(3, pathService.pathCache().hits());
+        assertEquals(2, pathService.pathCache().misses());
+
+        // parsed paths aren't cached by default
+        assertNull(service.pathCache());
+        assertNotSame(service.parsePath("/foo/bar"), service.parsePath("/foo/bar"));
+    }
+
     @Test
     public void testPathMatcher() {
         assertInstanceOf(
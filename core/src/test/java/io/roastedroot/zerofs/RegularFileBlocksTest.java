@@ -4,9 +4,11 @@ import static io.roastedroot.zerofs.TestUtils.bytesAsList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -43,25 +45,25 @@ public class RegularFileBlocksTest {
 
     @Test
     public void testAddAndGet() {
-        file.addBlock(new byte[] {1});
+        file.addBlock(ByteBuffer.wrap(new byte[] {1}));
 
         assertEquals(1, file.blockCount());
-        assertEquals(bytesAsList(new byte[] {1}), bytesAsList(file.getBlock(0)));
+        assertEquals(bytesAsList(new byte[] {1}), bytesAsList(file.getBlock(0).array()));
         assertNull(file.getBlock(1));
 
-        file.addBlock(new byte[] {1, 2});
+        file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
 
         assertEquals(2, file.blockCount());
-        assertEquals(bytesAsList(new byte[] {1, 2}), bytesAsList(file.getBlock(1)));
+        assertEquals(bytesAsList(new byte[] {1, 2}), bytesAsList(file.getBlock(1).array()));
         assertNull(file.getBlock(2));
     }
 
     @Test
     public void testTruncate() {
-        file.addBlock(new byte[0]);
-        file.addBlock(new byte[0]);
-        file.addBlock(new byte[0]);
-        file.addBlock(new byte[0]);
+        file.addBlock(ByteBuffer.allocate(0));
+        file.addBlock(ByteBuffer.allocate(0));
+        file.addBlock(ByteBuffer.allocate(0));
+        file.addBlock(ByteBuffer.allocate(0));
 
         assertEquals(4, file.blockCount());
 
@@ -79,8 +81,8 @@ public class RegularFileBlocksTest {
 
     @Test
     public void testCopyTo() {
-        file.addBlock(new byte[] {1});
-        file.addBlock(new byte[] {1, 2});
+        file.addBlock(ByteBuffer.wrap(new byte[] {1}));
+        file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
         RegularFile other = createFile();
 
         assertEquals(0, other.blockCount());
@@ -88,27 +90,27 @@ public class RegularFileBlocksTest {
         file.copyBlocksTo(other, 2);
 
         assertEquals(2, other.blockCount());
-        assertEquals(file.getBlock(0), other.getBlock(0));
-        assertEquals(file.getBlock(1), other.getBlock(1));
+        assertSame(file.getBlock(0), other.getBlock(0));
+        assertSame(file.getBlock(1), other.getBlock(1));
 
         file.copyBlocksTo(other, 1); // should copy the last block
 
         assertEquals(3, other.blockCount());
-        assertEquals(file.getBlock(1), other.getBlock(2));
+        assertSame(file.getBlock(1), other.getBlock(2));
 
         other.copyBlocksTo(file, 3);
 
         assertEquals(5, file.blockCount());
-        assertEquals(other.getBlock(0), file.getBlock(2));
-        assertEquals(other.getBlock(1), file.getBlock(3));
-        assertEquals(other.getBlock(2), file.getBlock(4));
+        assertSame(other.getBlock(0), file.getBlock(2));
+        assertSame(other.getBlock(1), file.getBlock(3));
+        assertSame(other.getBlock(2), file.getBlock(4));
     }
 
     @Test
     public void testTransferTo() {
-        file.addBlock(new byte[] {1});
-        file.addBlock(new byte[] {1, 2});
-        file.addBlock(new byte[] {1, 2, 3});
+        file.addBlock(ByteBuffer.wrap(new byte[] {1}));
+        file.addBlock(ByteBuffer.wrap(new byte[] {1, 2}));
+        file.addBlock(ByteBuffer.wrap(new byte[] {1, 2, 3}));
         RegularFile other = createFile();
 
         assertEquals(3, file.blockCount());
@@ -120,16 +122,16 @@ public class RegularFileBlocksTest {
         assertEquals(3, other.blockCount());
 
         assertNull(file.getBlock(0));
-        assertEquals(bytesAsList(new byte[] {1}), bytesAsList(other.getBlock(0)));
-        assertEquals(bytesAsList(new byte[] {1, 2}), bytesAsList(other.getBlock(1)));
-        assertEquals(bytesAsList(new byte[] {1, 2, 3}), bytesAsList(other.getBlock(2)));
+        assertEquals(bytesAsList(new byte[] {1}), bytesAsList(other.getBlock(0).array()));
+        assertEquals(bytesAsList(new byte[] {1, 2}), bytesAsList(other.getBlock(1).array()));
+        assertEquals(bytesAsList(new byte[] {1, 2, 3}), bytesAsList(other.getBlock(2).array()));
 
         other.transferBlocksTo(file, 1);
 
         assertEquals(1, file.blockCount());
         assertEquals(2, other.blockCount());
         assertNull(other.getBlock(2));
-        assertEquals(bytesAsList(new byte[] {1, 2, 3}), bytesAsList(file.getBlock(0)));
+        assertEquals(bytesAsList(new byte[] {1, 2, 3}), bytesAsList(file.getBlock(0).array()));
         assertNull(file.getBlock(1));
     }
 
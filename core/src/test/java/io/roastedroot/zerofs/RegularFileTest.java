@@ -6,15 +6,20 @@ import static io.roastedroot.zerofs.TestUtils.bytes;
 import static io.roastedroot.zerofs.TestUtils.concat;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
@@ -52,15 +57,18 @@ public class RegularFileTest {
 
         private final int blockSize;
         private final int cacheSize;
+        private final BlockStorage storage;
         private final ReuseStrategy reuseStrategy;
 
         private final FakeFileTimeSource fileTimeSource = new FakeFileTimeSource();
 
         private HeapDisk disk;
 
-        public TestConfiguration(int blockSize, int cacheSize, ReuseStrategy reuseStrategy) {
+        public TestConfiguration(
+                int blockSize, int cacheSize, BlockStorage storage, ReuseStrategy reuseStrategy) {
             this.blockSize = blockSize;
             this.cacheSize = cacheSize;
+            this.storage = storage;
             this.reuseStrategy = reuseStrategy;
 
             if (reuseStrategy != ReuseStrategy.NEW_DISK) {
@@ -70,7 +78,7 @@ public class RegularFileTest {
 
         private HeapDisk createDisk() {
             int maxCachedBlockCount = cacheSize == -1 ? Integer.MAX_VALUE : (cacheSize / blockSize);
-            return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount);
+            return new HeapDisk(blockSize, Integer.MAX_VALUE, maxCachedBlockCount, storage);
         }
 
         public RegularFile createRegularFile() {
@@ -99,7 +107,7 @@ public class RegularFileTest {
 
         @Override
         public String toString() {
-            return reuseStrategy + " [" + blockSize + ", " + cacheSize + "]";
+            return reuseStrategy + " [" + blockSize + ", " + cacheSize + ", " + storage + "]";
         }
     }
 
@@ -126,9 +134,11 @@ public class RegularFileTest {
                     continue;
                 }
 
-                TestConfiguration config =
-                        new TestConfiguration(blockSize, cacheSize, reuseStrategy);
-                allConfigs.add(config);
+                for (BlockStorage storage : BlockStorage.values()) {
+                    TestConfiguration config =
+                            new TestConfiguration(blockSize, cacheSize, storage, reuseStrategy);
+                    allConfigs.add(config);
+                }
             }
         }
 
@@ -1442,6 +1452,275 @@ public class RegularFileTest {
         configuration.tearDown(file);
     }
 
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testWriteInPlace(TestConfiguration configuration) throws Exception {
+        RegularFile file = configuration.createRegularFile();
+
+        fillContent(file, "222222");
+        assertEquals(3, file.writeInPlace(1, buffer("345")));
+        assertContentEquals("234522", file);
+
+        // writes that would change the size of the file can't be done in place
+        assertEquals(-1, file.writeInPlace(4, buffer("678")));
+        assertEquals(-1, file.writeInPlace(0, buffer("")));
+        assertContentEquals("234522", file);
+
+        // neither can writes to blocks shared with another file
+        RegularFile copy = file.copyWithoutContent(1, configuration.fileTimeSource.now());
+        file.copyContentTo(copy);
+        assertEquals(-1, file.writeInPlace(0, buffer("1")));
+        assertEquals(1, file.write(0, buffer("1")));
+        assertContentEquals("134522", file);
+        assertContentEquals("234522", copy);
+
+        // or to holes
+        long holePos = configuration.blockSize * 3L;
+        file.write(holePos + configuration.blockSize, (byte) 1);
+        assertEquals(-1, file.writeInPlace(holePos, buffer("1")));
+
+        copy.deleted();
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testSmallFile(TestConfiguration configuration) throws IOException {
+        RegularFile file = configuration.createRegularFile();
+        int blockSize = configuration.blockSize;
+        HeapDisk disk = configuration.disk;
+        long unallocatedSpace = disk.getUnallocatedSpace();
+
+        // a small file takes a block just large enough for its content, counted as a full block
+        fillContent(file, "123456789");
+        assertEquals(Math.min(64, blockSize), file.getBlock(0).capacity());
+        assertEquals(
+                unallocatedSpace - (long) file.blockCount() * blockSize,
+                disk.getUnallocatedSpace());
+
+        // the block grows with the file, keeping its content
+        file.write(100, (byte) 1);
+        assertEquals(Math.min(128, blockSize), file.getBlock(0).capacity());
+
+        int last = Math.max(blockSize, 128) + 1;
+        file.write(last, (byte) 2);
+        assertEquals(blockSize, file.getBlock(0).capacity());
+
+        byte[] expected = new byte[last + 1];
+        System.arraycopy(bytes("123456789"), 0, expected, 0, 9);
+        expected[100] = 1;
+        expected[last] = 2;
+        assertContentEquals(expected, file);
+
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testCompressIfIdle(TestConfiguration configuration) throws IOException {
+        Deflater deflater = BlockCompression.newDeflater();
+        RegularFile file = configuration.createRegularFile();
+        int blockSize = configuration.blockSize;
+        HeapDisk disk = configuration.disk;
+
+        byte[] bytes = new byte[blockSize * 4];
+        Arrays.fill(bytes, (byte) 'a');
+        file.write(0, bytes, 0, bytes.length);
+        long unallocatedSpace = disk.getUnallocatedSpace();
+
+        // the first call only marks the file as idle
+        file.compressIfIdle(deflater);
+        assertEquals(unallocatedSpace, disk.getUnallocatedSpace());
+
+        file.compressIfIdle(deflater);
+        if (blockSize >= 128) {
+            // tiny blocks don't compress enough to be worth it
+            assertNotNull(file.getCompressedBlock(0));
+            assertEquals(unallocatedSpace + 3L * blockSize, disk.getUnallocatedSpace());
+        }
+        assertContentEquals(bytes, file);
+
+        // writing decompresses the block written to
+        file.write(blockSize + 1L, (byte) 'b');
+        bytes[blockSize + 1] = 'b';
+        assertNull(file.getCompressedBlock(1));
+        assertContentEquals(bytes, file);
+
+        // the file was used, so the next call decompresses it
+        file.compressIfIdle(deflater);
+        for (int i = 0; i < file.blockCount(); i++) {
+            assertNull(file.getCompressedBlock(i));
+        }
+        assertEquals(unallocatedSpace, disk.getUnallocatedSpace());
+        assertContentEquals(bytes, file);
+
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testReadCompressedBlock_decompressedOnce(TestConfiguration configuration)
+            throws IOException {
+        if (configuration.blockSize < 128) {
+            return; // tiny blocks aren't compressed
+        }
+        Deflater deflater = BlockCompression.newDeflater();
+        RegularFile file = configuration.createRegularFile();
+        int blockSize = configuration.blockSize;
+
+        byte[] bytes = new byte[blockSize];
+        Arrays.fill(bytes, (byte) 'a');
+        file.write(0, bytes, 0, bytes.length);
+        file.compressIfIdle(deflater);
+        file.compressIfIdle(deflater);
+        byte[] data = file.getCompressedBlock(0);
+        assertNotNull(data);
+
+        assertEquals('a', file.read(0));
+
+        // the compressed content is corrupted, so the block can only still be read if it isn't
+        // decompressed again
+        byte[] original = data.clone();
+        Arrays.fill(data, (byte) 0);
+        byte[] buf = new byte[10];
+        for (int pos = 1; pos < blockSize; pos += buf.length) {
+            assertEquals('a', file.read(pos));
+            file.read(pos, buf, 0, buf.length);
+            assertEquals('a', buf[0]);
+        }
+        System.arraycopy(original, 0, data, 0, data.length);
+        deflater.end();
+
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testCompressIfIdle_severalBatches(TestConfiguration configuration)
+            throws IOException {
+        Deflater deflater = BlockCompression.newDeflater();
+        RegularFile file = configuration.createRegularFile();
+        int blockSize = configuration.blockSize;
+        HeapDisk disk = configuration.disk;
+
+        byte[] bytes = new byte[blockSize * 200];
+        Arrays.fill(bytes, (byte) 'a');
+        file.write(0, bytes, 0, bytes.length);
+        long unallocatedSpace = disk.getUnallocatedSpace();
+
+        file.compressIfIdle(deflater);
+        file.compressIfIdle(deflater);
+        if (blockSize >= 128) {
+            for (int i = 0; i < file.blockCount(); i++) {
+                assertNotNull(file.getCompressedBlock(i));
+            }
+            assertTrue(disk.getUnallocatedSpace() > unallocatedSpace + 150L * blockSize);
+        }
+        assertContentEquals(bytes, file);
+        deflater.end();
+
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testTransferToFile(TestConfiguration configuration) throws IOException {
+        byte[] bytes = bytes("123456789123456789123");
+        for (int pos : new int[] {0, 1, 8, 17}) {
+            for (int targetPos : new int[] {0, 1, 8, 30}) {
+                RegularFile file = configuration.createRegularFile();
+                fillContent(file, "123456789123456789123");
+                RegularFile target = configuration.createRegularFile();
+                fillContent(target, "55555555555");
+
+                long expectedSize = Math.max(11, targetPos + bytes.length - pos);
+                byte[] expected = new byte[(int) expectedSize];
+                System.arraycopy(bytes("55555555555"), 0, expected, 0, 11);
+                System.arraycopy(bytes, pos, expected, targetPos, bytes.length - pos);
+
+                assertEquals(bytes.length - pos, file.transferTo(pos, 100, target, targetPos));
+                assertContentEquals(expected, target);
+                assertContentEquals(bytes, file);
+
+                // the files don't see each other's writes
+                file.write(pos, (byte) 0);
+                target.write(targetPos + 1, (byte) 0);
+                expected[targetPos + 1] = 0;
+                assertContentEquals(expected, target);
+                bytes[pos] = 0;
+                assertContentEquals(bytes, file);
+                bytes = bytes("123456789123456789123");
+
+                configuration.tearDown(target);
+                configuration.tearDown(file);
+            }
+        }
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testSparse_write(TestConfiguration configuration) throws IOException {
+        RegularFile file = configuration.createRegularFile();
+        HeapDisk disk = configuration.disk;
+        int blockSize = configuration.blockSize;
+        long unallocatedSpace = disk.getUnallocatedSpace();
+
+        fillContent(file, "1");
+        long pos = blockSize * 5L + 1;
+        assertEquals(2, file.write(pos, bytes("23"), 0, 2));
+
+        byte[] expected = new byte[(int) pos + 2];
+        expected[0] = 1;
+        expected[(int) pos] = 2;
+        expected[(int) pos + 1] = 3;
+        assertContentEquals(expected, file);
+
+        // only the blocks that were written to are allocated
+        int allocatedBlocks = 1 + (int) ((pos + 1) / blockSize) - 5 + 1;
+        assertEquals(allocatedBlocks, allocatedBlockCount(file));
+        assertEquals(
+                unallocatedSpace - (long) allocatedBlocks * blockSize, disk.getUnallocatedSpace());
+
+        // writing to a hole allocates a block that reads as zeros apart from the bytes written
+        long holePos = blockSize * 3L + blockSize / 2;
+        assertEquals(1, file.write(holePos, (byte) 4));
+        expected[(int) holePos] = 4;
+        assertContentEquals(expected, file);
+        assertEquals(allocatedBlocks + 1, allocatedBlockCount(file));
+
+        file.truncate(1);
+        assertEquals(unallocatedSpace - blockSize, disk.getUnallocatedSpace());
+
+        configuration.tearDown(file);
+    }
+
+    @ParameterizedTest
+    @MethodSource("allConfigOptions")
+    public void testSparse_transferTo(TestConfiguration configuration) throws IOException {
+        RegularFile file = configuration.createRegularFile();
+        int blockSize = configuration.blockSize;
+
+        file.write(blockSize * 2L, bytes("1"), 0, 1);
+        ByteBufferChannel channel = new ByteBufferChannel(blockSize * 2 + 1);
+        assertEquals(blockSize * 2L + 1, file.transferTo(0, blockSize * 3L, channel));
+
+        byte[] expected = new byte[blockSize * 2 + 1];
+        expected[blockSize * 2] = 1;
+        assertArrayEquals(expected, channel.buffer().array());
+
+        configuration.tearDown(file);
+    }
+
+    private static int allocatedBlockCount(RegularFile file) {
+        int count = 0;
+        for (int i = 0; i < file.blockCount(); i++) {
+            if (file.getBlock(i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     @ParameterizedTest
     @MethodSource("allConfigOptions")
     public void testDeletedStoreRemainsUsableWhileOpen(TestConfiguration configuration)
@@ -45,6 +45,14 @@ public class WatchServiceConfigurationTest {
         assertEquals(MILLISECONDS, pollingWatchService.timeUnit);
     }
 
+    @Test
+    public void testEventDrivenConfig() {
+        WatchService watchService =
+                WatchServiceConfiguration.eventDriven()
+                        .newWatchService(fs.getDefaultView(), fs.getPathService());
+        assertInstanceOf(EventWatchService.class, watchService);
+    }
+
     @Test
     public void testDefaultConfig() {
         WatchService watchService =
@@ -7,6 +7,8 @@ import static io.roastedroot.zerofs.TestUtils.regularFile;
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
@@ -17,10 +19,12 @@ import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.channels.FileLock;
 import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonReadableChannelException;
@@ -38,6 +42,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.jupiter.api.Test;
 
@@ -672,6 +677,181 @@ public class ZeroFsFileChannelTest {
         assertFalse(lock.isValid());
     }
 
+    @Test
+    public void testMap_readWrite() throws IOException {
+        RegularFile file = smallBlockFile(10);
+        FileChannel channel = channel(file, READ, WRITE);
+
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 2, 6);
+        assertEquals(6, buffer.capacity());
+        assertTrue(buffer.isDirect());
+
+        // writes through the mapping are visible in the file
+        buffer.put(0, (byte) 1);
+        buffer.put(5, (byte) 2);
+        assertEquals(1, file.read(2));
+        assertEquals(2, file.read(7));
+
+        // writes to the file are visible in the mapping
+        channel.write(buffer("345"), 4);
+        assertEquals(3, buffer.get(2));
+        assertEquals(5, buffer.get(4));
+
+        // mapping a range that's already mapped shares the same memory
+        MappedByteBuffer other = channel.map(MapMode.READ_WRITE, 3, 2);
+        other.put(0, (byte) 9);
+        assertEquals(9, buffer.get(1));
+        assertEquals(9, file.read(3));
+
+        assertEquals(10, file.size());
+    }
+
+    @Test
+    public void testMap_readOnly() throws IOException {
+        RegularFile file = smallBlockFile(10);
+        FileChannel channel = channel(file, READ);
+
+        MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, 10);
+        assertTrue(buffer.isReadOnly());
+        assertEquals(10, buffer.capacity());
+
+        file.write(9, (byte) 5);
+        assertEquals(5, buffer.get(9));
+
+        try {
+            channel.map(MapMode.READ_ONLY, 5, 10);
+            fail();
+        } catch (IOException expected) {
+            // can't grow the file through a read-only channel
+        }
+        assertEquals(10, file.size());
+
+        try {
+            channel.map(MapMode.READ_WRITE, 0, 10);
+            fail();
+        } catch (NonWritableChannelException expected) {
+        }
+
+        try {
+            channel(file, WRITE).map(MapMode.READ_ONLY, 0, 10);
+            fail();
+        } catch (NonReadableChannelException expected) {
+        }
+    }
+
+    @Test
+    public void testMap_private() throws IOException {
+        RegularFile file = smallBlockFile(10);
+        FileChannel channel = channel(file, READ, WRITE);
+
+        MappedByteBuffer buffer = channel.map(MapMode.PRIVATE, 0, 10);
+        buffer.put(0, (byte) 1);
+        assertEquals(0, file.read(0));
+    }
+
+    @Test
+    public void testMap_growsFile() throws IOException {
+        RegularFile file = smallBlockFile(3);
+        file.write(0, new byte[] {1, 2, 3}, 0, 3);
+        FileChannel channel = channel(file, READ, WRITE);
+
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 1, 15);
+        assertEquals(16, file.size());
+        assertEquals(2, buffer.get(0));
+        assertEquals(3, buffer.get(1));
+        for (int i = 2; i < 15; i++) {
+            assertEquals(0, buffer.get(i));
+        }
+
+        buffer.put(14, (byte) 7);
+        assertEquals(7, file.read(15));
+    }
+
+    @Test
+    public void testMap_truncatedBlocksAreNotReused() throws IOException {
+        HeapDisk disk = new HeapDisk(4, 100, 100);
+        RegularFile file = RegularFile.create(0, new FakeFileTimeSource().now(), disk);
+        file.write(0, new byte[16], 0, 16);
+        FileChannel channel = channel(file, READ, WRITE);
+
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, 16);
+        channel.truncate(0);
+
+        RegularFile other = RegularFile.create(1, new FakeFileTimeSource().now(), disk);
+        other.write(0, new byte[] {1, 1, 1, 1, 1, 1, 1, 1}, 0, 8);
+        for (int i = 0; i < 16; i++) {
+            assertEquals(0, buffer.get(i));
+        }
+    }
+
+    private static RegularFile smallBlockFile(int size) throws IOException {
+        RegularFile file =
+                RegularFile.create(0, new FakeFileTimeSource().now(), new HeapDisk(4, 100, 100));
+        file.write(0, new byte[size], 0, size);
+        return file;
+    }
+
+    @Test
+    public void testPositionalOperationsDoNotLockChannel() throws Exception {
+        final FileChannel channel = channel(regularFile(10), READ, WRITE);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            // holding the channel's monitor must not keep positional operations from completing
+            synchronized (channel) {
+                for (int i = 0; i < 4; i++) {
+                    final int position = i * 2;
+                    futures.add(
+                            executor.submit(
+                                    () -> {
+                                        channel.write(buffer("11"), position);
+                                        ByteBuffer buf = ByteBuffer.allocate(2);
+                                        channel.read(buf, position);
+                                        assertEquals(buffer("11"), buf.flip());
+                                        return null;
+                                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(10, SECONDS);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(0, channel.position());
+        assertEquals(10, channel.size());
+    }
+
+    @Test
+    public void testPositionalWritesInPlaceOnlyNeedReadLock() throws Exception {
+        RegularFile file = regularFile(10);
+        final FileChannel channel = channel(file, READ, WRITE);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        file.readLock().lock(); // blocks writes that need the write lock
+        try {
+            assertEquals(
+                    2,
+                    (int) executor.submit(() -> channel.write(buffer("11"), 4)).get(10, SECONDS));
+            Future<Integer> extending = executor.submit(() -> channel.write(buffer("11"), 9));
+            try {
+                extending.get(100, MILLISECONDS);
+                fail();
+            } catch (TimeoutException expected) {
+            }
+            file.readLock().unlock();
+            assertEquals(2, (int) extending.get(10, SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(11, channel.size());
+        ByteBuffer buf = ByteBuffer.allocate(11);
+        channel.read(buf, 0);
+        assertEquals(buffer("00001100011"), buf.flip());
+    }
+
     @Test
     public void testAsynchronousClose() throws Exception {
         RegularFile file = regularFile(10);
@@ -1039,8 +1219,15 @@ public class ZeroFsFileChannelTest {
                     }
                 });
 
+        assertClosedByInterrupt(
+                new FileChannelMethod() {
+                    @Override
+                    public void call(FileChannel channel) throws IOException {
+                        channel.map(MapMode.READ_WRITE, 0, 1);
+                    }
+                });
+
         // tryLock() does not handle interruption
-        // map() always throws UOE; it doesn't make sense for it to try to handle interruption
     }
 
     private interface FileChannelMethod {
@@ -24,6 +24,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -63,12 +64,20 @@ import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.PatternSyntaxException;
 import org.junit.jupiter.api.Test;
 
@@ -143,6 +152,353 @@ public class ZeroFsUnixLikeFileSystemTest extends AbstractZeroFsIntegrationTest
         assertEquals(totalSpace, fileStore.getUsableSpace());
     }
 
+    @Test
+    public void testDirectBlockStorage() throws IOException {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder()
+                                .setBlockStorage(BlockStorage.DIRECT)
+                                .setBlockSize(16)
+                                .build())) {
+            Path foo = fs2.getPath("/foo");
+            byte[] bytes = preFilledBytes(100);
+            Files.write(foo, bytes);
+            assertArrayEquals(bytes, Files.readAllBytes(foo));
+
+            Path bar = fs2.getPath("/bar");
+            Files.copy(foo, bar);
+            assertArrayEquals(bytes, Files.readAllBytes(bar));
+        }
+    }
+
+    @Test
+    public void testTransferBetweenChannelsSharesBlocks() throws IOException {
+        FileStore fileStore = fs.getFileStores().iterator().next();
+        long blockSize = 8192;
+
+        Path foo = path("/foo");
+        byte[] bytes = preFilledBytes(20000);
+        Files.write(foo, bytes);
+
+        // whole blocks are shared, only the partial last block is copied
+        Path bar = path("/bar");
+        long unallocated = fileStore.getUnallocatedSpace();
+        try (FileChannel source = FileChannel.open(foo, READ);
+                FileChannel target = FileChannel.open(bar, CREATE_NEW, WRITE)) {
+            assertEquals(20000, source.transferTo(0, Long.MAX_VALUE, target));
+            assertEquals(20000, target.position());
+        }
+        assertEquals(unallocated - blockSize, fileStore.getUnallocatedSpace());
+        assertArrayEquals(bytes, Files.readAllBytes(bar));
+
+        // with an offset, the partial first block is copied too
+        Path baz = path("/baz");
+        Files.write(baz, Arrays.copyOf(bytes, 10));
+        unallocated = fileStore.getUnallocatedSpace();
+        try (FileChannel source = FileChannel.open(foo, READ);
+                FileChannel target = FileChannel.open(baz, WRITE)) {
+            source.position(10);
+            assertEquals(19990, target.transferFrom(source, 10, Long.MAX_VALUE));
+            assertEquals(20000, source.position());
+            assertEquals(0, target.position());
+        }
+        assertEquals(unallocated - blockSize, fileStore.getUnallocatedSpace());
+        assertArrayEquals(bytes, Files.readAllBytes(baz));
+
+        // writing to the source doesn't change the targets
+        try (FileChannel channel = FileChannel.open(foo, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {-1}), 10000);
+        }
+        assertArrayEquals(bytes, Files.readAllBytes(bar));
+        assertArrayEquals(bytes, Files.readAllBytes(baz));
+        bytes[10000] = -1;
+        assertArrayEquals(bytes, Files.readAllBytes(foo));
+    }
+
+    @Test
+    public void testTransferBetweenChannels_oppositeDirections() throws Exception {
+        Path foo = path("/foo");
+        Path bar = path("/bar");
+        byte[] bytes = preFilledBytes(20000);
+        Files.write(foo, bytes);
+        Files.write(bar, bytes);
+
+        // transfers in opposite directions must not deadlock
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> transferRepeatedly(foo, bar, true)));
+            futures.add(executor.submit(() -> transferRepeatedly(bar, foo, true)));
+            futures.add(executor.submit(() -> transferRepeatedly(foo, bar, false)));
+            futures.add(executor.submit(() -> transferRepeatedly(bar, foo, false)));
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertArrayEquals(bytes, Files.readAllBytes(foo));
+        assertArrayEquals(bytes, Files.readAllBytes(bar));
+    }
+
+    private static Void transferRepeatedly(Path from, Path to, boolean useTransferTo)
+            throws IOException {
+        try (FileChannel source = FileChannel.open(from, READ);
+                FileChannel target = FileChannel.open(to, WRITE)) {
+            for (int i = 0; i < 1000; i++) {
+                if (useTransferTo) {
+                    target.position(0);
+                    source.transferTo(0, 20000, target);
+                } else {
+                    source.position(0);
+                    target.transferFrom(source, 0, 20000);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testCopySharesBlocks() throws IOException {
+        FileStore fileStore = fs.getFileStores().iterator().next();
+        long totalSpace = fileStore.getTotalSpace();
+
+        Path foo = path("/foo");
+        byte[] bytes = preFilledBytes(20000);
+        Files.write(foo, bytes);
+        long usedByFoo = totalSpace - fileStore.getUnallocatedSpace();
+
+        Path bar = path("/bar");
+        Files.copy(foo, bar);
+        assertEquals(usedByFoo, totalSpace - fileStore.getUnallocatedSpace());
+        assertArrayEquals(bytes, Files.readAllBytes(bar));
+
+        // writing to the copy copies only the block written to
+        try (FileChannel channel = FileChannel.open(bar, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {-1}), 10000);
+        }
+        assertTrue(totalSpace - fileStore.getUnallocatedSpace() > usedByFoo);
+        assertTrue(totalSpace - fileStore.getUnallocatedSpace() < 2 * usedByFoo);
+        assertArrayEquals(bytes, Files.readAllBytes(foo));
+        bytes[10000] = -1;
+        assertArrayEquals(bytes, Files.readAllBytes(bar));
+
+        Files.delete(foo);
+        Files.delete(bar);
+        assertEquals(totalSpace, fileStore.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testSparseFile() throws IOException {
+        FileStore fileStore = fs.getFileStores().iterator().next();
+        long unallocatedSpace = fileStore.getUnallocatedSpace();
+
+        // larger than the file system itself
+        long pos = fileStore.getTotalSpace() * 2;
+        try (FileChannel channel = FileChannel.open(path("/foo"), CREATE_NEW, READ, WRITE)) {
+            assertEquals(1, channel.write(ByteBuffer.wrap(new byte[] {1}), pos));
+            assertEquals(pos + 1, channel.size());
+
+            ByteBuffer buf = ByteBuffer.allocate(2);
+            assertEquals(2, channel.read(buf, pos - 1));
+            assertArrayEquals(new byte[] {0, 1}, buf.array());
+        }
+        assertEquals(unallocatedSpace - 8192, fileStore.getUnallocatedSpace());
+
+        Files.delete(path("/foo"));
+        assertEquals(unallocatedSpace, fileStore.getUnallocatedSpace());
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        byte[] bytes = preFilledBytes(20000);
+        Files.createDirectories(path("/foo/bar"));
+        Files.write(path("/foo/bar/baz"), bytes);
+        Files.createLink(path("/foo/link"), path("/foo/bar/baz"));
+        Files.createSymbolicLink(path("/foo/symlink"), path("bar"));
+        Files.setAttribute(
+                path("/foo/bar"),
+                "posix:permissions",
+                PosixFilePermissions.fromString("rwx------"));
+        Files.setLastModifiedTime(path("/foo/bar/baz"), FileTime.fromMillis(1000));
+
+        FileSystemSnapshot snapshot = ZeroFs.snapshot(fs);
+
+        // changes to the original file system after the snapshot aren't visible in the snapshot
+        Files.write(path("/foo/bar/baz"), new byte[] {1}, APPEND);
+        Files.createFile(path("/foo/new"));
+
+        try (FileSystem clone = snapshot.newFileSystem()) {
+            assertEquals(fs.getPath("/work").toString(), clone.getPath("").toRealPath().toString());
+            assertArrayEquals(bytes, Files.readAllBytes(clone.getPath("/foo/bar/baz")));
+            assertFalse(Files.exists(clone.getPath("/foo/new")));
+            assertTrue(Files.isSameFile(clone.getPath("/foo/link"), clone.getPath("/foo/bar/baz")));
+            assertEquals(2, Files.getAttribute(clone.getPath("/foo/link"), "unix:nlink"));
+            assertEquals(
+                    clone.getPath("bar"), Files.readSymbolicLink(clone.getPath("/foo/symlink")));
+            assertTrue(Files.exists(clone.getPath("/foo/symlink/baz")));
+            assertEquals(
+                    PosixFilePermissions.fromString("rwx------"),
+                    Files.getAttribute(clone.getPath("/foo/bar"), "posix:permissions"));
+            assertEquals(
+                    FileTime.fromMillis(1000),
+                    Files.getLastModifiedTime(clone.getPath("/foo/bar/baz")));
+
+            // the clone accounts for the blocks it shares
+            FileStore cloneStore = clone.getFileStores().iterator().next();
+            long used = cloneStore.getTotalSpace() - cloneStore.getUnallocatedSpace();
+            assertTrue(used >= bytes.length);
+
+            // changes to the clone are only visible in the clone
+            Files.write(clone.getPath("/foo/bar/baz"), new byte[] {2}, APPEND);
+            Path created = Files.createFile(clone.getPath("/foo/created"));
+            assertNotEquals(
+                    Files.getAttribute(clone.getPath("/foo/bar"), "fileKey"),
+                    Files.getAttribute(created, "fileKey"));
+            assertEquals(bytes.length + 1, Files.size(path("/foo/bar/baz")));
+            assertEquals(1, Files.readAllBytes(path("/foo/bar/baz"))[bytes.length]);
+            assertEquals(2, Files.readAllBytes(clone.getPath("/foo/bar/baz"))[bytes.length]);
+            assertFalse(Files.exists(path("/foo/created")));
+
+            // the original and clone free shared blocks independently
+            Files.delete(clone.getPath("/foo/bar/baz"));
+            Files.delete(clone.getPath("/foo/link"));
+            assertTrue(cloneStore.getUnallocatedSpace() > cloneStore.getTotalSpace() - used);
+        }
+
+        try (FileSystem clone = snapshot.newFileSystem()) {
+            assertArrayEquals(bytes, Files.readAllBytes(clone.getPath("/foo/bar/baz")));
+        }
+    }
+
+    @Test
+    public void testSnapshot_notZeroFs() throws IOException {
+        try {
+            ZeroFs.snapshot(FileSystems.getDefault());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testCompressionOfIdleFiles() throws Exception {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder()
+                                .setCompressionIdleTime(Duration.ofMillis(10))
+                                .build())) {
+            byte[] bytes = new byte[1024 * 1024];
+            Arrays.fill(bytes, (byte) 'a');
+            Path path = fs2.getPath("/idle");
+            Files.write(path, bytes);
+
+            FileStore store = fs2.getFileStores().iterator().next();
+            long unallocatedSpace = store.getUnallocatedSpace();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            // blocks are compressed one at a time, so wait for most of them
+            while (store.getUnallocatedSpace() <= unallocatedSpace + bytes.length / 2
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertTrue(store.getUnallocatedSpace() > unallocatedSpace + bytes.length / 2);
+            assertArrayEquals(bytes, Files.readAllBytes(path));
+        }
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder().setDeduplication(true).build())) {
+            byte[] bytes = new byte[1024 * 1024];
+            new Random(0).nextBytes(bytes);
+            Files.write(fs2.getPath("/a"), bytes);
+            Files.write(fs2.getPath("/b"), bytes);
+
+            FileStore store = fs2.getFileStores().iterator().next();
+            assertEquals(2L * bytes.length, store.getAttribute("zerofs:logicalUsedSpace"));
+            assertEquals((long) bytes.length, store.getAttribute("zerofs:physicalUsedSpace"));
+            assertArrayEquals(bytes, Files.readAllBytes(fs2.getPath("/b")));
+
+            // writing to one of the files unshares the block written to
+            try (FileChannel channel = FileChannel.open(fs2.getPath("/b"), WRITE)) {
+                channel.write(ByteBuffer.wrap(new byte[] {1}));
+            }
+            assertEquals(2L * bytes.length, store.getAttribute("zerofs:logicalUsedSpace"));
+            assertEquals(bytes.length + 8192L, store.getAttribute("zerofs:physicalUsedSpace"));
+            assertArrayEquals(bytes, Files.readAllBytes(fs2.getPath("/a")));
+
+            try {
+                store.getAttribute("zerofs:foo");
+                fail();
+            } catch (UnsupportedOperationException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testPathCache() throws IOException {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder().setPathCacheSize(16).build())) {
+            FileStore store = fs2.getFileStores().iterator().next();
+            long hits = (long) store.getAttribute("zerofs:pathCacheHits");
+            long misses = (long) store.getAttribute("zerofs:pathCacheMisses");
+
+            Path path = fs2.getPath("/foo/bar");
+            assertSame(path, fs2.getPath("/foo/bar"));
+            assertSame(path, fs2.getPath("/foo", "bar"));
+            assertEquals(hits + 2, store.getAttribute("zerofs:pathCacheHits"));
+            assertEquals(misses + 1, store.getAttribute("zerofs:pathCacheMisses"));
+        }
+    }
+
+    @Test
+    public void testTrim() throws IOException {
+        Files.write(path("/test"), preFilledBytes(20000));
+        Files.delete(path("/test"));
+
+        assertTrue(ZeroFs.trim(fs) >= 20000);
+        assertEquals(0, ZeroFs.trim(fs));
+
+        try {
+            ZeroFs.trim(FileSystems.getDefault());
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testLookupCache() throws IOException {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder().setLookupCacheSize(16).build())) {
+            Path baz = fs2.getPath("/foo/bar/baz");
+            Files.createDirectories(baz.getParent());
+            Files.write(baz, new byte[] {1, 2, 3});
+            assertEquals(3, Files.size(baz));
+            assertEquals(3, Files.size(baz)); // cached
+
+            // moving an ancestor invalidates the cached lookup
+            Files.move(fs2.getPath("/foo"), fs2.getPath("/qux"));
+            assertFalse(Files.exists(baz));
+            assertEquals(3, Files.size(fs2.getPath("/qux/bar/baz")));
+
+            Files.createDirectories(baz.getParent());
+            Files.write(baz, new byte[] {1});
+            assertEquals(1, Files.size(baz));
+
+            Files.delete(baz);
+            assertFalse(Files.exists(baz));
+
+            // paths are matched by their canonical names
+            Files.write(baz, new byte[] {1, 2});
+            assertEquals(2, Files.size(fs2.getPath("/foo/./bar/baz").normalize()));
+            assertEquals(2, Files.size(fs2.getPath("/foo//bar/baz")));
+        }
+    }
+
     @Test
     public void testPaths() {
         assertThatPath("/").isAbsolute().and().hasRootComponent("/").and().hasNoNameComponents();
@@ -1911,6 +2267,88 @@ public class ZeroFsUnixLikeFileSystemTest extends AbstractZeroFsIntegrationTest
         assertThatPath("/test").containsBytes(bytes).and().attribute("fileKey").is(testKey);
     }
 
+    @Test
+    public void testConcurrentModificationsInDifferentDirectories() throws Exception {
+        int threads = 8;
+        int iterations = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                Path dir = Files.createDirectories(path("/work/" + t));
+                futures.add(
+                        executor.submit(
+                                () -> {
+                                    for (int i = 0; i < iterations; i++) {
+                                        Path file = dir.resolve("file" + i);
+                                        Files.write(file, preFilledBytes(10));
+                                        Path sub = Files.createDirectory(dir.resolve("sub" + i));
+                                        Files.move(file, sub.resolve("moved"));
+                                        Files.delete(sub.resolve("moved"));
+                                        Files.delete(sub);
+                                    }
+                                    return null;
+                                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int t = 0; t < threads; t++) {
+            assertThatPath("/work/" + t).hasNoChildren();
+        }
+    }
+
+    @Test
+    public void testConcurrentDirectoryMoves() throws Exception {
+        Files.createDirectories(path("/a/x"));
+        Files.createDirectories(path("/b/y"));
+
+        // two threads repeatedly try to move each directory into the other; only one of each pair
+        // of moves can succeed, and the directories must never end up inside each other
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first =
+                    executor.submit(
+                            () -> {
+                                for (int i = 0; i < 500; i++) {
+                                    moveIfPossible(path("/a"), path("/b/y/a"));
+                                    moveIfPossible(path("/b/y/a"), path("/a"));
+                                }
+                                return null;
+                            });
+            Future<?> second =
+                    executor.submit(
+                            () -> {
+                                for (int i = 0; i < 500; i++) {
+                                    moveIfPossible(path("/b"), path("/a/x/b"));
+                                    moveIfPossible(path("/a/x/b"), path("/b"));
+                                }
+                                return null;
+                            });
+            first.get(1, TimeUnit.MINUTES);
+            second.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(path("/a"), path("/a").toRealPath());
+        assertEquals(path("/b"), path("/b").toRealPath());
+        assertThatPath("/a/x").hasNoChildren();
+        assertThatPath("/b/y").hasNoChildren();
+    }
+
+    private static void moveIfPossible(Path source, Path target) {
+        try {
+            Files.move(source, target);
+        } catch (IOException expected) {
+            // the source was moved by the other thread or the move would create a cycle
+        }
+    }
+
     @Test
     public void testMove_toDifferentFileSystem() throws IOException {
         try (FileSystem fs2 = ZeroFs.newFileSystem(Configuration.unix())) {
@@ -2108,6 +2546,32 @@ public class ZeroFsUnixLikeFileSystemTest extends AbstractZeroFsIntegrationTest
         }
     }
 
+    @Test
+    public void testUnsortedDirectoryStream() throws IOException {
+        try (FileSystem fs2 =
+                ZeroFs.newFileSystem(
+                        Configuration.unix().toBuilder()
+                                .setSortedDirectoryStreams(false)
+                                .build())) {
+            Path dir = Files.createDirectory(fs2.getPath("/dir"));
+            Set<Path> expected = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                expected.add(Files.createFile(dir.resolve("" + i)));
+            }
+
+            Set<Path> listed = new HashSet<>();
+            try (DirectoryStream<Path> stream =
+                    Files.newDirectoryStream(dir, p -> !p.endsWith("7"))) {
+                for (Path path : stream) {
+                    assertTrue(listed.add(path));
+                }
+            }
+
+            expected.remove(dir.resolve("7"));
+            assertEquals(expected, listed);
+        }
+    }
+
     @Test
     public void testSecureDirectoryStreamBasedOnRelativePath() throws IOException {
         Files.createDirectories(path("foo"));